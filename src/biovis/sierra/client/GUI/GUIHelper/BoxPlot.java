@@ -32,6 +32,7 @@ import org.jfree.data.statistics.BoxAndWhiskerItem;
 import org.jfree.data.statistics.DefaultBoxAndWhiskerCategoryDataset;
 
 import biovis.sierra.data.Replicate;
+import biovis.sierra.data.ReplicateDataSet;
 import biovis.sierra.data.peakcaller.IntBoxplotData;
 
 /**
@@ -172,7 +173,7 @@ public class BoxPlot extends JPanel {
                 rep.getExperiment().getMaxQuality(),
                 null, null, null);
 
-        dataset.add(experiment, replicate, " Experiment");
+        dataset.add(experiment, replicate, getLabel(" Experiment", rep.getExperiment()));
 
         BoxAndWhiskerItem background = new BoxAndWhiskerItem(
                 -100,
@@ -182,8 +183,23 @@ public class BoxPlot extends JPanel {
                 rep.getBackground().getMinQuality(),
                 rep.getBackground().getMaxQuality(),
                 null, null, null);
-        dataset.add(background, replicate, " Background");
+        dataset.add(background, replicate, getLabel(" Background", rep.getBackground()));
 
         return dataset;
     }
+
+    /**
+     * Get category label of a data set. Quartiles computed from sampled
+     * reads are labeled with their error bound.
+     *
+     * @param label label
+     * @param dataSet data set
+     * @return label
+     */
+    private static String getLabel(String label, ReplicateDataSet dataSet) {
+        if (dataSet.getQualityError() > 0.0) {
+            return label + String.format(" (sampled, \u00b1%.1f%%)", 100.0 * dataSet.getQualityError());
+        }
+        return label;
+    }
 }
@@ -51,6 +51,35 @@ public class DataMapper {
     private int numCoresWindowFactory = 6;
     private int numCoresPeakQuality = 6;
 
+    // window construction: "chunked" (indexed query per chunk), "streaming" (one pass per file), or "merged" (all files in one joint pass)
+    private String windowFactory = "chunked";
+    // window counting: "queue" (end queue per window) or "bins" (difference array over windows)
+    private String windowCounting = "queue";
+    // window storage: "heap" (arrays) or "mapped" (memory mapped files in the scratch directory)
+    private String windowStore = "heap";
+    // directory for memory mapped window columns, system temporary directory if empty
+    private String scratchDirectory = "";
+    // directory of the tag count cache, no caching if empty
+    private String countCacheDirectory = "";
+    // directory of the read count index, no index if empty
+    private String countIndexDirectory = "";
+    // bin size of the read count index in bases
+    private int countIndexResolution = 25;
+    // threads inflating BAM blocks ahead of decoding, 0: inflate while decoding
+    private int inflateThreads = 0;
+    // decoder of BAM records: htsjdk or lean (counting fields only)
+    private String bamDecoder = "htsjdk";
+    // base quality statistics of window construction from one of n reads, 1: all reads
+    private int qualitySampling = 1;
+    // source of peak qualities: bam (reads queried per peak) or windows (histograms of window construction)
+    private String peakQuality = "bam";
+    // neighborhood ranges of the local lambdas in bases, comma separated
+    private String lambdaRanges = "1000,5000,10000";
+    // combination of replicate p-values: inm (biovislib InverseNormalMethod) or fast (precomputed coefficients)
+    private String replicateCombination = "inm";
+    // q-value computation: biovislib (QValueCalculator) or fast (runs of equal p-values)
+    private String qValueEngine = "biovislib";
+
     // Results
     private Map<String, Integer> significantWindowMedianChrWise;
 
@@ -325,6 +354,160 @@ public class DataMapper {
         return qValueMethod;
     }
 
+    public String getWindowFactory() {
+        return windowFactory;
+    }
+
+    public void setWindowFactory(String windowFactory) {
+        this.windowFactory = windowFactory;
+    }
+
+    public String getWindowCounting() {
+        return windowCounting;
+    }
+
+    public void setWindowCounting(String windowCounting) {
+        this.windowCounting = windowCounting;
+    }
+
+    public String getWindowStore() {
+        return windowStore;
+    }
+
+    public void setWindowStore(String windowStore) {
+        this.windowStore = windowStore;
+    }
+
+    public String getScratchDirectory() {
+        return scratchDirectory;
+    }
+
+    public void setScratchDirectory(String scratchDirectory) {
+        this.scratchDirectory = scratchDirectory;
+    }
+
+    public String getCountCacheDirectory() {
+        return countCacheDirectory;
+    }
+
+    public void setCountCacheDirectory(String countCacheDirectory) {
+        this.countCacheDirectory = countCacheDirectory;
+    }
+
+    public String getCountIndexDirectory() {
+        return countIndexDirectory;
+    }
+
+    public void setCountIndexDirectory(String countIndexDirectory) {
+        this.countIndexDirectory = countIndexDirectory;
+    }
+
+    public int getCountIndexResolution() {
+        return countIndexResolution;
+    }
+
+    public void setCountIndexResolution(int countIndexResolution) {
+        this.countIndexResolution = countIndexResolution;
+    }
+
+    public int getInflateThreads() {
+        return inflateThreads;
+    }
+
+    public void setInflateThreads(int inflateThreads) {
+        this.inflateThreads = inflateThreads;
+    }
+
+    public String getBamDecoder() {
+        return bamDecoder;
+    }
+
+    public void setBamDecoder(String bamDecoder) {
+        this.bamDecoder = bamDecoder;
+    }
+
+    public int getQualitySampling() {
+        return qualitySampling;
+    }
+
+    public void setQualitySampling(int qualitySampling) {
+        this.qualitySampling = qualitySampling;
+    }
+
+    public String getPeakQuality() {
+        return peakQuality;
+    }
+
+    public void setPeakQuality(String peakQuality) {
+        this.peakQuality = peakQuality;
+    }
+
+    public String getLambdaRanges() {
+        return lambdaRanges;
+    }
+
+    /**
+     * Set neighborhood ranges of the local lambdas.
+     *
+     * @param lambdaRanges comma separated neighborhood ranges in bases
+     * @throws IllegalArgumentException if a range is not a positive number
+     */
+    public void setLambdaRanges(String lambdaRanges) {
+        parseLambdaRanges(lambdaRanges);
+        this.lambdaRanges = lambdaRanges;
+    }
+
+    public String getReplicateCombination() {
+        return replicateCombination;
+    }
+
+    public void setReplicateCombination(String replicateCombination) {
+        this.replicateCombination = replicateCombination;
+    }
+
+    public String getQValueEngine() {
+        return qValueEngine;
+    }
+
+    public void setQValueEngine(String qValueEngine) {
+        this.qValueEngine = qValueEngine;
+    }
+
+    /**
+     * Get neighborhood ranges of the local lambdas.
+     *
+     * @return neighborhood ranges in bases
+     */
+    public int[] getLambdaRangeList() {
+        return parseLambdaRanges(lambdaRanges);
+    }
+
+    /**
+     * Parse neighborhood ranges of the local lambdas.
+     *
+     * @param lambdaRanges comma separated neighborhood ranges in bases
+     * @return neighborhood ranges in bases, empty if no range is given
+     * @throws IllegalArgumentException if a range is not a positive number
+     */
+    public static int[] parseLambdaRanges(String lambdaRanges) {
+        if (lambdaRanges == null || lambdaRanges.trim().isEmpty()) {
+            return new int[0];
+        }
+        String[] parts = lambdaRanges.split(",");
+        int[] ranges = new int[parts.length];
+        for (int i = 0; i < parts.length; ++i) {
+            try {
+                ranges[i] = Integer.parseInt(parts[i].trim());
+            } catch (NumberFormatException e) {
+                throw new IllegalArgumentException("lambda range " + parts[i].trim() + " is not a number");
+            }
+            if (ranges[i] <= 0) {
+                throw new IllegalArgumentException("lambda range " + ranges[i] + " is not positive");
+            }
+        }
+        return ranges;
+    }
+
     public void setIOThreads(int threads) {
         if (this.numCores < threads) {
             return;
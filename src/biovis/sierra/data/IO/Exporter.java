@@ -44,6 +44,7 @@ import biovis.sierra.data.peakcaller.Peak;
 import biovis.sierra.data.peakcaller.PeakList;
 import biovis.sierra.data.windows.Window;
 import biovis.sierra.data.windows.WindowList;
+import biovis.sierra.data.windows.WindowListColumnar;
 import biovis.sierra.server.Commander.ServerMapper;
 
 import java.util.List;
@@ -54,6 +55,9 @@ import java.util.List;
  */
 public class Exporter {
 
+	// data mapper of a state stored as directory of window columns
+	public static final String STATE_MAPPER = "mapper.json";
+
 	/**
 	 * Export peak data in bed format.
 	 *
@@ -157,6 +161,21 @@ public class Exporter {
 	public static void exportWindows(String filename, WindowList windows, DataMapper mapper)
 	{
 		Gson gson = new GsonBuilder().serializeSpecialFloatingPointValues().create();
+		if ("mapped".equals(mapper.getWindowStore()) && windows instanceof WindowListColumnar) {
+			// memory mapped windows: state is a directory with a copy of the columns
+			File directory = new File(filename);
+			try {
+				((WindowListColumnar) windows).exportColumns(directory);
+				try (BufferedWriter writer = new BufferedWriter(new OutputStreamWriter(
+						new FileOutputStream(new File(directory, STATE_MAPPER)), "UTF-8"))) {
+					writer.append(gson.toJson(mapper));
+					writer.newLine();
+				}
+			} catch (IOException e) {
+				e.printStackTrace();
+			}
+			return;
+		}
 		try (
 				FileOutputStream fos = new FileOutputStream(filename);
 				GZIPOutputStream gzos = new GZIPOutputStream(fos);
@@ -172,7 +191,7 @@ public class Exporter {
 			for(Window w : windows.getWindows())
 			{
 
-				String dataString = gson.toJson(w);
+				String dataString = gson.toJson(w.detach());
 
 				writer.append(dataString);
 				writer.newLine();
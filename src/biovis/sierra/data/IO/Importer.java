@@ -19,6 +19,7 @@ package biovis.sierra.data.IO;
 
 import java.io.BufferedReader;
 import java.io.ByteArrayOutputStream;
+import java.io.File;
 import java.io.FileInputStream;
 import java.io.IOException;
 import java.io.InputStreamReader;
@@ -31,7 +32,9 @@ import biovis.sierra.data.ConfigObject.SmallReplicate;
 import biovis.sierra.data.DataMapper;
 import biovis.sierra.data.Replicate;
 import biovis.sierra.data.windows.Window;
+import biovis.sierra.data.windows.WindowColumnStorage;
 import biovis.sierra.data.windows.WindowList;
+import biovis.sierra.data.windows.WindowListColumnar;
 import biovis.sierra.server.SuperDuperPeakCaller;
 import biovis.sierra.server.Commander.PeakCommander;
 import biovis.sierra.server.Commander.ServerMapper;
@@ -158,6 +161,21 @@ public class Importer {
 	{
 		Gson gson = new Gson();
 
+		if (new File(path).isDirectory()) {
+			// state exported from memory mapped windows
+			try (BufferedReader br = new BufferedReader(new InputStreamReader(
+					new FileInputStream(new File(path, Exporter.STATE_MAPPER)), "UTF-8"))) {
+				DataMapper mapper = gson.fromJson(br.readLine(), DataMapper.class);
+				controller.setMapper(mapper);
+				WindowList wList = WindowListColumnar.importColumns(new File(path), WindowColumnStorage.create(mapper));
+				controller.setSpc(new SuperDuperPeakCaller(controller.getMapper(), controller.getChunksize()));
+				controller.getSpc().setWl(wList);
+			}catch(IOException ioe){
+				ioe.printStackTrace();
+			}
+			return;
+		}
+
 		try (
 				FileInputStream fis = new FileInputStream(path);
 				GZIPInputStream gzip = new GZIPInputStream(fis);
@@ -169,7 +187,8 @@ public class Importer {
 
 			DataMapper mapper = gson.fromJson(content, DataMapper.class);
 			controller.setMapper(mapper);
-			WindowList wList = new WindowList();
+			// tag counts are not part of the state
+			WindowList wList = new WindowListColumnar(0, mapper.getReplicates().size());
 
 			while ((content = br.readLine()) != null)
 			{
@@ -0,0 +1,93 @@
+/**
+ *****************************************************************************
+ * Copyright (c) 2015 Daniel Gerighausen, Lydia Mueller, and Dirk Zeckzer
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ ******************************************************************************
+ */
+package biovis.sierra.data;
+
+import org.apache.commons.math3.special.Gamma;
+
+/**
+ * Upper tail P(X &gt; k) of the Poisson distribution.
+ *
+ * The tail is summed directly from the probability of k + 1 if lambda is
+ * below k + 1, so small p-values are not lost by computing 1 - CDF. Otherwise
+ * the CDF is summed downwards from the probability of k and subtracted from 1.
+ * In both cases the terms decrease at least geometrically.
+ *
+ * @author Lydia Mueller, Dirk Zeckzer
+ */
+public class PoissonUpperTail {
+
+    // log(k!) for small counts
+    private final static int LOG_FACTORIALS = 1024;
+    private final static double[] logFactorial = new double[LOG_FACTORIALS];
+
+    // relative size of the last term added to a sum
+    private final static double EPSILON = 1e-17;
+
+    static {
+        for (int k = 1; k < LOG_FACTORIALS; ++k) {
+            logFactorial[k] = logFactorial[k - 1] + Math.log(k);
+        }
+    }
+
+    /**
+     * Compute upper tail of the Poisson distribution.
+     *
+     * @param lambda lambda
+     * @param k count
+     * @return P(X &gt; k)
+     */
+    public static double upperTail(double lambda, int k) {
+        if (k < 0) {
+            return 1.0;
+        }
+        if (!(lambda > 0.0)) {
+            // all mass at 0
+            return 0.0;
+        }
+        if (lambda < k + 1) {
+            // P(X > k) = sum_{j > k} p(j)
+            double term = probability(lambda, k + 1);
+            double sum = 0.0;
+            for (int j = k + 1; term > sum * EPSILON; ++j) {
+                sum += term;
+                term *= lambda / (j + 1);
+            }
+            return Math.min(sum, 1.0);
+        }
+        // P(X <= k) = sum_{j <= k} p(j)
+        double term = probability(lambda, k);
+        double sum = 0.0;
+        for (int j = k; j >= 0 && term > sum * EPSILON; --j) {
+            sum += term;
+            term *= j / lambda;
+        }
+        return Math.max(1.0 - sum, 0.0);
+    }
+
+    /**
+     * Compute probability of k.
+     *
+     * @param lambda lambda
+     * @param k count
+     * @return P(X = k)
+     */
+    private static double probability(double lambda, int k) {
+        double logKFactorial = k < LOG_FACTORIALS ? logFactorial[k] : Gamma.logGamma(k + 1.0);
+        return Math.exp(k * Math.log(lambda) - lambda - logKFactorial);
+    }
+}
@@ -19,6 +19,11 @@ package biovis.sierra.data;
 
 import htsjdk.samtools.SAMRecord;
 
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
 /**
  *
  * @author Daniel Gerighausen, Lydia Mueller, Dirk Zeckzer
@@ -26,11 +31,64 @@ import htsjdk.samtools.SAMRecord;
 public class QualityCounter {
 
     public static final int PHRED_MAX = 75;
-    private int[] qualitycounts = new int[PHRED_MAX + 1];
+    private long[] qualitycounts = new long[PHRED_MAX + 1];
     private long totalcounts = 0;
     private int tagCount = 0;
     private int min = PHRED_MAX;
     private int max = 0;
+    // base qualities are counted for one of sampling reads
+    private int sampling = 1;
+
+    // per thread counts not yet merged into the counts above
+    private final Queue<Stripe> stripes = new ConcurrentLinkedQueue<>();
+    private final ThreadLocal<Stripe> localStripe = new ThreadLocal<Stripe>() {
+        @Override
+        protected Stripe initialValue() {
+            Stripe stripe = new Stripe();
+            stripes.add(stripe);
+            return stripe;
+        }
+    };
+
+    /**
+     * Quality counts of a single thread. A stripe is only used by the thread
+     * it belongs to and therefore counts without any locking.
+     */
+    public static class Stripe {
+
+        private final long[] qualitycounts = new long[PHRED_MAX + 1];
+        private long totalcounts = 0;
+        private int tagCount = 0;
+        private int min = PHRED_MAX;
+        private int max = 0;
+        // base qualities above PHRED_MAX, counted as PHRED_MAX
+        private long clamped = 0;
+
+        /**
+         * Compute quality counts for the base qualities of a mapped read.
+         *
+         * @param qualities base qualities
+         */
+        public void count(byte[] qualities) {
+            tagCount++;
+            for (byte b : qualities) {
+                int qIndex = (int) b;
+                if (qIndex > PHRED_MAX) {
+                    clamped++;
+                    qIndex = PHRED_MAX;
+                }
+                qualitycounts[qIndex]++;
+
+                if (min > qIndex) {
+                    min = qIndex;
+                }
+                if (max < qIndex) {
+                    max = qIndex;
+                }
+            }
+            totalcounts += qualities.length;
+        }
+    }
 
     /**
      * Constructor.
@@ -41,6 +99,27 @@ public class QualityCounter {
         }
     }
 
+    /**
+     * Constructor restoring the counts of an earlier count before adjusting.
+     *
+     * @param qualitycounts number of bases for each quality
+     * @param totalcounts number of bases
+     * @param tagCount number of mapped reads
+     */
+    public QualityCounter(long[] qualitycounts, long totalcounts, int tagCount) {
+        System.arraycopy(qualitycounts, 0, this.qualitycounts, 0, this.qualitycounts.length);
+        this.totalcounts = totalcounts;
+        this.tagCount = tagCount;
+        for (int i = 0; i < this.qualitycounts.length; i++) {
+            if (this.qualitycounts[i] > 0) {
+                if (min > i) {
+                    min = i;
+                }
+                max = i;
+            }
+        }
+    }
+
     /**
      * Compute quality counts for a list of Read.
      *
@@ -92,33 +171,74 @@ public class QualityCounter {
     }
 
     /**
-     * Compute quality counts.
+     * Compute quality counts for the base qualities of a mapped read.
+     *
+     * @param baseQualities base qualities
+     */
+    public void count(
+            byte[] baseQualities
+    ) {
+        count(false, baseQualities);
+    }
+
+    /**
+     * Compute quality counts in the stripe of the calling thread.
      *
      * @param readUnmappedFlag unmapped flag
      * @param qualities base qualities
      */
-    synchronized private void count(
+    private void count(
             boolean readUnmappedFlag,
             byte[] qualities
     ) {
         if (readUnmappedFlag == false) {
-            tagCount++;
-            for (byte b : qualities) {
-                int qIndex = (int) b;
-                if (qIndex > PHRED_MAX) {
-                    System.err.println("PhredScore to high: " + qIndex);
-                    qIndex = PHRED_MAX;
-                }
-                qualitycounts[qIndex]++;
-                totalcounts++;
+            getStripe().count(qualities);
+        }
+    }
 
-                if (min > qIndex) {
-                    min = qIndex;
-                }
-                if (max < qIndex) {
-                    max = qIndex;
-                }
+    /**
+     * Get the quality counts of the calling thread. The counts of all threads
+     * are merged as soon as the counts are adjusted or read, i.e., all
+     * threads must have finished counting by then.
+     *
+     * @return stripe of calling thread
+     */
+    public Stripe getStripe() {
+        return localStripe.get();
+    }
+
+    /**
+     * Merge the counts of all threads into the counts of this counter and
+     * reset them.
+     */
+    public synchronized void merge() {
+        long clamped = 0;
+        for (Stripe stripe : stripes) {
+            if (stripe.tagCount == 0) {
+                continue;
             }
+            for (int i = 0; i < qualitycounts.length; i++) {
+                qualitycounts[i] += stripe.qualitycounts[i];
+                stripe.qualitycounts[i] = 0;
+            }
+            totalcounts += stripe.totalcounts;
+            tagCount += stripe.tagCount;
+            if (min > stripe.min) {
+                min = stripe.min;
+            }
+            if (max < stripe.max) {
+                max = stripe.max;
+            }
+            stripe.totalcounts = 0;
+            stripe.tagCount = 0;
+            stripe.min = PHRED_MAX;
+            stripe.max = 0;
+            clamped += stripe.clamped;
+            stripe.clamped = 0;
+        }
+        if (clamped > 0) {
+            Logger.getLogger("QualityCounter").log(Level.WARNING,
+                    "{0} base qualities above {1} counted as {1}", new Object[]{clamped, PHRED_MAX});
         }
     }
 
@@ -126,6 +246,7 @@ public class QualityCounter {
      * Adjust quality scale for different sequencing types
      */
     public void adjust() {
+        merge();
         if (max > 41) {
             // Illumina 1.3 or 1.5
             int current = 0;
@@ -138,19 +259,80 @@ public class QualityCounter {
         }
     }
 
-    public int[] getQualitycounts() {
+    public long[] getQualitycounts() {
+        merge();
         return qualitycounts;
     }
 
     public long getTotalcounts() {
+        merge();
         return totalcounts;
     }
 
     public int getTagCount() {
+        merge();
         return tagCount;
     }
 
+    public int getSampling() {
+        return sampling;
+    }
+
+    public void setSampling(int sampling) {
+        this.sampling = Math.max(1, sampling);
+    }
+
+    /**
+     * Get error bound of quality quantiles computed from sampled reads.
+     *
+     * With probability 0.95, the fraction of bases below any quality differs
+     * from the fraction in all reads by at most the returned value
+     * (Dvoretzky-Kiefer-Wolfowitz inequality). The bases of one read are
+     * correlated, so the expected number of sampled reads is used as sample
+     * size.
+     *
+     * @return maximal deviation of the fraction of bases below any quality,
+     * 0 if the qualities of all reads are counted
+     */
+    public double getQuantileError() {
+        if (sampling == 1) {
+            return 0.0;
+        }
+        double reads = Math.max(1.0, (double) getTagCount() / (double) sampling);
+        return Math.min(1.0, Math.sqrt(Math.log(2.0 / 0.05) / (2.0 * reads)));
+    }
+
+    /**
+     * Get median of quality counts after adjusting the quality scale as
+     * adjust() does, without changing the counts.
+     *
+     * @param qualitycounts number of bases for each quality
+     * @param totalcounts number of bases
+     * @return median quality
+     */
+    public static int getAdjustedMedian(long[] qualitycounts, long totalcounts) {
+        int max = qualitycounts.length - 1;
+        while (max > 0 && qualitycounts[max] == 0) {
+            max--;
+        }
+        // Illumina 1.3 or 1.5
+        int shift = max > 41 ? 31 : 0;
+        int last = max > 41 ? 41 : PHRED_MAX;
+
+        long medianSum = (long) (0.5 * totalcounts);
+        long sum = 0;
+        int medianQuality = 0;
+        while (medianQuality < last
+               && medianSum > (sum + qualitycounts[medianQuality + shift])) {
+            sum += qualitycounts[medianQuality + shift];
+            medianQuality++;
+        }
+
+        return medianQuality;
+    }
+
     public int getMedian() {
+        merge();
         //calculate median
         int medianSum = (int) (0.5 * totalcounts);
         int sum = 0;
@@ -18,6 +18,7 @@
 package biovis.sierra.data;
 
 import htsjdk.samtools.SAMRecord;
+import htsjdk.samtools.SAMUtils;
 
 /**
  *
@@ -45,6 +46,25 @@ public class Read {
         baseQualitiesASCII = record.getBaseQualityString();
     }
 
+    /**
+     * Constructor.
+     * @param start alignment start
+     * @param end alignment end
+     * @param unmappedFlag true iff the read is unmapped
+     * @param baseQualities base qualities
+     */
+    public Read(
+            int start,
+            int end,
+            boolean unmappedFlag,
+            byte[] baseQualities
+    ) {
+        this.start = start;
+        this.end = end;
+        this.unmappedFlag = unmappedFlag;
+        this.baseQualities = baseQualities;
+    }
+
     public int getStart() {
         return start;
     }
@@ -62,6 +82,9 @@ public class Read {
     }
 
     public String getBaseQualitiesASCII() {
+        if (baseQualitiesASCII == null && baseQualities != null) {
+            baseQualitiesASCII = SAMUtils.phredToFastq(baseQualities);
+        }
         return baseQualitiesASCII;
     }
 }
@@ -46,6 +46,8 @@ public class ReplicateDataSet {
     private int lowerQualityQuartile;
     private int minQuality;
     private int maxQuality;
+    // error bound of the quartiles if computed from sampled reads, 0 if exact
+    private double qualityError;
 
     private int tagCount;
 
@@ -55,6 +57,21 @@ public class ReplicateDataSet {
     public ReplicateDataSet() {
     }
 
+    /**
+     * Compute median, quartiles, min, max from quality counts after adjusting
+     * the quality scale, together with their error bound if the counts are
+     * sampled.
+     *
+     * @param qualityCounter quality counts
+     */
+    public void computeQuality(QualityCounter qualityCounter) {
+        qualityCounter.adjust();
+        computeQuality(qualityCounter.getTotalcounts(),
+                       qualityCounter.getQualitycounts(),
+                       qualityCounter.getTagCount());
+        setQualityError(qualityCounter.getQuantileError());
+    }
+
     /**
      * Compute median, quartiles, min, max from quality counts
      *
@@ -62,12 +79,12 @@ public class ReplicateDataSet {
      * @param qualitycounts quality count
      * @param tagCount tag count
      */
-    public void computeQuality(long totalcounts, int[] qualitycounts, int tagCount) {
+    public void computeQuality(long totalcounts, long[] qualitycounts, int tagCount) {
         this.tagCount = tagCount;
         //calculate quartiles, min, and max
-        int median = (int) (0.5 * totalcounts);
-        int lowerQuartile = (int) (0.25 * totalcounts);
-        int upperQuartile = (int) (0.75 * totalcounts);
+        long median = (long) (0.5 * totalcounts);
+        long lowerQuartile = (long) (0.25 * totalcounts);
+        long upperQuartile = (long) (0.75 * totalcounts);
         long curSum = 0;
         for (int i = 0; i < qualitycounts.length; i++) {
             if (curSum < lowerQuartile && lowerQuartile <= (curSum + qualitycounts[i])) {
@@ -224,6 +241,29 @@ public class ReplicateDataSet {
         return poissonDistribution.getPValue(lambda, counts);
     }
 
+    /**
+     * Compute p-values for a block of windows.
+     *
+     * @param lambdas lambda for each window
+     * @param counts counts for each window
+     * @param pvals p-value for each window
+     * @param length number of windows
+     */
+    public void getPValues(double[] lambdas, double[] counts, double[] pvals, int length) {
+        poissonDistribution.getPValues(lambdas, counts, pvals, length);
+    }
+
+    /**
+     * Get smallest count whose p-value is below the cutoff.
+     *
+     * @param lambda lambda
+     * @param cutoff p-value cutoff
+     * @return critical count
+     */
+    public int getCriticalCount(double lambda, double cutoff) {
+        return poissonDistribution.getCriticalCount(lambda, cutoff);
+    }
+
     /**
      * Get tag count histogram.
      *
@@ -300,6 +340,14 @@ public class ReplicateDataSet {
         this.maxQuality = maxQuality;
     }
 
+    public double getQualityError() {
+        return qualityError;
+    }
+
+    public void setQualityError(double qualityError) {
+        this.qualityError = qualityError;
+    }
+
     public int getTagCount() {
         return tagCount;
     }
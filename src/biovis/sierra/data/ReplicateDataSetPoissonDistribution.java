@@ -20,12 +20,25 @@ package biovis.sierra.data;
 
 import org.apache.commons.math3.distribution.PoissonDistribution;
 
+import java.util.Arrays;
+
 /**
  *
  * @author Lydia Mueller
  */
 public class ReplicateDataSetPoissonDistribution {
 
+    // upper tail probabilities computed by the current thread
+    private static final ThreadLocal<TailMemo> TAIL_MEMO = new ThreadLocal<TailMemo>() {
+        @Override
+        protected TailMemo initialValue() {
+            return new TailMemo();
+        }
+    };
+
+    // largest count searched for the critical count
+    private final static int MAX_CRITICAL_COUNT = 1 << 30;
+
     private transient PoissonDistribution poissonDistribution = null;
 
     /**
@@ -55,31 +68,128 @@ public class ReplicateDataSetPoissonDistribution {
     /**
      * Compute and return p-value.
      *
+     * Lambdas closer than 0.01 to the lambda of the data set use the
+     * distribution of the data set. The upper tail probabilities are computed
+     * by PoissonUpperTail and memoized per thread by lambda and count: in
+     * particular the neighborhood lambdas take few distinct values, so most
+     * p-values are looked up instead of being computed again.
+     *
      * @param lambda lambda
      * @param counts counts
      * @return p-value
      */
     public double getPValue(double lambda, double counts) {
-        double pval = 1.0;
+        int k = (int) Math.round(counts);
+        if (k < 0) {
+            // cumulative probability of a negative count is 0
+            return 1.0;
+        }
+        return getPValue(TAIL_MEMO.get(), snapLambda(lambda), k);
+    }
+
+    /**
+     * Compute p-values for a block of windows.
+     *
+     * @param lambdas lambda for each window
+     * @param counts counts for each window
+     * @param pvals p-value for each window
+     * @param length number of windows
+     */
+    public void getPValues(double[] lambdas, double[] counts, double[] pvals, int length) {
+        TailMemo memo = TAIL_MEMO.get();
+        for (int i = 0; i < length; ++i) {
+            int k = (int) Math.round(counts[i]);
+            pvals[i] = k < 0 ? 1.0 : getPValue(memo, snapLambda(lambdas[i]), k);
+        }
+    }
+
+    /**
+     * Replace lambdas closer than 0.01 to the lambda of the data set by the
+     * lambda of the data set.
+     *
+     * @param lambda lambda
+     * @return lambda used for the p-value
+     */
+    private double snapLambda(double lambda) {
         if (poissonDistribution != null &&
             Math.abs(poissonDistribution.getMean() - lambda) < 0.01) {
+            return poissonDistribution.getMean();
+        }
+        return lambda;
+    }
 
-            Double cum = poissonDistribution.cumulativeProbability((int) Math.round(counts));
-            if (cum.isNaN()) {
-                pval = 0.0; //if cummulative probability would be almost 1.0, apache may produce a NaN
-            } else {
-                pval -= cum;
-            }
+    /**
+     * Look up p-value in the memo, compute it if it is missing.
+     *
+     * @param memo memo of the current thread
+     * @param lambda lambda
+     * @param k count, not negative
+     * @return p-value
+     */
+    private static double getPValue(TailMemo memo, double lambda, int k) {
+        long lambdaBits = Double.doubleToLongBits(lambda);
+        int slot = TailMemo.slot(lambdaBits, k);
+        if (memo.counts[slot] == k && memo.lambdas[slot] == lambdaBits) {
+            return memo.pvals[slot];
+        }
+
+        double pval = PoissonUpperTail.upperTail(lambda, k);
+
+        memo.lambdas[slot] = lambdaBits;
+        memo.counts[slot] = k;
+        memo.pvals[slot] = pval;
+        return pval;
+    }
+
+    /**
+     * Get smallest count whose p-value is below the cutoff. The upper tail is
+     * monotone in the count, so getPValue(lambda, counts) &lt; cutoff iff the
+     * rounded count is at least the critical count. Critical counts are
+     * memoized per thread by lambda and cutoff.
+     *
+     * @param lambda lambda
+     * @param cutoff p-value cutoff
+     * @return critical count, Integer.MAX_VALUE if no count reaches the cutoff
+     */
+    public int getCriticalCount(double lambda, double cutoff) {
+        TailMemo memo = TAIL_MEMO.get();
+        long lambdaBits = Double.doubleToLongBits(lambda);
+        long cutoffBits = Double.doubleToLongBits(cutoff);
+        int slot = TailMemo.slot(lambdaBits, (int) cutoffBits);
+        if (memo.criticalLambdas[slot] == lambdaBits && memo.criticalCutoffs[slot] == cutoffBits) {
+            return memo.criticalCounts[slot];
+        }
+
+        int critical;
+        if (getPValue(lambda, 0) < cutoff) {
+            critical = 0;
         } else {
-            PoissonDistribution local = new PoissonDistribution(lambda);
-            Double cum = local.cumulativeProbability((int) Math.round(counts));
-            if (cum.isNaN()) {
-                pval = 0.0; //if cummulative probability would be almost 1.0, apache may produce a NaN
+            // p-value of lo is not below cutoff, p-value of hi is
+            int lo = 0;
+            int hi = 1;
+            while (hi < MAX_CRITICAL_COUNT && getPValue(lambda, hi) >= cutoff) {
+                lo = hi;
+                hi *= 2;
+            }
+            if (hi >= MAX_CRITICAL_COUNT) {
+                critical = Integer.MAX_VALUE;
             } else {
-                pval -= cum;
+                while (hi - lo > 1) {
+                    int mid = (lo + hi) >>> 1;
+                    if (getPValue(lambda, mid) < cutoff) {
+                        hi = mid;
+                    } else {
+                        lo = mid;
+                    }
+                }
+                critical = hi;
             }
         }
-        return pval;
+
+        memo.criticalLambdas[slot] = lambdaBits;
+        memo.criticalCutoffs[slot] = cutoffBits;
+        memo.criticalCounts[slot] = critical;
+        return critical;
     }
 
     /**
@@ -91,4 +201,43 @@ public class ReplicateDataSetPoissonDistribution {
     public double getProbability(int i) {
         return poissonDistribution.probability(i);
     }
+
+    /**
+     * Direct mapped memo of upper tail probabilities by lambda and count and
+     * of critical counts by lambda and cutoff. A colliding entry replaces the
+     * previous one, so the memo stays bounded.
+     */
+    private static class TailMemo {
+
+        private final static int BITS = 12;
+        private final static int SIZE = 1 << BITS;
+
+        final long[] lambdas = new long[SIZE];
+        final int[] counts = new int[SIZE];
+        final double[] pvals = new double[SIZE];
+
+        final long[] criticalLambdas = new long[SIZE];
+        final long[] criticalCutoffs = new long[SIZE];
+        final int[] criticalCounts = new int[SIZE];
+
+        TailMemo() {
+            // no valid entry has a negative count
+            Arrays.fill(counts, -1);
+            // bits of a non canonical NaN, never returned by doubleToLongBits
+            Arrays.fill(criticalCutoffs, -1L);
+        }
+
+        /**
+         * Get slot of lambda and count.
+         *
+         * @param lambdaBits bits of lambda
+         * @param k count
+         * @return slot
+         */
+        static int slot(long lambdaBits, int k) {
+            long h = (lambdaBits ^ (lambdaBits >>> 29)) * 0x9E3779B97F4A7C15L + k;
+            h *= 0xC2B2AE3D27D4EB4FL;
+            return (int) (h >>> (64 - BITS));
+        }
+    }
 }
@@ -0,0 +1,230 @@
+/**
+ *****************************************************************************
+ * Copyright (c) 2015 Daniel Gerighausen, Lydia Mueller, and Dirk Zeckzer
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ ******************************************************************************
+ */
+package biovis.sierra.data.windows;
+
+import biovis.sierra.data.Replicate;
+import java.util.List;
+
+/**
+ * Neighborhood lambdas of the control data sets for several neighborhood
+ * ranges at once.
+ *
+ * Prefix sums of the control tag counts are computed once for the windows of
+ * a chromosome. The neighbors of a window are found with one pair of
+ * pointers per range, and the tag sum of the neighborhood is the difference
+ * of two prefix sums.
+ *
+ * The pointers are stored at the start of each block of windows. A cursor
+ * starting at a block continues from these pointers, so blocks can be
+ * processed independently and in any order. The neighborhoods of windows at
+ * the block edges extend into the adjacent blocks (the halo) through the
+ * prefix sums of the whole chromosome, hence their lambdas are the same as
+ * for a single pass over the chromosome.
+ *
+ * @author Dirk Zeckzer
+ */
+public class NeighborhoodLambdas {
+
+    private final int[] ranges;
+    private final int[] controlTags;
+
+    private final int size;
+    private final int[] starts;
+    private final int[] ends;
+    // prefix sums of tag counts for each control data set
+    private final double[][] prefixTags;
+
+    // first and last neighbor for each range at the start of each block
+    private final int blockSize;
+    private final int[][] blockFirstNeighbor;
+    private final int[][] blockLastNeighbor;
+
+    /**
+     * Neighbors of consecutive windows. Windows have to be requested in
+     * increasing order.
+     */
+    public class Cursor {
+
+        // first and last neighbor for each range
+        private final int[] firstNeighbor;
+        private final int[] lastNeighbor;
+        // next window whose neighbors are not known yet
+        private int next;
+
+        /**
+         * Constructor.
+         *
+         * @param block block to start with
+         */
+        private Cursor(int block) {
+            firstNeighbor = blockFirstNeighbor[block].clone();
+            lastNeighbor = blockLastNeighbor[block].clone();
+            next = block * blockSize;
+        }
+
+        /**
+         * Compute maximal lambda over all neighborhood ranges for a window.
+         *
+         * @param windowIndex index of window in the window list of the
+         * chromosome
+         * @param lambda receives the lambda of each control data set, indexed
+         * by data set
+         */
+        public void computeMaxLambda(
+                int windowIndex,
+                double[] lambda
+        ) {
+            while (next <= windowIndex) {
+                advance(next++, firstNeighbor, lastNeighbor);
+            }
+
+            for (int r = 0; r < ranges.length; ++r) {
+                int first = firstNeighbor[r];
+                int last = lastNeighbor[r];
+                double count = last - first + 1.0;
+                for (int c = 0; c < controlTags.length; ++c) {
+                    double neighborhood = (prefixTags[c][last + 1] - prefixTags[c][first]) / count;
+                    if (r == 0 || lambda[controlTags[c]] < neighborhood) {
+                        lambda[controlTags[c]] = neighborhood;
+                    }
+                }
+            }
+            if (ranges.length == 0) {
+                for (int c = 0; c < controlTags.length; ++c) {
+                    lambda[controlTags[c]] = 0.0;
+                }
+            }
+        }
+    }
+
+    /**
+     * Constructor
+     *
+     * @param windows window list
+     * @param firstWindow first window of one chromosome
+     * @param endWindow last window of the chromosome + 1
+     * @param ranges sizes of neighborhoods
+     * @param replicates replicate list
+     * @param blockSize number of windows per block
+     */
+    public NeighborhoodLambdas(
+            WindowList windows,
+            int firstWindow,
+            int endWindow,
+            int[] ranges,
+            List<Replicate> replicates,
+            int blockSize
+    ) {
+        this.ranges = ranges.clone();
+        this.blockSize = blockSize;
+        controlTags = new int[replicates.size()];
+        for (int r = 0; r < controlTags.length; ++r) {
+            controlTags[r] = replicates.get(r).getBackground().getIndex();
+        }
+
+        size = endWindow - firstWindow;
+        starts = new int[size];
+        ends = new int[size];
+        prefixTags = new double[controlTags.length][size + 1];
+        for (int index = 0; index < size; ++index) {
+            starts[index] = windows.getStart(firstWindow + index);
+            ends[index] = windows.getEnd(firstWindow + index);
+            for (int c = 0; c < controlTags.length; ++c) {
+                prefixTags[c][index + 1] = prefixTags[c][index] + windows.getTagCount(controlTags[c], firstWindow + index);
+            }
+        }
+
+        // pointers at the start of each block
+        int blocks = getNumberOfBlocks();
+        blockFirstNeighbor = new int[blocks][];
+        blockLastNeighbor = new int[blocks][];
+        int[] firstNeighbor = new int[ranges.length];
+        int[] lastNeighbor = new int[ranges.length];
+        for (int windowIndex = 0; windowIndex < size; ++windowIndex) {
+            if (windowIndex % blockSize == 0) {
+                blockFirstNeighbor[windowIndex / blockSize] = firstNeighbor.clone();
+                blockLastNeighbor[windowIndex / blockSize] = lastNeighbor.clone();
+            }
+            advance(windowIndex, firstNeighbor, lastNeighbor);
+        }
+    }
+
+    /**
+     * Get number of blocks.
+     *
+     * @return number of blocks
+     */
+    public int getNumberOfBlocks() {
+        return (size + blockSize - 1) / blockSize;
+    }
+
+    /**
+     * Get number of windows per block.
+     *
+     * @return number of windows per block
+     */
+    public int getBlockSize() {
+        return blockSize;
+    }
+
+    /**
+     * Get cursor starting at the first window of a block.
+     *
+     * @param block block
+     * @return cursor
+     */
+    public Cursor getCursor(int block) {
+        return new Cursor(block);
+    }
+
+    /**
+     * Move neighbor pointers to the neighbors of a window.
+     *
+     * @param windowIndex window
+     * @param firstNeighbor first neighbor for each range
+     * @param lastNeighbor last neighbor for each range
+     */
+    private void advance(
+            int windowIndex,
+            int[] firstNeighbor,
+            int[] lastNeighbor
+    ) {
+        int windowStart = starts[windowIndex];
+        int windowEnd = ends[windowIndex];
+        int windowSize = windowEnd - windowStart + 1;
+        for (int r = 0; r < ranges.length; ++r) {
+            // distance to neighbor window
+            int distance = (ranges[r] - windowSize) / 2;
+
+            // advance first neighbor, must be less than or equal to the current window
+            int first = firstNeighbor[r];
+            while (first < windowIndex
+                   && windowStart - ends[first] > distance) {
+                ++first;
+            }
+            firstNeighbor[r] = first;
+
+            int last = lastNeighbor[r];
+            while (last + 1 < size
+                   && starts[last + 1] - windowEnd <= distance) {
+                ++last;
+            }
+            lastNeighbor[r] = last;
+        }
+    }
+}
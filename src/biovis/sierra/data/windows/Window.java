@@ -51,6 +51,13 @@ public class Window
     //combined p-value
     private transient double finalPValue;
 
+    /**
+     * Constructor for subclasses keeping their data elsewhere, e.g., views
+     * on a columnar window list.
+     */
+    protected Window() {
+    }
+
     /**
      * window object for given genomic location
      * @param chr chromosome on which window is located
@@ -233,4 +240,13 @@ public class Window
     	if(replicate >= this.pValues.length)finalPValue  = pval;
     	else pValues[replicate] = pval;
     }
+
+    /**
+     * Get window holding its own data, e.g., for serialization.
+     *
+     * @return this window
+     */
+    public Window detach() {
+        return this;
+    }
 }
@@ -0,0 +1,547 @@
+/**
+ *****************************************************************************
+ * Copyright (c) 2015 Daniel Gerighausen, Lydia Mueller, and Dirk Zeckzer
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ ******************************************************************************
+ */
+package biovis.sierra.data.windows;
+
+import biovis.sierra.data.DataMapper;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * Storage for the columns of a columnar window list.
+ *
+ * Columns are either plain arrays on the heap or memory mapped files in a
+ * scratch directory. Mapped columns are paged in and out by the operating
+ * system, hence the heap size does not depend on the number of windows.
+ * Columns are written and read in big endian byte order in both cases.
+ *
+ * @author Lydia Mueller, Dirk Zeckzer
+ */
+public abstract class WindowColumnStorage {
+
+    // elements per mapped segment, a single mapping is limited to 2 GB
+    private static final int SEGMENT_SHIFT = 26;
+    private static final int SEGMENT_ELEMENTS = 1 << SEGMENT_SHIFT;
+    private static final int SEGMENT_MASK = SEGMENT_ELEMENTS - 1;
+
+    // block size for copying heap columns
+    private static final int BLOCK_ELEMENTS = 1 << 16;
+
+    /**
+     * Create column of int values.
+     *
+     * @param name column name
+     * @return column
+     */
+    public abstract IntColumn createIntColumn(String name);
+
+    /**
+     * Create column of double values.
+     *
+     * @param name column name
+     * @param initialValue value of new elements
+     * @return column
+     */
+    public abstract DoubleColumn createDoubleColumn(String name, double initialValue);
+
+    /**
+     * Release all columns created by this storage. The columns must not be
+     * used afterwards.
+     */
+    public abstract void close();
+
+    /**
+     * Get storage selected in the data mapper.
+     *
+     * @param mapper data mapper
+     * @return storage
+     */
+    public static WindowColumnStorage create(DataMapper mapper) {
+        if ("mapped".equals(mapper.getWindowStore())) {
+            return mapped(mapper.getScratchDirectory());
+        }
+        return heap();
+    }
+
+    /**
+     * Get storage on the heap.
+     *
+     * @return heap storage
+     */
+    public static WindowColumnStorage heap() {
+        return new HeapStorage();
+    }
+
+    /**
+     * Get storage in memory mapped files. The files are placed in a new
+     * directory inside the scratch directory and deleted on close, or on
+     * exit at the latest.
+     *
+     * @param scratch scratch directory, system temporary directory if empty
+     * @return mapped storage
+     */
+    public static WindowColumnStorage mapped(String scratch) {
+        try {
+            File parent = scratch == null || scratch.isEmpty()
+                          ? new File(System.getProperty("java.io.tmpdir"))
+                          : new File(scratch);
+            File directory = File.createTempFile("sierra-windows-", "", parent);
+            if (!directory.delete() || !directory.mkdirs()) {
+                throw new IOException("Cannot create scratch directory " + directory);
+            }
+            directory.deleteOnExit();
+            return new MappedStorage(directory);
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+    }
+
+    /**
+     * Column of int values.
+     */
+    public abstract static class IntColumn {
+
+        public abstract int get(int index);
+
+        public abstract void set(int index, int value);
+
+        /**
+         * Change capacity keeping the first elements.
+         *
+         * @param capacity new capacity
+         */
+        public abstract void resize(int capacity);
+
+        /**
+         * Write first elements to channel.
+         *
+         * @param out channel
+         * @param size number of elements
+         * @throws IOException if writing fails
+         */
+        public abstract void writeTo(FileChannel out, int size) throws IOException;
+
+        /**
+         * Read first elements from channel, capacity must suffice.
+         *
+         * @param in channel
+         * @param size number of elements
+         * @throws IOException if reading fails
+         */
+        public abstract void readFrom(FileChannel in, int size) throws IOException;
+    }
+
+    /**
+     * Column of double values.
+     */
+    public abstract static class DoubleColumn {
+
+        public abstract double get(int index);
+
+        public abstract void set(int index, double value);
+
+        /**
+         * Change capacity keeping the first elements. New elements are set
+         * to the initial value of the column.
+         *
+         * @param capacity new capacity
+         */
+        public abstract void resize(int capacity);
+
+        /**
+         * Write first elements to channel.
+         *
+         * @param out channel
+         * @param size number of elements
+         * @throws IOException if writing fails
+         */
+        public abstract void writeTo(FileChannel out, int size) throws IOException;
+
+        /**
+         * Read first elements from channel, capacity must suffice.
+         *
+         * @param in channel
+         * @param size number of elements
+         * @throws IOException if reading fails
+         */
+        public abstract void readFrom(FileChannel in, int size) throws IOException;
+    }
+
+    /**
+     * Columns as arrays on the heap.
+     */
+    private static class HeapStorage
+            extends WindowColumnStorage {
+
+        @Override
+        public void close() {
+            // arrays are released by the garbage collector
+        }
+
+        @Override
+        public IntColumn createIntColumn(String name) {
+            return new IntColumn() {
+                private int[] values = new int[0];
+
+                @Override
+                public int get(int index) {
+                    return values[index];
+                }
+
+                @Override
+                public void set(int index, int value) {
+                    values[index] = value;
+                }
+
+                @Override
+                public void resize(int capacity) {
+                    values = Arrays.copyOf(values, capacity);
+                }
+
+                @Override
+                public void writeTo(FileChannel out, int size) throws IOException {
+                    ByteBuffer buffer = ByteBuffer.allocate(4 * BLOCK_ELEMENTS);
+                    for (int first = 0; first < size; first += BLOCK_ELEMENTS) {
+                        int last = Math.min(size, first + BLOCK_ELEMENTS);
+                        buffer.clear();
+                        buffer.asIntBuffer().put(values, first, last - first);
+                        buffer.limit(4 * (last - first));
+                        writeFully(out, buffer);
+                    }
+                }
+
+                @Override
+                public void readFrom(FileChannel in, int size) throws IOException {
+                    ByteBuffer buffer = ByteBuffer.allocate(4 * BLOCK_ELEMENTS);
+                    for (int first = 0; first < size; first += BLOCK_ELEMENTS) {
+                        int last = Math.min(size, first + BLOCK_ELEMENTS);
+                        buffer.clear();
+                        buffer.limit(4 * (last - first));
+                        readFully(in, buffer);
+                        buffer.flip();
+                        buffer.asIntBuffer().get(values, first, last - first);
+                    }
+                }
+            };
+        }
+
+        @Override
+        public DoubleColumn createDoubleColumn(String name, final double initialValue) {
+            return new DoubleColumn() {
+                private double[] values = new double[0];
+
+                @Override
+                public double get(int index) {
+                    return values[index];
+                }
+
+                @Override
+                public void set(int index, double value) {
+                    values[index] = value;
+                }
+
+                @Override
+                public void resize(int capacity) {
+                    int length = values.length;
+                    values = Arrays.copyOf(values, capacity);
+                    if (length < capacity && initialValue != 0.0) {
+                        Arrays.fill(values, length, capacity, initialValue);
+                    }
+                }
+
+                @Override
+                public void writeTo(FileChannel out, int size) throws IOException {
+                    ByteBuffer buffer = ByteBuffer.allocate(8 * BLOCK_ELEMENTS);
+                    for (int first = 0; first < size; first += BLOCK_ELEMENTS) {
+                        int last = Math.min(size, first + BLOCK_ELEMENTS);
+                        buffer.clear();
+                        buffer.asDoubleBuffer().put(values, first, last - first);
+                        buffer.limit(8 * (last - first));
+                        writeFully(out, buffer);
+                    }
+                }
+
+                @Override
+                public void readFrom(FileChannel in, int size) throws IOException {
+                    ByteBuffer buffer = ByteBuffer.allocate(8 * BLOCK_ELEMENTS);
+                    for (int first = 0; first < size; first += BLOCK_ELEMENTS) {
+                        int last = Math.min(size, first + BLOCK_ELEMENTS);
+                        buffer.clear();
+                        buffer.limit(8 * (last - first));
+                        readFully(in, buffer);
+                        buffer.flip();
+                        buffer.asDoubleBuffer().get(values, first, last - first);
+                    }
+                }
+            };
+        }
+    }
+
+    /**
+     * Columns as memory mapped files.
+     */
+    private static class MappedStorage
+            extends WindowColumnStorage {
+
+        private final File directory;
+        private final List<MappedFile> files = new ArrayList<>();
+
+        MappedStorage(File directory) {
+            this.directory = directory;
+        }
+
+        /**
+         * Create mapped file of a column.
+         *
+         * @param name column name
+         * @param elementSize size of an element in bytes
+         * @return mapped file
+         */
+        private synchronized MappedFile createFile(String name, int elementSize) {
+            MappedFile file = new MappedFile(new File(directory, name + ".col"), elementSize);
+            files.add(file);
+            return file;
+        }
+
+        @Override
+        public synchronized void close() {
+            IOException failure = null;
+            for (MappedFile file : files) {
+                try {
+                    file.close();
+                } catch (IOException e) {
+                    failure = e;
+                }
+            }
+            files.clear();
+            if (!directory.delete() && directory.exists()) {
+                failure = new IOException("Cannot delete scratch directory " + directory);
+            }
+            if (failure != null) {
+                throw new UncheckedIOException(failure);
+            }
+        }
+
+        @Override
+        public IntColumn createIntColumn(String name) {
+            final MappedFile file = createFile(name, 4);
+            return new IntColumn() {
+                @Override
+                public int get(int index) {
+                    return file.segments[index >>> SEGMENT_SHIFT].getInt((index & SEGMENT_MASK) << 2);
+                }
+
+                @Override
+                public void set(int index, int value) {
+                    file.segments[index >>> SEGMENT_SHIFT].putInt((index & SEGMENT_MASK) << 2, value);
+                }
+
+                @Override
+                public void resize(int capacity) {
+                    file.resize(capacity);
+                }
+
+                @Override
+                public void writeTo(FileChannel out, int size) throws IOException {
+                    file.writeTo(out, size);
+                }
+
+                @Override
+                public void readFrom(FileChannel in, int size) throws IOException {
+                    file.readFrom(in, size);
+                }
+            };
+        }
+
+        @Override
+        public DoubleColumn createDoubleColumn(String name, final double initialValue) {
+            final MappedFile file = createFile(name, 8);
+            return new DoubleColumn() {
+                @Override
+                public double get(int index) {
+                    return file.segments[index >>> SEGMENT_SHIFT].getDouble((index & SEGMENT_MASK) << 3);
+                }
+
+                @Override
+                public void set(int index, double value) {
+                    file.segments[index >>> SEGMENT_SHIFT].putDouble((index & SEGMENT_MASK) << 3, value);
+                }
+
+                @Override
+                public void resize(int capacity) {
+                    int length = file.capacity;
+                    file.resize(capacity);
+                    if (initialValue != 0.0) {
+                        for (int i = length; i < capacity; i++) {
+                            set(i, initialValue);
+                        }
+                    }
+                }
+
+                @Override
+                public void writeTo(FileChannel out, int size) throws IOException {
+                    file.writeTo(out, size);
+                }
+
+                @Override
+                public void readFrom(FileChannel in, int size) throws IOException {
+                    file.readFrom(in, size);
+                }
+            };
+        }
+    }
+
+    /**
+     * File mapped segment by segment.
+     */
+    private static class MappedFile {
+
+        private final File file;
+        private final int elementSize;
+        private final FileChannel channel;
+        private MappedByteBuffer[] segments = new MappedByteBuffer[0];
+        private int capacity = 0;
+
+        MappedFile(File file, int elementSize) {
+            this.file = file;
+            this.elementSize = elementSize;
+            try {
+                file.deleteOnExit();
+                channel = new RandomAccessFile(file, "rw").getChannel();
+            } catch (IOException e) {
+                throw new UncheckedIOException(e);
+            }
+        }
+
+        /**
+         * Map segments such that at least capacity elements are available.
+         * Shrinking keeps the mapping.
+         *
+         * @param capacity new capacity
+         */
+        void resize(int capacity) {
+            int needed = (int) (((long) capacity + SEGMENT_ELEMENTS - 1) >>> SEGMENT_SHIFT);
+            if (needed > segments.length) {
+                MappedByteBuffer[] mapped = Arrays.copyOf(segments, needed);
+                try {
+                    for (int segment = segments.length; segment < needed; segment++) {
+                        long bytes = (long) SEGMENT_ELEMENTS * elementSize;
+                        // mapping beyond the end extends the (sparse) file
+                        mapped[segment] = channel.map(FileChannel.MapMode.READ_WRITE, segment * bytes, bytes);
+                    }
+                } catch (IOException e) {
+                    throw new UncheckedIOException("Cannot map " + file, e);
+                }
+                segments = mapped;
+            }
+            this.capacity = Math.max(this.capacity, capacity);
+        }
+
+        /**
+         * Copy first elements of the file to channel.
+         *
+         * @param out channel
+         * @param size number of elements
+         * @throws IOException if copying fails
+         */
+        void writeTo(FileChannel out, int size) throws IOException {
+            for (MappedByteBuffer segment : segments) {
+                segment.force();
+            }
+            long bytes = (long) size * elementSize;
+            long position = 0;
+            while (position < bytes) {
+                position += channel.transferTo(position, bytes - position, out);
+            }
+        }
+
+        /**
+         * Close the channel, drop the mappings and delete the file. The
+         * mapped memory is released as soon as the dropped mappings are
+         * garbage collected.
+         *
+         * @throws IOException if closing fails
+         */
+        void close() throws IOException {
+            segments = new MappedByteBuffer[0];
+            capacity = 0;
+            try {
+                channel.close();
+            } finally {
+                if (!file.delete() && file.exists()) {
+                    throw new IOException("Cannot delete " + file);
+                }
+            }
+        }
+
+        /**
+         * Copy elements from channel into the file, capacity must suffice.
+         *
+         * @param in channel
+         * @param size number of elements
+         * @throws IOException if copying fails
+         */
+        void readFrom(FileChannel in, int size) throws IOException {
+            long bytes = (long) size * elementSize;
+            long position = 0;
+            while (position < bytes) {
+                long read = channel.transferFrom(in, position, bytes - position);
+                if (read <= 0) {
+                    throw new IOException("Unexpected end of column " + file);
+                }
+                position += read;
+            }
+        }
+    }
+
+    /**
+     * Write buffer completely.
+     *
+     * @param out channel
+     * @param buffer buffer
+     * @throws IOException if writing fails
+     */
+    private static void writeFully(FileChannel out, ByteBuffer buffer) throws IOException {
+        while (buffer.hasRemaining()) {
+            out.write(buffer);
+        }
+    }
+
+    /**
+     * Fill buffer completely.
+     *
+     * @param in channel
+     * @param buffer buffer
+     * @throws IOException if reading fails
+     */
+    private static void readFully(FileChannel in, ByteBuffer buffer) throws IOException {
+        while (buffer.hasRemaining()) {
+            if (in.read(buffer) < 0) {
+                throw new IOException("Unexpected end of column");
+            }
+        }
+    }
+}
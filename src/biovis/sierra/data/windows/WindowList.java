@@ -139,6 +139,139 @@ public class WindowList
         }
     }
 
+    /**
+     * Window accessors by index. Loops over all windows should use these
+     * instead of window objects, since window lists not holding Window
+     * objects create a view per window.
+     */
+    /**
+     * get chromosome of window
+     *
+     * @param index window index
+     * @return chromosome
+     */
+    public String getChr(int index) {
+        return windows.get(index).getChr();
+    }
+
+    /**
+     * get start of window
+     *
+     * @param index window index
+     * @return start position
+     */
+    public int getStart(int index) {
+        return windows.get(index).getStart();
+    }
+
+    /**
+     * get end of window
+     *
+     * @param index window index
+     * @return end position
+     */
+    public int getEnd(int index) {
+        return windows.get(index).getEnd();
+    }
+
+    /**
+     * get tag count of window for data set
+     *
+     * @param dataset data set
+     * @param index window index
+     * @return tag count
+     */
+    public double getTagCount(int dataset, int index) {
+        return windows.get(index).getTagCount(dataset);
+    }
+
+    /**
+     * set tag count of window for data set
+     *
+     * @param dataset data set
+     * @param index window index
+     * @param tagCount tag count
+     */
+    public void setTagCount(int dataset, int index, double tagCount) {
+        windows.get(index).setTagCount(dataset, tagCount);
+    }
+
+    /**
+     * get raw p-value of window for replicate, the number of replicates
+     * selects the combined raw p-value
+     *
+     * @param replicate replicate
+     * @param index window index
+     * @return raw p-value
+     */
+    public double getRawPValue(int replicate, int index) {
+        return windows.get(index).generalGetRawPValue(replicate);
+    }
+
+    /**
+     * set raw p-value of window for replicate
+     *
+     * @param replicate replicate
+     * @param index window index
+     * @param pValue raw p-value
+     */
+    public void setRawPValue(int replicate, int index, double pValue) {
+        windows.get(index).setRawPValue(replicate, pValue);
+    }
+
+    /**
+     * set combined raw p-value of window
+     *
+     * @param index window index
+     * @param pValue combined raw p-value
+     */
+    public void setFinalRawPValue(int index, double pValue) {
+        windows.get(index).setFinalRawPValue(pValue);
+    }
+
+    /**
+     * get p-value of window for replicate, the number of replicates selects
+     * the combined p-value
+     *
+     * @param replicate replicate
+     * @param index window index
+     * @return p-value
+     */
+    public double getPValue(int replicate, int index) {
+        Window w = windows.get(index);
+        double[] pValues = w.getPValueList();
+        return replicate < pValues.length ? pValues[replicate] : w.getFinalPValue();
+    }
+
+    /**
+     * set p-value of window for replicate, the number of replicates selects
+     * the combined p-value
+     *
+     * @param replicate replicate
+     * @param index window index
+     * @param pValue p-value
+     */
+    public void setPValue(int replicate, int index, double pValue) {
+        windows.get(index).generalSetPValue(pValue, replicate);
+    }
+
+    /**
+     * get combined p-value of window
+     *
+     * @param index window index
+     * @return combined p-value
+     */
+    public double getFinalPValue(int index) {
+        return windows.get(index).getFinalPValue();
+    }
+
+    /**
+     * Release resources held by the window list, e.g., memory mapped files.
+     * The window list must not be used afterwards.
+     */
+    public void close() {
+    }
+
     /**
      * get number of windows
      *
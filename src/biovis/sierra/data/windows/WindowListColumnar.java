@@ -0,0 +1,588 @@
+/**
+ *****************************************************************************
+ * Copyright (c) 2015 Daniel Gerighausen, Lydia Mueller, and Dirk Zeckzer
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ ******************************************************************************
+ */
+package biovis.sierra.data.windows;
+
+import biovis.sierra.data.DataMapper;
+import biovis.sierra.data.Replicate;
+import biovis.sierra.data.windows.WindowColumnStorage.DoubleColumn;
+import biovis.sierra.data.windows.WindowColumnStorage.IntColumn;
+import biovislib.parallel4.IterationInt;
+import biovislib.parallel4.Parallel2;
+import biovislib.parallel4.ParallelForInt2;
+import biovislib.parallel4.ParallelizationFactory;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.channels.FileChannel;
+import java.util.AbstractList;
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.RandomAccess;
+
+/**
+ * Window list storing all windows column by column.
+ *
+ * Windows are sorted by chromosome and start. For each window, start and
+ * end, the tag count of each data set, the p-values of each replicate, and
+ * the combined p-values are stored in separate columns. Columns are either
+ * primitive arrays on the heap or memory mapped files, see
+ * WindowColumnStorage. The windows returned by the accessors are light
+ * weight views on these columns, hence no Window object is kept per window.
+ * Views must not be compared by identity. Loops over many windows should use
+ * the index based accessors, which access the columns directly.
+ *
+ * @author Lydia Mueller, Dirk Zeckzer
+ */
+public class WindowListColumnar
+        extends WindowList {
+
+    private static final int INITIAL_CAPACITY = 1024;
+
+    // file containing size and chromosomes of exported columns
+    private static final String INDEX_FILE = "columns.idx";
+    // file containing all exported columns one after the other
+    private static final String COLUMNS_FILE = "columns.bin";
+
+    private final int numberOfTags;
+    private final int numberOfReplicates;
+
+    private int size = 0;
+    private int capacity = 0;
+
+    // chromosomes in order and index of their first window
+    private String[] chromosomes = new String[0];
+    private int[] chromosomeFirst = new int[0];
+    // chromosome of the last getChr, only a hint, hence not synchronized
+    private int lastChromosome = 0;
+
+    private final IntColumn starts;
+    private final IntColumn ends;
+    // tag counts indexed by data set
+    private final DoubleColumn[] tags;
+    // p-values indexed by replicate
+    private final DoubleColumn[] rawPValues;
+    private final DoubleColumn[] pValues;
+    // combined p-values
+    private final DoubleColumn finalRawPValues;
+    private final DoubleColumn finalPValues;
+
+    private final WindowColumnStorage storage;
+    private final List<Window> view = new WindowView();
+
+    /**
+     * Constructor for window list on the heap
+     *
+     * @param numberOfTags number of data sets
+     * @param numberOfReplicates number of replicates
+     */
+    public WindowListColumnar(int numberOfTags, int numberOfReplicates) {
+        this(numberOfTags, numberOfReplicates, WindowColumnStorage.heap());
+    }
+
+    /**
+     * Constructor for window list
+     *
+     * @param numberOfTags number of data sets
+     * @param numberOfReplicates number of replicates
+     * @param storage storage of columns
+     */
+    public WindowListColumnar(int numberOfTags, int numberOfReplicates, WindowColumnStorage storage) {
+        super();
+        this.numberOfTags = numberOfTags;
+        this.numberOfReplicates = numberOfReplicates;
+        this.storage = storage;
+
+        starts = storage.createIntColumn("start");
+        ends = storage.createIntColumn("end");
+        tags = new DoubleColumn[numberOfTags];
+        for (int i = 0; i < numberOfTags; i++) {
+            tags[i] = storage.createDoubleColumn("tags-" + i, 0.0);
+        }
+        // by default not significant at all
+        rawPValues = new DoubleColumn[numberOfReplicates];
+        pValues = new DoubleColumn[numberOfReplicates];
+        for (int i = 0; i < numberOfReplicates; i++) {
+            rawPValues[i] = storage.createDoubleColumn("rawPValues-" + i, 1.0);
+            pValues[i] = storage.createDoubleColumn("pValues-" + i, 1.0);
+        }
+        finalRawPValues = storage.createDoubleColumn("finalRawPValue", 1.0);
+        finalPValues = storage.createDoubleColumn("finalPValue", 1.0);
+
+        allocate(INITIAL_CAPACITY);
+    }
+
+    /**
+     * Allocate columns for the given number of windows keeping all windows
+     * stored so far.
+     *
+     * @param capacity number of windows
+     */
+    protected final void allocate(int capacity) {
+        capacity = Math.max(capacity, size);
+        starts.resize(capacity);
+        ends.resize(capacity);
+        for (DoubleColumn column : tags) {
+            column.resize(capacity);
+        }
+        for (int i = 0; i < numberOfReplicates; i++) {
+            rawPValues[i].resize(capacity);
+            pValues[i].resize(capacity);
+        }
+        finalRawPValues.resize(capacity);
+        finalPValues.resize(capacity);
+        this.capacity = capacity;
+    }
+
+    /**
+     * Append window, windows have to be appended sorted by chromosome and
+     * start. All tag counts are 0 and all p-values are 1.
+     *
+     * @param chr chromosome
+     * @param start start position
+     * @param end end position
+     * @return index of window
+     */
+    public int appendWindow(String chr, int start, int end) {
+        if (size == capacity) {
+            allocate(2 * size);
+        }
+        int last = chromosomes.length - 1;
+        if (last < 0 || !chromosomes[last].equals(chr)) {
+            chromosomes = Arrays.copyOf(chromosomes, last + 2);
+            chromosomes[last + 1] = chr;
+            chromosomeFirst = Arrays.copyOf(chromosomeFirst, last + 2);
+            chromosomeFirst[last + 1] = size;
+        }
+        starts.set(size, start);
+        ends.set(size, end);
+        return size++;
+    }
+
+    /**
+     * Append copy of window.
+     *
+     * @param w window object that will be added to list of windows
+     */
+    @Override
+    public void addWindow(Window w) {
+        int index = appendWindow(w.getChr(), w.getStart(), w.getEnd());
+        for (int i = 0; i < numberOfTags; i++) {
+            tags[i].set(index, w.getTagCount(i));
+        }
+        double[] windowPValues = w.getPValueList();
+        for (int i = 0; i < numberOfReplicates; i++) {
+            rawPValues[i].set(index, w.generalGetRawPValue(i));
+            pValues[i].set(index, windowPValues[i]);
+        }
+        finalRawPValues.set(index, w.generalGetRawPValue(numberOfReplicates));
+        finalPValues.set(index, w.getFinalPValue());
+    }
+
+    /**
+     * Release unused capacity and compute the chromosome ranges.
+     */
+    @Override
+    public void init() {
+        if (size < capacity) {
+            allocate(size);
+        }
+        chromosomeMap = new LinkedHashMap<>();
+        for (int i = 0; i < chromosomes.length; i++) {
+            int last = i + 1 < chromosomes.length ? chromosomeFirst[i + 1] : size;
+            chromosomeMap.put(chromosomes[i], new ChromosomeWindowRange(chromosomeFirst[i], last));
+        }
+    }
+
+    @Override
+    public void scaleAllExperiments(DataMapper mapper) {
+        final List<Replicate> replicates = mapper.getReplicates();
+        Parallel2 p2 = ParallelizationFactory.getInstance(mapper.getNumCores());
+        new ParallelForInt2(p2, 0, size).loop(
+                new IterationInt() {
+            @Override
+            public void iteration(int index) {
+                scale(index, replicates);
+            }
+        });
+    }
+
+    /**
+     * Scale tag counts of all experiments of a window.
+     *
+     * @param index window index
+     * @param replicates list of replicates
+     */
+    private void scale(int index, List<Replicate> replicates) {
+        for (Replicate replicate : replicates) {
+            DoubleColumn column = tags[replicate.getExperiment().getIndex()];
+            column.set(index, column.get(index) * replicate.getScalingFactor());
+        }
+    }
+
+    /**
+     * Release the columns, the window list must not be used afterwards.
+     */
+    @Override
+    public void close() {
+        size = 0;
+        capacity = 0;
+        storage.close();
+    }
+
+    @Override
+    public List<Window> getWindows() {
+        return view;
+    }
+
+    @Override
+    public List<Window> getWindows(
+            int start,
+            int end
+    ) {
+        return view.subList(start, Math.min(end, size));
+    }
+
+    @Override
+    public int getSize() {
+        return size;
+    }
+
+    @Override
+    public String toString() {
+        final int maxLen = 10;
+        return "WindowList [windows="
+               + view.subList(0, Math.min(maxLen, size));
+    }
+
+    /**
+     * Export all columns into a directory. For memory mapped columns, this
+     * is a plain file copy.
+     *
+     * @param directory target directory, created if necessary
+     * @throws IOException if writing fails
+     */
+    public void exportColumns(File directory) throws IOException {
+        if (!directory.isDirectory() && !directory.mkdirs()) {
+            throw new IOException("Cannot create directory " + directory);
+        }
+        try (DataOutputStream out = new DataOutputStream(new BufferedOutputStream(
+                new FileOutputStream(new File(directory, INDEX_FILE))))) {
+            out.writeInt(size);
+            out.writeInt(numberOfTags);
+            out.writeInt(numberOfReplicates);
+            out.writeInt(chromosomes.length);
+            for (int i = 0; i < chromosomes.length; i++) {
+                out.writeUTF(chromosomes[i]);
+                out.writeInt(chromosomeFirst[i]);
+            }
+        }
+        try (FileChannel out = new FileOutputStream(new File(directory, COLUMNS_FILE)).getChannel()) {
+            starts.writeTo(out, size);
+            ends.writeTo(out, size);
+            for (DoubleColumn column : tags) {
+                column.writeTo(out, size);
+            }
+            for (int i = 0; i < numberOfReplicates; i++) {
+                rawPValues[i].writeTo(out, size);
+                pValues[i].writeTo(out, size);
+            }
+            finalRawPValues.writeTo(out, size);
+            finalPValues.writeTo(out, size);
+        }
+    }
+
+    /**
+     * Import columns exported by exportColumns.
+     *
+     * @param directory directory containing the columns
+     * @param storage storage of the columns of the new list, closed if
+     * reading fails
+     * @return window list
+     * @throws IOException if reading fails
+     */
+    public static WindowListColumnar importColumns(File directory, WindowColumnStorage storage) throws IOException {
+        try {
+            WindowListColumnar list;
+            try (DataInputStream in = new DataInputStream(new BufferedInputStream(
+                    new FileInputStream(new File(directory, INDEX_FILE))))) {
+                int size = in.readInt();
+                int numberOfTags = in.readInt();
+                int numberOfReplicates = in.readInt();
+                list = new WindowListColumnar(numberOfTags, numberOfReplicates, storage);
+                list.allocate(size);
+                list.size = size;
+                int numberOfChromosomes = in.readInt();
+                list.chromosomes = new String[numberOfChromosomes];
+                list.chromosomeFirst = new int[numberOfChromosomes];
+                for (int i = 0; i < numberOfChromosomes; i++) {
+                    list.chromosomes[i] = in.readUTF();
+                    list.chromosomeFirst[i] = in.readInt();
+                }
+            }
+            try (FileChannel in = new FileInputStream(new File(directory, COLUMNS_FILE)).getChannel()) {
+                list.starts.readFrom(in, list.size);
+                list.ends.readFrom(in, list.size);
+                for (DoubleColumn column : list.tags) {
+                    column.readFrom(in, list.size);
+                }
+                for (int i = 0; i < list.numberOfReplicates; i++) {
+                    list.rawPValues[i].readFrom(in, list.size);
+                    list.pValues[i].readFrom(in, list.size);
+                }
+                list.finalRawPValues.readFrom(in, list.size);
+                list.finalPValues.readFrom(in, list.size);
+            }
+            list.init();
+            return list;
+        } catch (IOException | RuntimeException e) {
+            // do not leave mapped files behind
+            storage.close();
+            throw e;
+        }
+    }
+
+    /**
+     * Get chromosome of window. Windows are mostly accessed in order, hence
+     * the chromosome of the last access is checked before searching.
+     *
+     * @param index window index
+     * @return chromosome
+     */
+    @Override
+    public String getChr(int index) {
+        int chromosome = lastChromosome;
+        if (chromosome >= chromosomes.length
+            || index < chromosomeFirst[chromosome]
+            || (chromosome + 1 < chromosomes.length && index >= chromosomeFirst[chromosome + 1])) {
+            // each chromosome contains at least one window
+            int pos = Arrays.binarySearch(chromosomeFirst, index);
+            chromosome = pos < 0 ? -pos - 2 : pos;
+            lastChromosome = chromosome;
+        }
+        return chromosomes[chromosome];
+    }
+
+    @Override
+    public int getStart(int index) {
+        return starts.get(index);
+    }
+
+    @Override
+    public int getEnd(int index) {
+        return ends.get(index);
+    }
+
+    @Override
+    public double getTagCount(int dataset, int index) {
+        return tags[dataset].get(index);
+    }
+
+    @Override
+    public void setTagCount(int dataset, int index, double tagCount) {
+        tags[dataset].set(index, tagCount);
+    }
+
+    @Override
+    public double getRawPValue(int replicate, int index) {
+        if (replicate >= numberOfReplicates) {
+            return finalRawPValues.get(index);
+        }
+        return rawPValues[replicate].get(index);
+    }
+
+    @Override
+    public void setRawPValue(int replicate, int index, double pValue) {
+        rawPValues[replicate].set(index, pValue);
+    }
+
+    @Override
+    public void setFinalRawPValue(int index, double pValue) {
+        finalRawPValues.set(index, pValue);
+    }
+
+    @Override
+    public double getPValue(int replicate, int index) {
+        if (replicate >= numberOfReplicates) {
+            return finalPValues.get(index);
+        }
+        return pValues[replicate].get(index);
+    }
+
+    @Override
+    public void setPValue(int replicate, int index, double pValue) {
+        if (replicate >= numberOfReplicates) {
+            finalPValues.set(index, pValue);
+        } else {
+            pValues[replicate].set(index, pValue);
+        }
+    }
+
+    @Override
+    public double getFinalPValue(int index) {
+        return finalPValues.get(index);
+    }
+
+    /**
+     * List of views on the windows.
+     */
+    private class WindowView
+            extends AbstractList<Window>
+            implements RandomAccess {
+
+        @Override
+        public Window get(int index) {
+            if (index < 0 || index >= size) {
+                throw new IndexOutOfBoundsException("Index: " + index + ", Size: " + size);
+            }
+            return new ColumnarWindow(index);
+        }
+
+        @Override
+        public int size() {
+            return size;
+        }
+    }
+
+    /**
+     * View on one window of the columns.
+     */
+    private class ColumnarWindow
+            extends Window {
+
+        private final int index;
+        // chromosome, looked up on first access
+        private String chr;
+
+        ColumnarWindow(int index) {
+            super();
+            this.index = index;
+        }
+
+        @Override
+        public void initAfterImport() {
+            for (int i = 0; i < numberOfReplicates; i++) {
+                pValues[i].set(index, 1.0);
+            }
+        }
+
+        @Override
+        public void scale(List<Replicate> replicates) {
+            WindowListColumnar.this.scale(index, replicates);
+        }
+
+        @Override
+        public int getStart() {
+            return starts.get(index);
+        }
+
+        @Override
+        public int getEnd() {
+            return ends.get(index);
+        }
+
+        @Override
+        public String getChr() {
+            if (chr == null) {
+                chr = WindowListColumnar.this.getChr(index);
+            }
+            return chr;
+        }
+
+        @Override
+        public double getTagCount(int dataset) {
+            return tags[dataset].get(index);
+        }
+
+        @Override
+        public void setTagCount(int dataset, double tagCount) {
+            tags[dataset].set(index, tagCount);
+        }
+
+        @Override
+        public void setRawPValue(int dataset, double val) {
+            rawPValues[dataset].set(index, val);
+        }
+
+        @Override
+        public void setFinalRawPValue(double finalRawPValue) {
+            finalRawPValues.set(index, finalRawPValue);
+        }
+
+        /**
+         * get all p-values of single peak calls
+         * @return copy of the p-values
+         */
+        @Override
+        public double[] getPValueList() {
+            double[] values = new double[numberOfReplicates];
+            for (int i = 0; i < numberOfReplicates; i++) {
+                values[i] = pValues[i].get(index);
+            }
+            return values;
+        }
+
+        @Override
+        public double getFinalPValue() {
+            return finalPValues.get(index);
+        }
+
+        @Override
+        public void printTagCounts() {
+            for (int i = 0; i < numberOfTags; i++) {
+                System.err.println(tags[i].get(index));
+            }
+        }
+
+        @Override
+        public double generalGetRawPValue(int replicate) {
+            return getRawPValue(replicate, index);
+        }
+
+        @Override
+        public void generalSetPValue(double pval, int replicate) {
+            setPValue(replicate, index, pval);
+        }
+
+        @Override
+        public Window detach() {
+            Window w = new Window(getChr(), getStart(), getEnd(), numberOfTags, numberOfReplicates);
+            for (int i = 0; i < numberOfTags; i++) {
+                w.setTagCount(i, getTagCount(i));
+            }
+            for (int i = 0; i < numberOfReplicates; i++) {
+                w.setRawPValue(i, rawPValues[i].get(index));
+                w.generalSetPValue(pValues[i].get(index), i);
+            }
+            w.setFinalRawPValue(finalRawPValues.get(index));
+            w.generalSetPValue(finalPValues.get(index), numberOfReplicates);
+            return w;
+        }
+
+        @Override
+        public String toString() {
+            return detach().toString();
+        }
+    }
+}
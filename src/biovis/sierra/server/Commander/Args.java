@@ -17,6 +17,8 @@
  */
 package biovis.sierra.server.Commander;
 
+import biovis.sierra.data.DataMapper;
+
 /**
  *
  * @author Daniel Gerighausen, Lydia Mueller
@@ -32,7 +34,21 @@ public class Args {
 			+ "\t-batch terminate the program after the calculation\n"
 			+ "\t-IOThreads the amount threads that is used during the IO intensive calculations [default: 6]\n"
 			+ "\t-clientConfig  load a GUI config file for the server and start the calculation without a client\n"
-			+ "\t-chunkSize  chunk size for the calculation [default: 1000]\n";
+			+ "\t-chunkSize  chunk size for the calculation [default: 1000]\n"
+			+ "\t-windowFactory  window construction: chunked (indexed query per chunk), streaming (one pass per file) or merged (all files in one joint pass) [default: chunked]\n"
+			+ "\t-windowCounting  window counting: queue (end queue per window) or bins (each read counted once) [default: queue]\n"
+			+ "\t-windowStore  window storage: heap or mapped (memory mapped files in the scratch directory) [default: heap]\n"
+			+ "\t-scratch  scratch directory for memory mapped windows [default: system temporary directory]\n"
+			+ "\t-countCache  directory caching the tag counts of data sets between calculations [default: no caching]\n"
+			+ "\t-countIndex  directory of base resolution read count indices, window size and offset changes need no BAM access [default: no index]\n"
+			+ "\t-countIndexResolution  resolution of the read count indices in bases, window size and offset have to be multiples [default: 25]\n"
+			+ "\t-inflateThreads  threads decompressing BAM blocks ahead of decoding, 0 decompresses while decoding [default: 0]\n"
+			+ "\t-bamDecoder  BAM record decoding: htsjdk (complete records) or lean (positions and base qualities only) [default: htsjdk]\n"
+			+ "\t-qualitySampling  base quality statistics of window construction from one of n reads (sampled by read name), 1 uses all reads [default: 1]\n"
+			+ "\t-peakQuality  peak qualities from bam (reads of the peaks queried from the BAM files) or windows (base quality histograms recorded during window construction) [default: bam]\n"
+			+ "\t-lambdaRanges  neighborhood ranges of the local lambdas in bases, comma separated [default: 1000,5000,10000]\n"
+			+ "\t-replicateCombination  combination of replicate p-values: inm (inverse normal method of biovislib) or fast (in-project inverse normal method with coefficients computed once) [default: inm]\n"
+			+ "\t-qValueEngine  q-value computation: biovislib (q-value calculators of biovislib) or fast (parallel in-project computation on runs of equal p-values) [default: biovislib]\n";
 
 	private String errors;
 	private String serverConfig;
@@ -42,6 +58,20 @@ public class Args {
 	private Integer chunkSize;
 	private int ioThreads;
 	private boolean batch;
+	private String windowFactory;
+	private String windowCounting;
+	private String windowStore;
+	private String scratch;
+	private String countCache;
+	private String countIndex;
+	private int countIndexResolution;
+	private int inflateThreads;
+	private String bamDecoder;
+	private int qualitySampling;
+	private String peakQuality;
+	private String lambdaRanges;
+	private String replicateCombination;
+	private String qValueEngine;
 
 
 
@@ -56,6 +86,20 @@ public class Args {
 		port = 9753;
 		chunkSize = 10000;
 		ioThreads =  6;
+		windowFactory = "";
+		windowCounting = "";
+		windowStore = "";
+		scratch = "";
+		countCache = "";
+		countIndex = "";
+		countIndexResolution = 0;
+		inflateThreads = -1;
+		bamDecoder = "";
+		qualitySampling = 0;
+		peakQuality = "";
+		lambdaRanges = "";
+		replicateCombination = "";
+		qValueEngine = "";
 	}
 
 	/** Parse command line arguments
@@ -121,12 +165,147 @@ public class Args {
 					errors += "[ERROR] no argument given for option -S\n";
 				}
 				break;
+			case "-windowFactory":
+				i++;
+				if(i < args.length){
+					windowFactory = checkValue("-windowFactory", args[i], "chunked", "streaming", "merged");
+				}else{
+					errors += "[ERROR] no argument given for option -windowFactory\n";
+				}
+				break;
+			case "-windowCounting":
+				i++;
+				if(i < args.length){
+					windowCounting = checkValue("-windowCounting", args[i], "queue", "bins");
+				}else{
+					errors += "[ERROR] no argument given for option -windowCounting\n";
+				}
+				break;
+			case "-windowStore":
+				i++;
+				if(i < args.length){
+					windowStore = checkValue("-windowStore", args[i], "heap", "mapped");
+				}else{
+					errors += "[ERROR] no argument given for option -windowStore\n";
+				}
+				break;
+			case "-scratch":
+				i++;
+				if(i < args.length){
+					scratch = args[i];
+				}else{
+					errors += "[ERROR] no argument given for option -scratch\n";
+				}
+				break;
+			case "-countCache":
+				i++;
+				if(i < args.length){
+					countCache = args[i];
+				}else{
+					errors += "[ERROR] no argument given for option -countCache\n";
+				}
+				break;
+			case "-countIndex":
+				i++;
+				if(i < args.length){
+					countIndex = args[i];
+				}else{
+					errors += "[ERROR] no argument given for option -countIndex\n";
+				}
+				break;
+			case "-countIndexResolution":
+				i++;
+				if(i < args.length){
+					countIndexResolution = Integer.parseInt(args[i]);
+				}else{
+					errors += "[ERROR] no argument given for option -countIndexResolution\n";
+				}
+				break;
+			case "-inflateThreads":
+				i++;
+				if(i < args.length){
+					inflateThreads = Integer.parseInt(args[i]);
+				}else{
+					errors += "[ERROR] no argument given for option -inflateThreads\n";
+				}
+				break;
+			case "-bamDecoder":
+				i++;
+				if(i < args.length){
+					bamDecoder = checkValue("-bamDecoder", args[i], "htsjdk", "lean");
+				}else{
+					errors += "[ERROR] no argument given for option -bamDecoder\n";
+				}
+				break;
+			case "-qualitySampling":
+				i++;
+				if(i < args.length){
+					qualitySampling = Integer.parseInt(args[i]);
+				}else{
+					errors += "[ERROR] no argument given for option -qualitySampling\n";
+				}
+				break;
+			case "-peakQuality":
+				i++;
+				if(i < args.length){
+					peakQuality = checkValue("-peakQuality", args[i], "bam", "windows");
+				}else{
+					errors += "[ERROR] no argument given for option -peakQuality\n";
+				}
+				break;
+			case "-lambdaRanges":
+				i++;
+				if(i < args.length){
+					lambdaRanges = args[i];
+					try{
+						DataMapper.parseLambdaRanges(lambdaRanges);
+					}catch(IllegalArgumentException e){
+						errors += "[ERROR] "+e.getMessage()+" for option -lambdaRanges\n";
+					}
+				}else{
+					errors += "[ERROR] no argument given for option -lambdaRanges\n";
+				}
+				break;
+			case "-replicateCombination":
+				i++;
+				if(i < args.length){
+					replicateCombination = checkValue("-replicateCombination", args[i], "inm", "fast");
+				}else{
+					errors += "[ERROR] no argument given for option -replicateCombination\n";
+				}
+				break;
+			case "-qValueEngine":
+				i++;
+				if(i < args.length){
+					qValueEngine = checkValue("-qValueEngine", args[i], "biovislib", "fast");
+				}else{
+					errors += "[ERROR] no argument given for option -qValueEngine\n";
+				}
+				break;
 			default:
 				errors += "[ERROR] un-recognized option "+args[i]+"\n";
 			}
 		}
 	}
 
+	/**
+	 * Check value of an option with a fixed set of values.
+	 *
+	 * @param option option
+	 * @param value given value
+	 * @param values allowed values
+	 * @return given value
+	 */
+	private String checkValue(String option, String value, String... values){
+		for(String allowed : values){
+			if(allowed.equals(value)){
+				return value;
+			}
+		}
+		errors += "[ERROR] unknown value "+value+" for option "+option+", expected one of "+String.join(", ", values)+"\n";
+		return value;
+	}
+
 	public String getHelp_message() {
 		return help_message;
 	}
@@ -161,4 +340,60 @@ public class Args {
 	{
 		return ioThreads;
 	}
+	public String getWindowFactory()
+	{
+		return windowFactory;
+	}
+	public String getWindowCounting()
+	{
+		return windowCounting;
+	}
+	public String getWindowStore()
+	{
+		return windowStore;
+	}
+	public String getScratch()
+	{
+		return scratch;
+	}
+	public String getCountCache()
+	{
+		return countCache;
+	}
+	public String getCountIndex()
+	{
+		return countIndex;
+	}
+	public int getCountIndexResolution()
+	{
+		return countIndexResolution;
+	}
+	public int getInflateThreads()
+	{
+		return inflateThreads;
+	}
+	public String getBamDecoder()
+	{
+		return bamDecoder;
+	}
+	public int getQualitySampling()
+	{
+		return qualitySampling;
+	}
+	public String getPeakQuality()
+	{
+		return peakQuality;
+	}
+	public String getLambdaRanges()
+	{
+		return lambdaRanges;
+	}
+	public String getReplicateCombination()
+	{
+		return replicateCombination;
+	}
+	public String getQValueEngine()
+	{
+		return qValueEngine;
+	}
 }
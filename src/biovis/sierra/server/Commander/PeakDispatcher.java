@@ -327,6 +327,7 @@ public class PeakDispatcher
         DataMapper obj = gson.fromJson((String) command[1], DataMapper.class);
         
         obj.setIOThreads(server.getIOThreads());
+        server.configureMapper(obj);
 //        System.err.println("size of dispatcher: " + MemoryMeasurer.measureBytes(this));
         server.setMapper(obj);
     }
@@ -30,12 +30,30 @@ public class ServerMapper {
 	private boolean locked = false;
 	private int chunksize = 10000;
 	private int IOThreads = 6;
+	private String windowFactory = "chunked";
+	private String windowCounting = "queue";
+	private String windowStore = "heap";
+	private String scratchDirectory = "";
+	private String countCacheDirectory = "";
+	private String countIndexDirectory = "";
+	private int countIndexResolution = 25;
+	private int inflateThreads = 0;
+	private String bamDecoder = "htsjdk";
+	private int qualitySampling = 1;
+	private String peakQuality = "bam";
+	private String lambdaRanges = "1000,5000,10000";
+	private String replicateCombination = "inm";
+	private String qValueEngine = "biovislib";
 
 	public SuperDuperPeakCaller getSpc() {
 		return spc;
 	}
 
 	public void setSpc(SuperDuperPeakCaller spc) {
+		// release the windows of the replaced peak caller
+		if (this.spc != null && this.spc != spc) {
+			this.spc.close();
+		}
 		this.spc = spc;
 	}
 
@@ -80,4 +98,139 @@ public class ServerMapper {
 	public void setIOThreads(int iOThreads) {
 		IOThreads = iOThreads;
 	}
+
+	public String getWindowFactory() {
+		return windowFactory;
+	}
+
+	public void setWindowFactory(String windowFactory) {
+		this.windowFactory = windowFactory;
+	}
+
+	public String getWindowCounting() {
+		return windowCounting;
+	}
+
+	public void setWindowCounting(String windowCounting) {
+		this.windowCounting = windowCounting;
+	}
+
+	public String getWindowStore() {
+		return windowStore;
+	}
+
+	public void setWindowStore(String windowStore) {
+		this.windowStore = windowStore;
+	}
+
+	public String getScratchDirectory() {
+		return scratchDirectory;
+	}
+
+	public void setScratchDirectory(String scratchDirectory) {
+		this.scratchDirectory = scratchDirectory;
+	}
+
+	public String getCountCacheDirectory() {
+		return countCacheDirectory;
+	}
+
+	public void setCountCacheDirectory(String countCacheDirectory) {
+		this.countCacheDirectory = countCacheDirectory;
+	}
+
+	public String getCountIndexDirectory() {
+		return countIndexDirectory;
+	}
+
+	public void setCountIndexDirectory(String countIndexDirectory) {
+		this.countIndexDirectory = countIndexDirectory;
+	}
+
+	public int getCountIndexResolution() {
+		return countIndexResolution;
+	}
+
+	public void setCountIndexResolution(int countIndexResolution) {
+		this.countIndexResolution = countIndexResolution;
+	}
+
+	public int getInflateThreads() {
+		return inflateThreads;
+	}
+
+	public void setInflateThreads(int inflateThreads) {
+		this.inflateThreads = inflateThreads;
+	}
+
+	public String getBamDecoder() {
+		return bamDecoder;
+	}
+
+	public void setBamDecoder(String bamDecoder) {
+		this.bamDecoder = bamDecoder;
+	}
+
+	public int getQualitySampling() {
+		return qualitySampling;
+	}
+
+	public void setQualitySampling(int qualitySampling) {
+		this.qualitySampling = qualitySampling;
+	}
+
+	public String getPeakQuality() {
+		return peakQuality;
+	}
+
+	public void setPeakQuality(String peakQuality) {
+		this.peakQuality = peakQuality;
+	}
+
+	public String getLambdaRanges() {
+		return lambdaRanges;
+	}
+
+	public void setLambdaRanges(String lambdaRanges) {
+		DataMapper.parseLambdaRanges(lambdaRanges);
+		this.lambdaRanges = lambdaRanges;
+	}
+
+	public String getReplicateCombination() {
+		return replicateCombination;
+	}
+
+	public void setReplicateCombination(String replicateCombination) {
+		this.replicateCombination = replicateCombination;
+	}
+
+	public String getQValueEngine() {
+		return qValueEngine;
+	}
+
+	public void setQValueEngine(String qValueEngine) {
+		this.qValueEngine = qValueEngine;
+	}
+
+	/**
+	 * Apply the server side calculation settings to a data mapper.
+	 *
+	 * @param dm data mapper
+	 */
+	public void configureMapper(DataMapper dm) {
+		dm.setWindowFactory(windowFactory);
+		dm.setWindowCounting(windowCounting);
+		dm.setWindowStore(windowStore);
+		dm.setScratchDirectory(scratchDirectory);
+		dm.setCountCacheDirectory(countCacheDirectory);
+		dm.setCountIndexDirectory(countIndexDirectory);
+		dm.setCountIndexResolution(countIndexResolution);
+		dm.setInflateThreads(inflateThreads);
+		dm.setBamDecoder(bamDecoder);
+		dm.setQualitySampling(qualitySampling);
+		dm.setPeakQuality(peakQuality);
+		dm.setLambdaRanges(lambdaRanges);
+		dm.setReplicateCombination(replicateCombination);
+		dm.setQValueEngine(qValueEngine);
+	}
 }
@@ -69,12 +69,56 @@ public class SierraService {
 
 			sm.setIOThreads(argsParser.getIOThreads());
 		}
+		if(!argsParser.getWindowFactory().equals("")){
+			sm.setWindowFactory(argsParser.getWindowFactory());
+		}
+		if(!argsParser.getWindowCounting().equals("")){
+			sm.setWindowCounting(argsParser.getWindowCounting());
+		}
+		if(!argsParser.getWindowStore().equals("")){
+			sm.setWindowStore(argsParser.getWindowStore());
+		}
+		if(!argsParser.getScratch().equals("")){
+			sm.setScratchDirectory(argsParser.getScratch());
+		}
+		if(!argsParser.getCountCache().equals("")){
+			sm.setCountCacheDirectory(argsParser.getCountCache());
+		}
+		if(!argsParser.getCountIndex().equals("")){
+			sm.setCountIndexDirectory(argsParser.getCountIndex());
+		}
+		if(argsParser.getCountIndexResolution() != 0){
+			sm.setCountIndexResolution(argsParser.getCountIndexResolution());
+		}
+		if(argsParser.getInflateThreads() != -1){
+			sm.setInflateThreads(argsParser.getInflateThreads());
+		}
+		if(!argsParser.getBamDecoder().equals("")){
+			sm.setBamDecoder(argsParser.getBamDecoder());
+		}
+		if(argsParser.getQualitySampling() != 0){
+			sm.setQualitySampling(argsParser.getQualitySampling());
+		}
+		if(!argsParser.getPeakQuality().equals("")){
+			sm.setPeakQuality(argsParser.getPeakQuality());
+		}
+		if(!argsParser.getLambdaRanges().equals("")){
+			sm.setLambdaRanges(argsParser.getLambdaRanges());
+		}
+		if(!argsParser.getReplicateCombination().equals("")){
+			sm.setReplicateCombination(argsParser.getReplicateCombination());
+		}
+		if(!argsParser.getQValueEngine().equals("")){
+			sm.setQValueEngine(argsParser.getQValueEngine());
+		}
 		if(!argsParser.getState().equals("")){
 			Importer.loadState(argsParser.getState(), sm, peakdisp.getPc());
+			sm.configureMapper(sm.getMapper());
 			sm.getSpc().init();
 		}
 		if(!argsParser.getServerConfig().equals("")){
 			Importer.loadServerMapper(argsParser.getServerConfig(), sm);
+			sm.configureMapper(sm.getMapper());
 			sm.setSpc(new SuperDuperPeakCaller(sm.getMapper(),peakdisp.getPc(),sm.getChunksize()));
 			//			sm.getSpc().init();
 		}
@@ -94,6 +138,7 @@ public class SierraService {
 				dm.setIOThreads(argsParser.getIOThreads());
 
 			}
+			sm.configureMapper(dm);
 			//			sm.getSpc().init();
 			if(argsParser.getBatch())
 			{
@@ -0,0 +1,186 @@
+/**
+ *****************************************************************************
+ * Copyright (c) 2015 Daniel Gerighausen, Lydia Mueller, and Dirk Zeckzer
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ ******************************************************************************
+ */
+package biovis.sierra.server;
+
+import biovis.sierra.data.DataMapper;
+import biovis.sierra.data.Replicate;
+import org.apache.commons.math3.special.Erf;
+
+import java.util.List;
+
+/**
+ * Weighted inverse normal (Stouffer) combination of the p-values of the
+ * replicates.
+ *
+ * The combined statistic is Z = sum_i a_i z_i with z_i = -Phi^-1(p_i). The
+ * coefficients a_i = w_i / sqrt(w^T C w) are computed once per run from the
+ * replicate weights w (1 if the combination is not weighted, 0 for inactive
+ * replicates) and the replicate correlation matrix C (identity if
+ * correlations are not corrected). The combined p-value is Phi(-Z).
+ *
+ * The inverse normal distribution is approximated by the rational functions
+ * of P. J. Acklam followed by one Halley step. p-values of 1.0, the most
+ * frequent ones, use a precomputed z, and windows with p-value 1.0 in all
+ * replicates use a precomputed combined p-value.
+ *
+ * @author Lydia Mueller, Dirk Zeckzer
+ */
+public class InverseNormalCombination {
+
+    // p-values are clamped to [MIN_P, MAX_P] so that z is finite
+    private final static double MIN_P = Double.MIN_NORMAL;
+    private final static double MAX_P = 1.0 - 0x1.0p-53;
+
+    // coefficients of Acklam's approximation
+    private final static double[] A = {
+        -3.969683028665376e+01, 2.209460984245205e+02, -2.759285104469687e+02,
+        1.383577518672690e+02, -3.066479806614716e+01, 2.506628277459239e+00};
+    private final static double[] B = {
+        -5.447609879822406e+01, 1.615858368580409e+02, -1.556989798598866e+02,
+        6.680131188771972e+01, -1.328068155288572e+01};
+    private final static double[] C = {
+        -7.784894002430293e-03, -3.223964580411365e-01, -2.400758277161838e+00,
+        -2.549671348193817e+00, 4.374664141464968e+00, 2.938163982698783e+00};
+    private final static double[] D = {
+        7.784695709041462e-03, 3.224671290700398e-01, 2.445134137142996e+00,
+        3.754408661907416e+00};
+    private final static double P_LOW = 0.02425;
+    private final static double SQRT2 = Math.sqrt(2.0);
+    private final static double SQRT2PI = Math.sqrt(2.0 * Math.PI);
+
+    // z of p-value 1.0
+    private final static double Z_P_ONE = -inverseNormal(MAX_P);
+
+    // normalized coefficient of each replicate
+    private final double[] coefficients;
+    // combined p-value if all p-values are 1.0
+    private final double pValueAllOne;
+
+    /**
+     * Constructor.
+     *
+     * @param mapper data mapper with replicates, weights and correlations
+     */
+    public InverseNormalCombination(DataMapper mapper) {
+        List<Replicate> replicates = mapper.getReplicates();
+        int n = replicates.size();
+        double[] weights = new double[n];
+        for (int i = 0; i < n; ++i) {
+            Replicate replicate = replicates.get(i);
+            if (replicate.isActive()) {
+                weights[i] = mapper.isWeighted() ? replicate.getWeight() : 1.0;
+            }
+        }
+
+        // variance of the weighted sum of the z values
+        double[][] correlation = mapper.getReplicatePearsonCorrelation();
+        boolean correct = mapper.isCorrectCorrelation()
+                          && correlation != null
+                          && correlation.length == n;
+        double variance = 0.0;
+        for (int i = 0; i < n; ++i) {
+            variance += weights[i] * weights[i];
+            if (correct) {
+                for (int j = 0; j < n; ++j) {
+                    if (i != j) {
+                        variance += weights[i] * weights[j] * correlation[i][j];
+                    }
+                }
+            }
+        }
+
+        coefficients = new double[n];
+        if (variance > 0.0) {
+            double norm = 1.0 / Math.sqrt(variance);
+            for (int i = 0; i < n; ++i) {
+                coefficients[i] = weights[i] * norm;
+            }
+        }
+
+        double z = 0.0;
+        for (int i = 0; i < n; ++i) {
+            z += coefficients[i] * Z_P_ONE;
+        }
+        pValueAllOne = 0.5 * Erf.erfc(z / SQRT2);
+    }
+
+    /**
+     * Combine p-values of the replicates.
+     *
+     * @param pValues p-value of each replicate
+     * @return combined p-value
+     */
+    public double getPValue(double[] pValues) {
+        double z = 0.0;
+        boolean allOne = true;
+        for (int i = 0; i < coefficients.length; ++i) {
+            if (coefficients[i] != 0.0) {
+                allOne &= pValues[i] >= MAX_P;
+                z += coefficients[i] * getZ(pValues[i]);
+            }
+        }
+        if (allOne) {
+            return pValueAllOne;
+        }
+        return 0.5 * Erf.erfc(z / SQRT2);
+    }
+
+    /**
+     * Get z value of a p-value.
+     *
+     * @param p p-value
+     * @return -Phi^-1(p)
+     */
+    private static double getZ(double p) {
+        if (p >= MAX_P) {
+            return Z_P_ONE;
+        }
+        return -inverseNormal(Math.max(p, MIN_P));
+    }
+
+    /**
+     * Inverse of the standard normal distribution function. The rational
+     * approximation is refined by one Halley step. Probabilities above 0.5
+     * are mirrored.
+     *
+     * @param p probability in (0, 1)
+     * @return Phi^-1(p)
+     */
+    private static double inverseNormal(double p) {
+        if (p > 0.5) {
+            // 1 - p is exact, the refinement is precise for small tails only
+            return -inverseNormal(1.0 - p);
+        }
+        double x;
+        if (p < P_LOW) {
+            double q = Math.sqrt(-2.0 * Math.log(p));
+            x = (((((C[0] * q + C[1]) * q + C[2]) * q + C[3]) * q + C[4]) * q + C[5])
+                / ((((D[0] * q + D[1]) * q + D[2]) * q + D[3]) * q + 1.0);
+        } else {
+            double q = p - 0.5;
+            double r = q * q;
+            x = (((((A[0] * r + A[1]) * r + A[2]) * r + A[3]) * r + A[4]) * r + A[5]) * q
+                / (((((B[0] * r + B[1]) * r + B[2]) * r + B[3]) * r + B[4]) * r + 1.0);
+        }
+
+        // Halley step
+        double e = 0.5 * Erf.erfc(-x / SQRT2) - p;
+        double u = e * SQRT2PI * Math.exp(0.5 * x * x);
+        return x - u / (1.0 + 0.5 * x * u);
+    }
+}
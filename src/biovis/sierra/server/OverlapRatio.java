@@ -19,9 +19,7 @@ package biovis.sierra.server;
 
 import biovis.sierra.data.DataMapper;
 import biovis.sierra.data.Replicate;
-import biovis.sierra.data.windows.Window;
 import biovis.sierra.data.windows.WindowList;
-import java.util.ArrayList;
 import java.util.HashMap;
 import java.util.List;
 
@@ -41,20 +39,17 @@ public class OverlapRatio {
             WindowList wl
     ) {
         long sigs = 0;
-        List<Long> overlap = new ArrayList<>();
         List<Replicate> replicates = mapper.getReplicates();
         int numberOfReplicates = replicates.size();
-        for (int i = 0; i < numberOfReplicates; i++) {
-            overlap.add((long) 0);
-        }
 
         double cutoffPValue = mapper.getPvaluecutoff();
-        for (Window w : wl.getWindows()) {
-            if (w.getFinalPValue() < cutoffPValue) {
+        long[] overlap = new long[numberOfReplicates];
+        for (int w = 0; w < wl.getSize(); w++) {
+            if (wl.getFinalPValue(w) < cutoffPValue) {
                 sigs++;
                 for (int i = 0; i < numberOfReplicates; i++) {
-                    if (w.getPValueList()[i] < cutoffPValue) {
-                        overlap.set(i, overlap.get(i) + 1);
+                    if (wl.getPValue(i, w) < cutoffPValue) {
+                        overlap[i]++;
                     }
                 }
             }
@@ -64,7 +59,7 @@ public class OverlapRatio {
         for (int i = 0; i < numberOfReplicates; i++) {
             if (replicates.get(i).isActive()) {
             	if(sigs > 0){
-            		overlapRatio.put(i, (double) overlap.get(i) / sigs);
+            		overlapRatio.put(i, (double) overlap[i] / sigs);
             	}
             } else {
                 overlapRatio.put(i, 0.0);
@@ -19,7 +19,6 @@ package biovis.sierra.server;
 
 import biovis.sierra.data.DataMapper;
 import biovis.sierra.data.Replicate;
-import biovis.sierra.data.windows.Window;
 import biovis.sierra.data.windows.WindowList;
 import biovislib.parallel4.Tuple;
 import java.util.ArrayList;
@@ -58,8 +57,9 @@ public class PValueDistribution {
             }
 
             //count frequency of pvalues for each bin
-            for (Window w : wl.getWindows()) {
-                double pval = w.getPValueList()[replicate.getIndex()];
+            final int replicateIndex = replicate.getIndex();
+            for (int w = 0; w < wl.getSize(); w++) {
+                double pval = wl.getPValue(replicateIndex, w);
 
                 int index = steps - 1 + (int) Math.log10(pval);
                 index = Math.min(steps - 1, index); //put p-value of 1.0 also in last bin
@@ -106,8 +106,8 @@ public class PValueDistribution {
         }
 
         //count frequency of pvalues for each bin
-        for (Window w : wl.getWindows()) {
-            double pval = w.getFinalPValue();
+        for (int w = 0; w < wl.getSize(); w++) {
+            double pval = wl.getFinalPValue(w);
 
             int index = steps - 1 + (int) Math.log10(pval);
             index = Math.min(steps - 1, index); //put p-value of 1.0 also in last bin
@@ -19,7 +19,6 @@ package biovis.sierra.server;
 
 import biovis.sierra.data.peakcaller.Peak;
 import biovis.sierra.data.peakcaller.PeakList;
-import biovis.sierra.data.windows.Window;
 import biovis.sierra.data.windows.WindowList;
 
 /**
@@ -85,9 +84,9 @@ public class PeakFactory {
      */
     private void generatePeakListNarrow() {
         Peak last = null;
-        for (Window window : windowList.getWindows()) {
-            if (window.getFinalPValue() <= threshold) {
-                Peak current = new Peak(window);
+        for (int w = 0; w < windowList.getSize(); w++) {
+            if (windowList.getFinalPValue(w) <= threshold) {
+                Peak current = new Peak(windowList.getWindows().get(w));
                 if (last != null && last.mergeable(current)) {
                     last.merge(current);
                 } else {
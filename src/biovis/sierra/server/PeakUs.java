@@ -18,7 +18,6 @@
 package biovis.sierra.server;
 
 import biovis.sierra.data.DataMapper;
-import biovis.sierra.data.windows.Window;
 import biovis.sierra.data.windows.WindowList;
 import biovislib.parallel4.IterationInt;
 import biovislib.parallel4.Parallel2;
@@ -33,6 +32,7 @@ import biovislib.statistics.InverseNormalMethod;
 public class PeakUs {
 
     private InverseNormalMethod inm;
+    private InverseNormalCombination combination;
     private DataMapper mapper;
 
     /**
@@ -44,7 +44,11 @@ public class PeakUs {
             DataMapper mapper
     ) {
         this.mapper = mapper;
-        inm = new InverseNormalMethod(mapper.isCorrectCorrelation(), mapper.isWeighted(), mapper.getINMReplicates());
+        if ("fast".equals(mapper.getReplicateCombination())) {
+            combination = new InverseNormalCombination(mapper);
+        } else {
+            inm = new InverseNormalMethod(mapper.isCorrectCorrelation(), mapper.isWeighted(), mapper.getINMReplicates());
+        }
     }
 
     /**
@@ -61,8 +65,17 @@ public class PeakUs {
             @Override
             public void iteration(int index) {
                 int end = Math.min(index + stepSize, windowList.getSize());
-                for (Window window : windowList.getWindows(index, end)) {
-                    window.setFinalRawPValue(inm.getPValue(window.getPValueList()));
+                // p-values of the current window, reused for all windows of the step
+                double[] pValues = new double[mapper.getReplicates().size()];
+                for (int w = index; w < end; w++) {
+                    for (int r = 0; r < pValues.length; r++) {
+                        pValues[r] = windowList.getPValue(r, w);
+                    }
+                    if (combination != null) {
+                        windowList.setFinalRawPValue(w, combination.getPValue(pValues));
+                    } else {
+                        windowList.setFinalRawPValue(w, inm.getPValue(pValues));
+                    }
                 }
             }
         });
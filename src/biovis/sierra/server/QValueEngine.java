@@ -0,0 +1,312 @@
+/**
+ *****************************************************************************
+ * Copyright (c) 2015 Daniel Gerighausen, Lydia Mueller, and Dirk Zeckzer
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ ******************************************************************************
+ */
+package biovis.sierra.server;
+
+import biovis.sierra.data.windows.WindowList;
+import biovislib.parallel4.IterationInt;
+import biovislib.parallel4.Parallel2;
+import biovislib.parallel4.ParallelForInt2;
+import biovislib.parallel4.ParallelizationFactory;
+import org.apache.commons.math3.distribution.BinomialDistribution;
+import org.apache.commons.math3.random.RandomGenerator;
+import org.apache.commons.math3.random.Well19937c;
+
+import java.util.Arrays;
+
+/**
+ * Transformation of p-values into q-values working on runs of equal
+ * p-values.
+ *
+ * The p-values of all windows are extracted in parallel and sorted with a
+ * parallel primitive sort. Equal p-values are collapsed into runs, so the
+ * correction is computed once per distinct p-value. The q-value of a window
+ * is then looked up from the run of its p-value. No index arrays are needed.
+ *
+ * Supported methods:
+ * - Holm Bonferroni: step-down, tied p-values get the factor of their first
+ * position
+ * - Storey Simple: step-up with pi0 estimated at lambda 0.5, tied p-values
+ * get their last position
+ * - Storey Bootstrap: as Storey Simple with pi0 chosen by the bootstrap of
+ * Storey, Taylor and Siegmund (2004) over lambda = 0, 0.05, ..., 0.95
+ *
+ * @author Lydia Mueller, Dirk Zeckzer
+ */
+public class QValueEngine {
+
+    // lambda of the simple pi0 estimate
+    private final static double LAMBDA_SIMPLE = 0.5;
+    // lambda grid of the bootstrap pi0 estimate
+    private final static int LAMBDAS = 20;
+    private final static double LAMBDA_STEP = 0.05;
+    // bootstrap samples
+    private final static int BOOTSTRAPS = 100;
+    // seed of bootstrap samples, runs are reproducible
+    private final static int SEED = 4711;
+
+    private final String method;
+    private final int threads;
+
+    /**
+     * Constructor.
+     *
+     * @param method q-value method: Holm Bonferroni, Storey Simple or Storey
+     * Bootstrap
+     * @param threads number of threads
+     */
+    public QValueEngine(String method, int threads) {
+        this.method = method;
+        this.threads = threads;
+    }
+
+    /**
+     * Replace the raw p-values of one replicate or of the combined
+     * replicates by q-values.
+     *
+     * @param windows window list
+     * @param replicate replicate, number of replicates for the combined
+     * p-values
+     */
+    public void computeQValues(
+            final WindowList windows,
+            final int replicate
+    ) {
+        final int size = windows.getSize();
+        if (size == 0) {
+            return;
+        }
+        final int stepSize = size / threads + 1;
+        Parallel2 p2 = ParallelizationFactory.getInstance(threads);
+
+        // extract p-values
+        final double[] pValues = new double[size];
+        new ParallelForInt2(p2, 0, size, stepSize).loop(
+                new IterationInt() {
+            @Override
+            public void iteration(int index) {
+                int end = Math.min(index + stepSize, size);
+                for (int i = index; i < end; ++i) {
+                    pValues[i] = windows.getRawPValue(replicate, i);
+                }
+            }
+        });
+
+        // runs of equal p-values
+        double[] sorted = pValues.clone();
+        Arrays.parallelSort(sorted);
+        int runs = 0;
+        int[] runEnds = new int[16];
+        for (int i = 0; i < size; ++i) {
+            if (i + 1 == size || Double.compare(sorted[i], sorted[i + 1]) != 0) {
+                if (runs == runEnds.length) {
+                    runEnds = Arrays.copyOf(runEnds, 2 * runs);
+                }
+                sorted[runs] = sorted[i];
+                runEnds[runs] = i + 1;
+                ++runs;
+            }
+        }
+        final double[] runValues = Arrays.copyOf(sorted, runs);
+        sorted = null;
+        final double[] runQValues = getRunQValues(runValues, runEnds, size);
+
+        // store q-values
+        new ParallelForInt2(p2, 0, size, stepSize).loop(
+                new IterationInt() {
+            @Override
+            public void iteration(int index) {
+                int end = Math.min(index + stepSize, size);
+                for (int i = index; i < end; ++i) {
+                    int run = Arrays.binarySearch(runValues, pValues[i]);
+                    windows.setPValue(replicate, i, runQValues[run]);
+                }
+            }
+        });
+    }
+
+    /**
+     * Compute q-value of each run.
+     *
+     * @param runValues p-value of each run, increasing
+     * @param runEnds number of p-values up to and including each run
+     * @param size number of p-values
+     * @return q-value of each run
+     */
+    private double[] getRunQValues(double[] runValues, int[] runEnds, int size) {
+        switch (method) {
+            case "Storey Simple":
+                return getStoreyQValues(runValues, runEnds, size,
+                                        getPi0(runValues, runEnds, size, LAMBDA_SIMPLE));
+
+            case "Storey Bootstrap":
+                return getStoreyQValues(runValues, runEnds, size,
+                                        getBootstrapPi0(runValues, runEnds, size));
+
+            case "Holm Bonferroni":
+            default:
+                return getHolmBonferroniQValues(runValues, runEnds, size);
+        }
+    }
+
+    /**
+     * Holm Bonferroni adjusted p-values.
+     *
+     * @param runValues p-value of each run, increasing
+     * @param runEnds number of p-values up to and including each run
+     * @param size number of p-values
+     * @return q-value of each run
+     */
+    private static double[] getHolmBonferroniQValues(double[] runValues, int[] runEnds, int size) {
+        double[] qValues = new double[runValues.length];
+        double max = 0.0;
+        int runStart = 0;
+        for (int run = 0; run < runValues.length; ++run) {
+            double q = Math.min(1.0, (size - runStart) * runValues[run]);
+            if (max < q) {
+                max = q;
+            }
+            qValues[run] = max;
+            runStart = runEnds[run];
+        }
+        return qValues;
+    }
+
+    /**
+     * Storey q-values.
+     *
+     * @param runValues p-value of each run, increasing
+     * @param runEnds number of p-values up to and including each run
+     * @param size number of p-values
+     * @param pi0 estimated proportion of true null hypotheses
+     * @return q-value of each run
+     */
+    private static double[] getStoreyQValues(double[] runValues, int[] runEnds, int size, double pi0) {
+        double[] qValues = new double[runValues.length];
+        double min = 1.0;
+        for (int run = runValues.length - 1; run >= 0; --run) {
+            double q = pi0 * size * runValues[run] / runEnds[run];
+            if (q < min) {
+                min = q;
+            }
+            qValues[run] = min;
+        }
+        return qValues;
+    }
+
+    /**
+     * Estimate proportion of true null hypotheses.
+     *
+     * @param runValues p-value of each run, increasing
+     * @param runEnds number of p-values up to and including each run
+     * @param size number of p-values
+     * @param lambda p-values above lambda are considered null
+     * @return pi0, at most 1
+     */
+    private static double getPi0(double[] runValues, int[] runEnds, int size, double lambda) {
+        return Math.min(1.0, getCountAbove(runValues, runEnds, size, lambda) / (size * (1.0 - lambda)));
+    }
+
+    /**
+     * Estimate proportion of true null hypotheses by bootstrap.
+     *
+     * @param runValues p-value of each run, increasing
+     * @param runEnds number of p-values up to and including each run
+     * @param size number of p-values
+     * @return pi0, at most 1
+     */
+    private static double getBootstrapPi0(double[] runValues, int[] runEnds, int size) {
+        // number of p-values above each lambda
+        long[] above = new long[LAMBDAS];
+        double[] pi0 = new double[LAMBDAS];
+        double minPi0 = Double.POSITIVE_INFINITY;
+        for (int l = 0; l < LAMBDAS; ++l) {
+            double lambda = l * LAMBDA_STEP;
+            above[l] = getCountAbove(runValues, runEnds, size, lambda);
+            pi0[l] = above[l] / (size * (1.0 - lambda));
+            minPi0 = Math.min(minPi0, pi0[l]);
+        }
+
+        // a bootstrap sample draws the p-values from the empirical
+        // distribution, the numbers above each lambda follow conditional
+        // binomial distributions
+        RandomGenerator random = new Well19937c(SEED);
+        double[] mse = new double[LAMBDAS];
+        long[] sample = new long[LAMBDAS];
+        for (int b = 0; b < BOOTSTRAPS; ++b) {
+            sample[0] = draw(random, size, (double) above[0] / size);
+            for (int l = 1; l < LAMBDAS; ++l) {
+                double p = above[l - 1] == 0 ? 0.0 : (double) above[l] / above[l - 1];
+                sample[l] = draw(random, sample[l - 1], p);
+            }
+            for (int l = 0; l < LAMBDAS; ++l) {
+                double samplePi0 = sample[l] / (size * (1.0 - l * LAMBDA_STEP));
+                mse[l] += (samplePi0 - minPi0) * (samplePi0 - minPi0);
+            }
+        }
+
+        int best = 0;
+        for (int l = 1; l < LAMBDAS; ++l) {
+            if (mse[l] < mse[best]) {
+                best = l;
+            }
+        }
+        return Math.min(1.0, pi0[best]);
+    }
+
+    /**
+     * Draw from a binomial distribution.
+     *
+     * @param random random generator
+     * @param trials number of trials
+     * @param p success probability
+     * @return number of successes
+     */
+    private static long draw(RandomGenerator random, long trials, double p) {
+        if (trials == 0 || p <= 0.0) {
+            return 0;
+        }
+        if (p >= 1.0) {
+            return trials;
+        }
+        return new BinomialDistribution(random, (int) trials, p).sample();
+    }
+
+    /**
+     * Count p-values above a threshold.
+     *
+     * @param runValues p-value of each run, increasing
+     * @param runEnds number of p-values up to and including each run
+     * @param size number of p-values
+     * @param threshold threshold
+     * @return number of p-values above threshold
+     */
+    private static long getCountAbove(double[] runValues, int[] runEnds, int size, double threshold) {
+        // first run above threshold
+        int lo = 0;
+        int hi = runValues.length;
+        while (lo < hi) {
+            int mid = (lo + hi) >>> 1;
+            if (runValues[mid] > threshold) {
+                hi = mid;
+            } else {
+                lo = mid + 1;
+            }
+        }
+        return lo == 0 ? size : size - runEnds[lo - 1];
+    }
+}
@@ -19,11 +19,9 @@ package biovis.sierra.server;
 
 import biovis.sierra.data.DataMapper;
 import biovis.sierra.data.Replicate;
-import biovis.sierra.data.windows.Window;
 import biovis.sierra.data.windows.WindowList;
 
-import java.util.ArrayList;
-import java.util.Collections;
+import java.util.Arrays;
 import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
@@ -46,24 +44,29 @@ public class SignificantWindowsOptimized {
         List<Replicate> replicates = mapper.getReplicates();
         final int numberOfReplicates = replicates.size();
 
+        final double cutoff = mapper.getPvaluecutoff();
+
         // create cromosome to number of significant windows per replicate map
-        Map<String, List<Integer>> sigWindows = new HashMap<>();
+        Map<String, int[]> sigWindows = new HashMap<>();
         for (String chr : wl.getChromosomes()) {
-            List<Integer> repSig = new ArrayList<>();
-            for (Replicate r : replicates) {
-                repSig.add(0);
-            }
-            sigWindows.put(chr, repSig);
+            sigWindows.put(chr, new int[numberOfReplicates]);
         }
 
-        // count significant windows per replicate
+        // count significant windows per replicate, chromosome wise and in total
+        int[] sigCount = new int[numberOfReplicates];
         {
-            String chr;
-            for (Window w : wl.getWindows()) {
-                chr = w.getChr();
+            String chr = null;
+            int[] sigChr = null;
+            for (int index = 0; index < wl.getSize(); index++) {
+                String current = wl.getChr(index);
+                if (!current.equals(chr)) {
+                    chr = current;
+                    sigChr = sigWindows.get(chr);
+                }
                 for (int i = 0; i < numberOfReplicates; i++) {
-                    if (w.getPValueList()[i] < mapper.getPvaluecutoff()) {
-                        sigWindows.get(chr).set(i, sigWindows.get(chr).get(i) + 1);
+                    if (wl.getPValue(i, index) < cutoff) {
+                        sigChr[i]++;
+                        sigCount[i]++;
                     }
                 }
             }
@@ -73,7 +76,7 @@ public class SignificantWindowsOptimized {
         for (int i = 0; i < numberOfReplicates; i++) {
             Map<String, Integer> sigWindowRep = new HashMap<>();
             for (String chr : sigWindows.keySet()) {
-                sigWindowRep.put(chr, sigWindows.get(chr).get(i));
+                sigWindowRep.put(chr, sigWindows.get(chr)[i]);
             }
             replicates.get(i).setSignificantWindowsChrWise(sigWindowRep);
         }
@@ -81,23 +84,15 @@ public class SignificantWindowsOptimized {
         // store medians chromosomewise
         Map<String, Integer> medians = new HashMap<>();
         for (String chr : sigWindows.keySet()) {
-            List<Integer> sorted = new ArrayList<>(sigWindows.get(chr));
-            Collections.sort(sorted);
-            int median = sorted.get(sorted.size() / 2);
+            int[] sorted = sigWindows.get(chr).clone();
+            Arrays.sort(sorted);
+            int median = sorted[sorted.length / 2];
             medians.put(chr, median);
         }
         mapper.setSignifcantWindowMedianChrWise(medians);
         //System.err.println("medians size = "+medians.size() +" " +medians.toString());
 
-        int[] sigCount = new int[numberOfReplicates];
-
         for (int i = 0; i < numberOfReplicates; i++) {
-            sigCount[i] = 0;
-            for (Window w : wl.getWindows()) {
-                if (w.getPValueList()[i] < mapper.getPvaluecutoff()) {
-                    sigCount[i]++;
-                }
-            }
             replicates.get(i).setSignificantWindows(sigCount[i]);
         }
     }
@@ -28,6 +28,10 @@ import biovis.sierra.data.windows.WindowList;
 import biovis.sierra.server.Commander.PeakCommander;
 import biovis.sierra.server.peakQuality.SuperDuperQualityCoherentSpaceSmart;
 import biovis.sierra.server.windowFactories.WindowFactoryReaderSerial1ChunkParallelCoherent2;
+import biovis.sierra.server.windowFactories.WindowFactoryStreamingCoherent;
+import biovis.sierra.server.windowFactories.WindowFactoryStreamingMergedCoherent;
+import biovis.sierra.server.windowFactories.WindowListChunkSlots;
+import biovis.sierra.server.windowFactories.WindowQualityBins;
 import biovislib.parallel4.IterationInt;
 import biovislib.parallel4.IterationParameter;
 import biovislib.parallel4.Parallel;
@@ -147,10 +151,29 @@ public class SuperDuperPeakCaller {
 
         mapper.finalizeReplicateList();
 
+        // release windows of a previous run
+        setWl(null);
+
         // make windows and count tags for windows
-        // Dataset - Chunk - Window
-        // E-3: (fastest, space efficient)
-        wl = WindowFactoryReaderSerial1ChunkParallelCoherent2.constructWindows(mapper, windowSize, windowOffset, pc, chunkSize);
+        switch (mapper.getWindowFactory()) {
+            case "streaming":
+                // Dataset - File pass - Chunk - Window
+                // S-1: (one sequential pass per file)
+                wl = WindowFactoryStreamingCoherent.constructWindows(mapper, windowSize, windowOffset, pc, chunkSize);
+                break;
+
+            case "merged":
+                // File passes in parallel - Chunk - Dataset - Window
+                // S-2: (all data sets counted in one merged traversal)
+                wl = WindowFactoryStreamingMergedCoherent.constructWindows(mapper, windowSize, windowOffset, pc, chunkSize);
+                break;
+
+            default:
+                // Dataset - Chunk - Window
+                // E-3: (fastest, space efficient)
+                wl = WindowFactoryReaderSerial1ChunkParallelCoherent2.constructWindows(mapper, windowSize, windowOffset, pc, chunkSize);
+                break;
+        }
 
         // For debugging purposes: print window list
         // printWindows(wl);
@@ -243,14 +266,22 @@ public class SuperDuperPeakCaller {
      */
     private void calculateQValues(Logger log) {
         log.info("compute q-values for single peaks");
-        {
+        if ("fast".equals(mapper.getQValueEngine())) {
+            QValueEngine engine = new QValueEngine(mapper.getQValueMethod(), mapper.getNumCores());
+            for (int replicate = 0; replicate < mapper.getReplicates().size(); ++replicate) {
+                log.log(Level.INFO,
+                        "compute q-values for single peaks {0}",
+                        replicate);
+                engine.computeQValues(wl, replicate);
+            }
+        } else {
             // create q value calculator instance and sorted index
             // sorting is done in parallel
 
             QValueCalculator[] qValCalc = new QValueCalculator[mapper.getReplicates().size()];
             for (int replicate = 0; replicate < qValCalc.length; ++replicate) {
                 qValCalc[replicate] = getQValueCalculator();
-                double[] values = getGeneralRawPValues(wl.getWindows(), replicate);
+                double[] values = getGeneralRawPValues(wl, replicate);
                 qValCalc[replicate].createSortedIndex(values);
             }
 
@@ -266,7 +297,7 @@ public class SuperDuperPeakCaller {
                             "compute q-values for single peaks {0}",
                             index);
                     double[] qValues = qValCalc[index].p2q();
-                    setGeneralPValues(wl.getWindows(), index, qValues);
+                    setGeneralPValues(wl, index, qValues);
                     log.log(Level.INFO,
                             "q-values for single peaks computed {0}",
                             index);
@@ -348,15 +379,18 @@ public class SuperDuperPeakCaller {
         timestamp("Multi Peak Calls");
 
         log.info("generating q-values for multi-replicate peak calls");
-        {
+        if ("fast".equals(mapper.getQValueEngine())) {
+            QValueEngine engine = new QValueEngine(mapper.getQValueMethod(), mapper.getNumCores());
+            engine.computeQValues(wl, mapper.getReplicates().size());
+        } else {
             // create q value calculator instance
             QValueCalculator qValCalc = getQValueCalculator();
-            double[] pValues = getGeneralRawPValues(wl.getWindows(), mapper.getReplicates().size());
+            double[] pValues = getGeneralRawPValues(wl, mapper.getReplicates().size());
             qValCalc.createSortedIndex(pValues);
 
             // compute q-value correction
             double[] qValues = qValCalc.p2q();
-            setGeneralPValues(wl.getWindows(), mapper.getReplicates().size(), qValues);
+            setGeneralPValues(wl, mapper.getReplicates().size(), qValues);
         }
         log.info("q-values for multi-replicate peak calls generated");
         setProgress(0.70);
@@ -409,8 +443,11 @@ public class SuperDuperPeakCaller {
              mapper.setNarrowPeakQuality(narrowQuality.evaluatePeakList());
             */
             // Alternative for time efficient computation treating time for space
+            // qualities recorded during window construction need no BAM access
+            WindowQualityBins qualityBins = wl instanceof WindowListChunkSlots
+                                            ? ((WindowListChunkSlots) wl).getQualityBins() : null;
             SuperDuperQualityCoherentBN3Smart sdqCoherentBN = new SuperDuperQualityCoherentBN3Smart(
-                    mapper, broadList, narrowList);
+                    mapper, broadList, narrowList, qualityBins);
             PeakQuality pqNarrow = new PeakQuality();
             PeakQuality pqBroad = new PeakQuality();
             sdqCoherentBN.evaluatePeakList(pqBroad, pqNarrow);
@@ -431,12 +468,12 @@ public class SuperDuperPeakCaller {
      * @return general raw p values for replicate
      */
     private double[] getGeneralRawPValues(
-            List<Window> windows,
+            WindowList windows,
             int replicate
     ) {
-        double[] values = new double[windows.size()];
+        double[] values = new double[windows.getSize()];
         for (int i = 0; i < values.length; i++) {
-            values[i] = windows.get(i).generalGetRawPValue(replicate);
+            values[i] = windows.getRawPValue(replicate, i);
         }
         return values;
     }
@@ -447,12 +484,12 @@ public class SuperDuperPeakCaller {
      * @param qValues
      */
     private void setGeneralPValues(
-            List<Window> windows,
+            WindowList windows,
             int replicate,
             double[] qValues
     ) {
         for (int i = 0; i < qValues.length; i++) {
-            windows.get(i).generalSetPValue(qValues[i], replicate);
+            windows.setPValue(replicate, i, qValues[i]);
         }
     }
 
@@ -551,12 +588,22 @@ public class SuperDuperPeakCaller {
     }
 
     /**
-     * Set window list-
+     * Set window list, a replaced window list is closed.
      *
      * @param wl
      *            window list
      */
     public void setWl(WindowList wl) {
+        if (this.wl != null && this.wl != wl) {
+            this.wl.close();
+        }
         this.wl = wl;
     }
+
+    /**
+     * Release the window list.
+     */
+    public void close() {
+        setWl(null);
+    }
 }
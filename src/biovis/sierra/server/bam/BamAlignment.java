@@ -0,0 +1,118 @@
+/**
+ *****************************************************************************
+ * Copyright (c) 2015 Daniel Gerighausen, Lydia Mueller, and Dirk Zeckzer
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ ******************************************************************************
+ */
+package biovis.sierra.server.bam;
+
+import htsjdk.samtools.SAMRecord;
+
+/**
+ * Fields of a BAM record needed for counting reads and base qualities.
+ *
+ * Positions follow SAMRecord: the start is 1-based, the end is the last
+ * reference position covered by the alignment and 0 for unmapped reads.
+ *
+ * @author Lydia Mueller, Dirk Zeckzer
+ */
+public class BamAlignment {
+
+    // base qualities of reads not sampled
+    private final static byte[] NOT_SAMPLED = new byte[0];
+
+    private final int referenceIndex;
+    private final String referenceName;
+    private final int start;
+    private final int end;
+    private final boolean unmappedFlag;
+    private final byte[] baseQualities;
+
+    /**
+     * Constructor.
+     *
+     * @param referenceIndex reference index, -1 for unplaced reads
+     * @param referenceName reference name, null for unplaced reads
+     * @param start alignment start
+     * @param end alignment end
+     * @param unmappedFlag true iff the read is unmapped
+     * @param baseQualities base qualities, empty if not stored
+     */
+    public BamAlignment(
+            int referenceIndex,
+            String referenceName,
+            int start,
+            int end,
+            boolean unmappedFlag,
+            byte[] baseQualities
+    ) {
+        this.referenceIndex = referenceIndex;
+        this.referenceName = referenceName;
+        this.start = start;
+        this.end = end;
+        this.unmappedFlag = unmappedFlag;
+        this.baseQualities = baseQualities;
+    }
+
+    /**
+     * Constructor.
+     *
+     * @param record record decoded by htsjdk
+     */
+    public BamAlignment(SAMRecord record) {
+        this(record, BamQualitySampling.ALL);
+    }
+
+    /**
+     * Constructor. Base qualities of reads not sampled are not decoded and
+     * left empty.
+     *
+     * @param record record decoded by htsjdk
+     * @param sampling reads whose base qualities are needed
+     */
+    public BamAlignment(SAMRecord record, BamQualitySampling sampling) {
+        Integer index = record.getReferenceIndex();
+        this.referenceIndex = index == null ? -1 : index;
+        this.referenceName = referenceIndex < 0 ? null : record.getReferenceName();
+        this.start = record.getStart();
+        this.end = record.getEnd();
+        this.unmappedFlag = record.getReadUnmappedFlag();
+        this.baseQualities = sampling.isSampled(record.getReadName())
+                             ? record.getBaseQualities() : NOT_SAMPLED;
+    }
+
+    public int getReferenceIndex() {
+        return referenceIndex;
+    }
+
+    public String getReferenceName() {
+        return referenceName;
+    }
+
+    public int getStart() {
+        return start;
+    }
+
+    public int getEnd() {
+        return end;
+    }
+
+    public boolean getReadUnmappedFlag() {
+        return unmappedFlag;
+    }
+
+    public byte[] getBaseQualities() {
+        return baseQualities;
+    }
+}
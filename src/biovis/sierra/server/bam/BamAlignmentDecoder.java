@@ -0,0 +1,360 @@
+/**
+ *****************************************************************************
+ * Copyright (c) 2015 Daniel Gerighausen, Lydia Mueller, and Dirk Zeckzer
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ ******************************************************************************
+ */
+package biovis.sierra.server.bam;
+
+import htsjdk.samtools.SAMFileHeader;
+import htsjdk.samtools.SAMSequenceDictionary;
+import htsjdk.samtools.util.CloseableIterator;
+
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.channels.FileChannel;
+import java.util.Arrays;
+import java.util.NoSuchElementException;
+import java.util.concurrent.ExecutorService;
+
+/**
+ * Iterator over the alignments of a BAM file decoding only the fields needed
+ * for counting: reference, position, reference span of the CIGAR, unmapped
+ * flag and base qualities. Read names, bases and tags are skipped, base
+ * qualities are copied only for sampled records passing the query.
+ *
+ * @author Lydia Mueller, Dirk Zeckzer
+ */
+public class BamAlignmentDecoder
+        implements CloseableIterator<BamAlignment> {
+
+    // length of the fixed part of a record following the block size
+    private final static int FIXED_LENGTH = 32;
+    // base qualities of records without stored qualities
+    private final static byte[] NULL_QUALITIES = new byte[0];
+
+    // CIGAR operations
+    private final static int CIGAR_SOFT_CLIP = 4;
+    private final static int CIGAR_SKIPPED = 3;
+    // CIGAR operations consuming the reference: M, D, N, =, X
+    private final static int CIGAR_REFERENCE = 1 << 0 | 1 << 2 | 1 << 3 | 1 << 7 | 1 << 8;
+
+    private final BgzfInputStream blocks;
+    private final BamQuery query;
+    private final BamQualitySampling sampling;
+    private final String[] referenceNames;
+
+    // record being decoded without block size
+    private byte[] record = new byte[1024];
+
+    private BamAlignment next = null;
+
+    /**
+     * Constructor.
+     *
+     * @param channel channel of the BAM file, not closed by the iterator
+     * @param header header of the file
+     * @param query part of the file to read
+     * @param sampling reads whose base qualities are copied
+     * @param inflaters pool inflating the blocks, null to inflate while
+     * decoding
+     * @param threads number of inflater threads
+     * @throws IOException if the header cannot be skipped
+     */
+    BamAlignmentDecoder(
+            FileChannel channel,
+            SAMFileHeader header,
+            BamQuery query,
+            BamQualitySampling sampling,
+            ExecutorService inflaters,
+            int threads
+    ) throws IOException {
+        this.blocks = new BgzfInputStream(channel, query.getSpans(), inflaters,
+                                          threads * BamRecordIterator.BLOCKS_IN_FLIGHT_PER_THREAD);
+        this.query = query;
+        this.sampling = sampling;
+        SAMSequenceDictionary dictionary = header.getSequenceDictionary();
+        this.referenceNames = new String[dictionary.size()];
+        for (int i = 0; i < referenceNames.length; ++i) {
+            referenceNames[i] = dictionary.getSequence(i).getSequenceName();
+        }
+        try {
+            if (query.includesHeader()) {
+                BamQuery.skipHeader(blocks);
+            }
+        } catch (IOException | RuntimeException e) {
+            close();
+            throw e;
+        }
+    }
+
+    @Override
+    public boolean hasNext() {
+        if (next == null) {
+            try {
+                next = advance();
+            } catch (IOException e) {
+                throw new UncheckedIOException(e);
+            }
+        }
+        return next != null;
+    }
+
+    @Override
+    public BamAlignment next() {
+        if (!hasNext()) {
+            throw new NoSuchElementException();
+        }
+        BamAlignment alignment = next;
+        next = null;
+        return alignment;
+    }
+
+    @Override
+    public void close() {
+        blocks.close();
+    }
+
+    /**
+     * Decode next alignment of the query.
+     *
+     * @return next alignment, null if there is none
+     * @throws IOException if a record is truncated or corrupt
+     */
+    private BamAlignment advance() throws IOException {
+        while (true) {
+            int blockSize = readBlockSize();
+            if (blockSize < 0) {
+                return null;
+            }
+            if (blockSize < FIXED_LENGTH) {
+                throw new IOException("Corrupt BAM record");
+            }
+            if (record.length < blockSize) {
+                record = new byte[Math.max(blockSize, 2 * record.length)];
+            }
+            readFully(record, blockSize);
+
+            int referenceIndex = getInt(record, 0);
+            int start = getInt(record, 4) + 1;
+            int nameLength = record[8] & 0xff;
+            int cigarOperations = getUnsignedShort(record, 12);
+            boolean unmapped = (getUnsignedShort(record, 14) & 4) != 0;
+            int sequenceLength = getInt(record, 16);
+            int cigar = FIXED_LENGTH + nameLength;
+            int qualities = cigar + 4 * cigarOperations + (sequenceLength + 1) / 2;
+            if (sequenceLength < 0 || qualities + sequenceLength > blockSize) {
+                throw new IOException("Corrupt BAM record");
+            }
+            if (referenceIndex >= referenceNames.length) {
+                throw new IOException("BAM record with unknown reference " + referenceIndex);
+            }
+
+            int end = 0;
+            if (!unmapped) {
+                end = start + getReferenceLength(cigar, cigarOperations, sequenceLength,
+                                                 qualities + sequenceLength, blockSize) - 1;
+            }
+            switch (query.filter(referenceIndex < 0 ? -1 : referenceIndex, start, unmapped ? start : end)) {
+                case BamQuery.DONE:
+                    return null;
+                case BamQuery.SKIP:
+                    continue;
+                default:
+                    break;
+            }
+
+            byte[] baseQualities = NULL_QUALITIES;
+            if (sequenceLength > 0 && record[qualities] != (byte) 0xff
+                && sampling.isSampled(record, FIXED_LENGTH, nameLength - 1)) {
+                baseQualities = Arrays.copyOfRange(record, qualities, qualities + sequenceLength);
+            }
+            return new BamAlignment(
+                    referenceIndex < 0 ? -1 : referenceIndex,
+                    referenceIndex < 0 ? null : referenceNames[referenceIndex],
+                    start, end, unmapped, baseQualities);
+        }
+    }
+
+    /**
+     * Get number of reference bases covered by the CIGAR of the record.
+     * CIGARs with more operations than fit into the record are stored in
+     * the CG tag.
+     *
+     * @param cigar offset of the CIGAR
+     * @param operations number of CIGAR operations
+     * @param sequenceLength read length
+     * @param tags offset of the tags
+     * @param blockSize end of the tags
+     * @return reference length
+     * @throws IOException if the tags are corrupt
+     */
+    private int getReferenceLength(
+            int cigar,
+            int operations,
+            int sequenceLength,
+            int tags,
+            int blockSize
+    ) throws IOException {
+        if (operations == 2
+            && (getInt(record, cigar) & 0xf) == CIGAR_SOFT_CLIP
+            && getInt(record, cigar) >>> 4 == sequenceLength
+            && (getInt(record, cigar + 4) & 0xf) == CIGAR_SKIPPED) {
+            int longCigar = findLongCigar(tags, blockSize);
+            if (longCigar >= 0) {
+                cigar = longCigar;
+                operations = getInt(record, longCigar - 4);
+                if (operations < 0 || cigar + 4L * operations > blockSize) {
+                    throw new IOException("Corrupt BAM record tags");
+                }
+            }
+        }
+        int length = 0;
+        for (int i = 0; i < operations; ++i) {
+            int operation = getInt(record, cigar + 4 * i);
+            if ((CIGAR_REFERENCE >>> (operation & 0xf) & 1) != 0) {
+                length += operation >>> 4;
+            }
+        }
+        return length;
+    }
+
+    /**
+     * Find the CIGAR stored in the CG tag.
+     *
+     * @param tags offset of the tags
+     * @param blockSize end of the tags
+     * @return offset of the CIGAR operations, -1 if there is no CG tag
+     * @throws IOException if the tags are corrupt
+     */
+    private int findLongCigar(int tags, int blockSize) throws IOException {
+        int tag = tags;
+        while (tag + 3 <= blockSize) {
+            char type = (char) record[tag + 2];
+            int value = tag + 3;
+            if (record[tag] == 'C' && record[tag + 1] == 'G' && type == 'B'
+                && value + 5 <= blockSize && record[value] == 'I') {
+                return value + 5;
+            }
+            switch (type) {
+                case 'A':
+                case 'c':
+                case 'C':
+                    tag = value + 1;
+                    break;
+                case 's':
+                case 'S':
+                    tag = value + 2;
+                    break;
+                case 'i':
+                case 'I':
+                case 'f':
+                    tag = value + 4;
+                    break;
+                case 'Z':
+                case 'H':
+                    tag = value;
+                    while (tag < blockSize && record[tag] != 0) {
+                        ++tag;
+                    }
+                    ++tag;
+                    break;
+                case 'B':
+                    if (value + 5 > blockSize) {
+                        throw new IOException("Corrupt BAM record tags");
+                    }
+                    tag = value + 5 + getInt(record, value + 1) * getTypeSize((char) record[value]);
+                    break;
+                default:
+                    throw new IOException("Corrupt BAM record tags");
+            }
+        }
+        return -1;
+    }
+
+    /**
+     * Get size of the elements of an array tag.
+     *
+     * @param type element type
+     * @return size in bytes
+     * @throws IOException if the type is unknown
+     */
+    private static int getTypeSize(char type) throws IOException {
+        switch (type) {
+            case 'c':
+            case 'C':
+                return 1;
+            case 's':
+            case 'S':
+                return 2;
+            case 'i':
+            case 'I':
+            case 'f':
+                return 4;
+            default:
+                throw new IOException("Corrupt BAM record tags");
+        }
+    }
+
+    /**
+     * Read block size of next record.
+     *
+     * @return block size, -1 at the end of the spans
+     * @throws IOException if the block size is truncated
+     */
+    private int readBlockSize() throws IOException {
+        int n = blocks.read(record, 0, 4);
+        if (n < 0) {
+            return -1;
+        }
+        while (n < 4) {
+            int m = blocks.read(record, n, 4 - n);
+            if (m < 0) {
+                throw new EOFException("Truncated BAM record");
+            }
+            n += m;
+        }
+        return getInt(record, 0);
+    }
+
+    /**
+     * Read bytes of record.
+     *
+     * @param buffer buffer
+     * @param length number of bytes
+     * @throws IOException if the record is truncated
+     */
+    private void readFully(byte[] buffer, int length) throws IOException {
+        int n = 0;
+        while (n < length) {
+            int m = blocks.read(buffer, n, length - n);
+            if (m < 0) {
+                throw new EOFException("Truncated BAM record");
+            }
+            n += m;
+        }
+    }
+
+    private static int getInt(byte[] buffer, int offset) {
+        return (buffer[offset] & 0xff)
+               | (buffer[offset + 1] & 0xff) << 8
+               | (buffer[offset + 2] & 0xff) << 16
+               | (buffer[offset + 3] & 0xff) << 24;
+    }
+
+    private static int getUnsignedShort(byte[] buffer, int offset) {
+        return (buffer[offset] & 0xff) | (buffer[offset + 1] & 0xff) << 8;
+    }
+}
@@ -0,0 +1,260 @@
+/**
+ *****************************************************************************
+ * Copyright (c) 2015 Daniel Gerighausen, Lydia Mueller, and Dirk Zeckzer
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ ******************************************************************************
+ */
+package biovis.sierra.server.bam;
+
+import biovis.sierra.data.DataMapper;
+import htsjdk.samtools.SAMRecord;
+import htsjdk.samtools.SamReader;
+import htsjdk.samtools.SamReaderFactory;
+import htsjdk.samtools.util.CloseableIterator;
+import htsjdk.samtools.util.Interval;
+import htsjdk.samtools.util.SamRecordIntervalIteratorFactory;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+
+/**
+ * Reads the alignments of BAM files as configured in the data mapper:
+ * - decoder "htsjdk": records are decoded by htsjdk, by the SamReader itself
+ * or from blocks inflated ahead by a pool of inflater threads
+ * - decoder "lean": only the fields needed for counting are decoded
+ * (BamAlignmentDecoder), blocks are inflated by the pool if there is one
+ *
+ * Base qualities are decoded for the reads of the quality sampling only, the
+ * base qualities of all other reads are empty.
+ *
+ * Readers, file channels and indices are taken from a pool shared by all
+ * threads of the calculation, so a query costs a seek instead of opening
+ * the file and loading its index.
+ *
+ * @author Lydia Mueller, Dirk Zeckzer
+ */
+public class BamAlignmentReader {
+
+    public final static String DECODER_HTSJDK = "htsjdk";
+    public final static String DECODER_LEAN = "lean";
+
+    private final static SamRecordIntervalIteratorFactory samRecordIntervalIteratorFactory = new SamRecordIntervalIteratorFactory();
+
+    private final boolean lean;
+    private final int threads;
+    private final BamQualitySampling sampling;
+    private final ExecutorService inflaters;
+    private final SamReaderPool readers = new SamReaderPool(SamReaderFactory.makeDefault());
+
+    /**
+     * Constructor.
+     *
+     * @param decoder decoder, "htsjdk" or "lean"
+     * @param inflateThreads number of inflater threads, 0 for none
+     */
+    public BamAlignmentReader(String decoder, int inflateThreads) {
+        this(decoder, inflateThreads, BamQualitySampling.ALL);
+    }
+
+    /**
+     * Constructor.
+     *
+     * @param decoder decoder, "htsjdk" or "lean"
+     * @param inflateThreads number of inflater threads, 0 for none
+     * @param sampling reads whose base qualities are decoded
+     */
+    public BamAlignmentReader(String decoder, int inflateThreads, BamQualitySampling sampling) {
+        this.sampling = sampling;
+        this.lean = DECODER_LEAN.equals(decoder);
+        this.threads = Math.max(0, inflateThreads);
+        this.inflaters = threads > 0 ? BgzfInputStream.newInflaterPool(threads) : null;
+    }
+
+    /**
+     * Create reader as configured in the data mapper.
+     *
+     * @param mapper data mapper
+     * @return reader
+     */
+    public static BamAlignmentReader create(DataMapper mapper) {
+        return new BamAlignmentReader(mapper.getBamDecoder(), mapper.getInflateThreads());
+    }
+
+    /**
+     * Create reader for window construction as configured in the data mapper.
+     * Base qualities are only decoded for the sampled reads.
+     *
+     * @param mapper data mapper
+     * @return reader
+     */
+    public static BamAlignmentReader createForWindows(DataMapper mapper) {
+        return new BamAlignmentReader(mapper.getBamDecoder(), mapper.getInflateThreads(),
+                                      new BamQualitySampling(mapper.getQualitySampling()));
+    }
+
+    public BamQualitySampling getSampling() {
+        return sampling;
+    }
+
+    /**
+     * Get pool of the readers.
+     *
+     * @return reader pool
+     */
+    public SamReaderPool getReaders() {
+        return readers;
+    }
+
+    /**
+     * Iterate over all alignments of a BAM file.
+     *
+     * @param file BAM file
+     * @return iterator
+     * @throws IOException if the file cannot be opened
+     */
+    public CloseableIterator<BamAlignment> all(File file) throws IOException {
+        SamReaderPool.Lease lease = readers.acquire(file);
+        try {
+            SamReader samReader = lease.getReader();
+            if (lean) {
+                return new Leased<>(lease, new BamAlignmentDecoder(
+                        readers.getChannel(file), samReader.getFileHeader(), BamQuery.all(), sampling, inflaters, threads));
+            }
+            if (inflaters != null) {
+                return new Records(lease, sampling, new BamRecordIterator(
+                        readers.getChannel(file), samReader.getFileHeader(), BamQuery.all(), inflaters, threads));
+            }
+            return new Records(lease, sampling, samReader.iterator());
+        } catch (IOException | RuntimeException e) {
+            lease.close();
+            throw e;
+        }
+    }
+
+    /**
+     * Iterate over the alignments overlapping intervals on one reference.
+     *
+     * @param file BAM file
+     * @param intervals intervals on one reference
+     * @return iterator
+     * @throws IOException if the file cannot be opened or has no index
+     */
+    public CloseableIterator<BamAlignment> query(
+            File file,
+            List<Interval> intervals
+    ) throws IOException {
+        SamReaderPool.Lease lease = readers.acquire(file);
+        try {
+            SamReader samReader = lease.getReader();
+            if (!lean && inflaters == null) {
+                return new Records(lease, sampling, samRecordIntervalIteratorFactory.makeSamRecordIntervalIterator(samReader, intervals, true));
+            }
+            BamQuery query = BamQuery.overlapping(
+                    readers, file, samReader.getFileHeader().getSequenceDictionary(), intervals);
+            if (lean) {
+                return new Leased<>(lease, new BamAlignmentDecoder(
+                        readers.getChannel(file), samReader.getFileHeader(), query, sampling, inflaters, threads));
+            }
+            return new Records(lease, sampling, new BamRecordIterator(
+                    readers.getChannel(file), samReader.getFileHeader(), query, inflaters, threads));
+        } catch (IOException | RuntimeException e) {
+            lease.close();
+            throw e;
+        }
+    }
+
+    /**
+     * Stop the inflater threads and close all readers.
+     */
+    public void close() {
+        if (inflaters != null) {
+            inflaters.shutdownNow();
+        }
+        readers.close();
+    }
+
+    /**
+     * Iterator returning its reader to the pool when closed.
+     *
+     * @param <T> element type
+     */
+    private static class Leased<T>
+            implements CloseableIterator<T> {
+
+        private final SamReaderPool.Lease lease;
+        private final CloseableIterator<T> iterator;
+
+        Leased(SamReaderPool.Lease lease, CloseableIterator<T> iterator) {
+            this.lease = lease;
+            this.iterator = iterator;
+        }
+
+        @Override
+        public boolean hasNext() {
+            return iterator.hasNext();
+        }
+
+        @Override
+        public T next() {
+            return iterator.next();
+        }
+
+        @Override
+        public void close() {
+            try {
+                iterator.close();
+            } finally {
+                lease.close();
+            }
+        }
+    }
+
+    /**
+     * Alignments of records decoded by htsjdk.
+     */
+    private static class Records
+            implements CloseableIterator<BamAlignment> {
+
+        private final SamReaderPool.Lease lease;
+        private final BamQualitySampling sampling;
+        private final CloseableIterator<SAMRecord> records;
+
+        Records(SamReaderPool.Lease lease, BamQualitySampling sampling, CloseableIterator<SAMRecord> records) {
+            this.lease = lease;
+            this.sampling = sampling;
+            this.records = records;
+        }
+
+        @Override
+        public boolean hasNext() {
+            return records.hasNext();
+        }
+
+        @Override
+        public BamAlignment next() {
+            return new BamAlignment(records.next(), sampling);
+        }
+
+        @Override
+        public void close() {
+            try {
+                records.close();
+            } finally {
+                lease.close();
+            }
+        }
+    }
+}
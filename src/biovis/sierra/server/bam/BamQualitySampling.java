@@ -0,0 +1,116 @@
+/**
+ *****************************************************************************
+ * Copyright (c) 2015 Daniel Gerighausen, Lydia Mueller, and Dirk Zeckzer
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ ******************************************************************************
+ */
+package biovis.sierra.server.bam;
+
+/**
+ * Deterministic sampling of the reads whose base qualities are decoded.
+ *
+ * A read is sampled if the hash of its name is divisible by the sampling
+ * rate, i.e., about one of rate reads is sampled and both mates of a pair
+ * are sampled together. The decision depends on the read name only, so
+ * every decoder and every run samples the same reads.
+ *
+ * @author Lydia Mueller, Dirk Zeckzer
+ */
+public class BamQualitySampling {
+
+    // all reads are sampled
+    public final static BamQualitySampling ALL = new BamQualitySampling(1);
+
+    // FNV-1a hash of the read name
+    private final static int FNV_OFFSET = 0x811c9dc5;
+    private final static int FNV_PRIME = 0x01000193;
+
+    private final int rate;
+
+    /**
+     * Constructor.
+     *
+     * @param rate one of rate reads is sampled, values below 1 sample all
+     * reads
+     */
+    public BamQualitySampling(int rate) {
+        this.rate = Math.max(1, rate);
+    }
+
+    public int getRate() {
+        return rate;
+    }
+
+    /**
+     * Check whether all reads are sampled.
+     *
+     * @return true iff all reads are sampled
+     */
+    public boolean isComplete() {
+        return rate == 1;
+    }
+
+    /**
+     * Check whether a read is sampled.
+     *
+     * @param name read name
+     * @return true iff the base qualities of the read are needed
+     */
+    public boolean isSampled(String name) {
+        if (rate == 1) {
+            return true;
+        }
+        int hash = FNV_OFFSET;
+        for (int i = 0; i < name.length(); ++i) {
+            hash = (hash ^ (name.charAt(i) & 0xff)) * FNV_PRIME;
+        }
+        return isSampled(hash);
+    }
+
+    /**
+     * Check whether a read is sampled.
+     *
+     * @param record record containing the read name
+     * @param offset offset of the read name
+     * @param length length of the read name without terminating NUL
+     * @return true iff the base qualities of the read are needed
+     */
+    public boolean isSampled(byte[] record, int offset, int length) {
+        if (rate == 1) {
+            return true;
+        }
+        int hash = FNV_OFFSET;
+        for (int i = offset; i < offset + length; ++i) {
+            hash = (hash ^ (record[i] & 0xff)) * FNV_PRIME;
+        }
+        return isSampled(hash);
+    }
+
+    /**
+     * Check whether a read with the given name hash is sampled. The hash is
+     * mixed first since read names often differ in their last characters
+     * only.
+     *
+     * @param hash hash of the read name
+     * @return true iff the read is sampled
+     */
+    private boolean isSampled(int hash) {
+        hash ^= hash >>> 16;
+        hash *= 0x85ebca6b;
+        hash ^= hash >>> 13;
+        hash *= 0xc2b2ae35;
+        hash ^= hash >>> 16;
+        return Integer.remainderUnsigned(hash, rate) == 0;
+    }
+}
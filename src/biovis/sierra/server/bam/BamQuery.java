@@ -0,0 +1,265 @@
+/**
+ *****************************************************************************
+ * Copyright (c) 2015 Daniel Gerighausen, Lydia Mueller, and Dirk Zeckzer
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ ******************************************************************************
+ */
+package biovis.sierra.server.bam;
+
+import htsjdk.samtools.BAMFileSpan;
+import htsjdk.samtools.Chunk;
+import htsjdk.samtools.SAMSequenceDictionary;
+import htsjdk.samtools.util.Interval;
+
+import java.io.DataInputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+
+/**
+ * Part of a BAM file to read: either all records or the records overlapping
+ * a set of intervals on one reference.
+ *
+ * A record overlaps an interval if it starts before the end of the interval
+ * and ends after its start; records without alignment end are located at
+ * their start.
+ *
+ * @author Lydia Mueller, Dirk Zeckzer
+ */
+class BamQuery {
+
+    // result of filtering a record
+    final static int ACCEPT = 0;
+    final static int SKIP = 1;
+    final static int DONE = 2;
+
+    // virtual file offsets of start and end of each span to read
+    private final long[] spans;
+    // reference and merged intervals [start, end] of a query, null for all records
+    private final int referenceIndex;
+    private final int[] intervals;
+    private int interval = 0;
+
+    /**
+     * Constructor.
+     *
+     * @param spans virtual file offsets of start and end of each span to read
+     * @param referenceIndex reference of the query
+     * @param intervals merged intervals of the query, null for all records
+     */
+    private BamQuery(long[] spans, int referenceIndex, int[] intervals) {
+        this.spans = spans;
+        this.referenceIndex = referenceIndex;
+        this.intervals = intervals;
+    }
+
+    /**
+     * Query all records of a file.
+     *
+     * @return query
+     */
+    static BamQuery all() {
+        return new BamQuery(new long[]{0, BgzfInputStream.END_OF_FILE}, -1, null);
+    }
+
+    /**
+     * Query the records overlapping intervals on one reference. The spans to
+     * read are taken from the shared index of the file.
+     *
+     * @param readers reader pool providing the index
+     * @param file BAM file
+     * @param dictionary references of the file
+     * @param intervals intervals on one reference
+     * @return query
+     * @throws IOException if the file has no index
+     */
+    static BamQuery overlapping(
+            SamReaderPool readers,
+            File file,
+            SAMSequenceDictionary dictionary,
+            List<Interval> intervals
+    ) throws IOException {
+        int[] merged = mergeIntervals(intervals);
+        if (merged.length == 0) {
+            return new BamQuery(new long[0], -1, merged);
+        }
+        int referenceIndex = dictionary.getSequenceIndex(intervals.get(0).getContig());
+        if (referenceIndex < 0) {
+            return new BamQuery(new long[0], -1, new int[0]);
+        }
+
+        List<Chunk> chunks = new ArrayList<>();
+        for (int i = 0; i < merged.length; i += 2) {
+            BAMFileSpan span = readers.getSpanOverlapping(file, referenceIndex, merged[i], merged[i + 1]);
+            if (span == null) {
+                throw new IOException("No index for " + file);
+            }
+            if (!span.isEmpty()) {
+                chunks.addAll(span.getChunks());
+            }
+        }
+        return new BamQuery(mergeChunks(chunks), referenceIndex, merged);
+    }
+
+    /**
+     * Get spans to read.
+     *
+     * @return virtual file offsets of start and end of each span
+     */
+    long[] getSpans() {
+        return spans;
+    }
+
+    /**
+     * Check whether the spans start with the BAM header.
+     *
+     * @return true for all records
+     */
+    boolean includesHeader() {
+        return intervals == null;
+    }
+
+    /**
+     * Filter next record. Records must be passed in file order.
+     *
+     * @param recordReferenceIndex reference of record, -1 if unplaced
+     * @param start alignment start
+     * @param end alignment end, start for records without alignment end
+     * @return ACCEPT, SKIP, or DONE if no further record can be accepted
+     */
+    int filter(int recordReferenceIndex, int start, int end) {
+        if (intervals == null) {
+            return ACCEPT;
+        }
+        if (recordReferenceIndex != referenceIndex) {
+            return SKIP;
+        }
+        // records are sorted by start, skip intervals ending before
+        while (interval < intervals.length && intervals[interval + 1] < start) {
+            interval += 2;
+        }
+        if (interval >= intervals.length) {
+            // no further record overlaps an interval
+            return DONE;
+        }
+        return intervals[interval] <= end ? ACCEPT : SKIP;
+    }
+
+    /**
+     * Skip BAM header at the start of the file.
+     *
+     * @param blocks decompressed file
+     * @throws IOException if the file is no BAM file
+     */
+    static void skipHeader(InputStream blocks) throws IOException {
+        DataInputStream in = new DataInputStream(blocks);
+        byte[] magic = new byte[4];
+        in.readFully(magic);
+        if (magic[0] != 'B' || magic[1] != 'A' || magic[2] != 'M' || magic[3] != 1) {
+            throw new IOException("No BAM file");
+        }
+        skipFully(in, readInt(in));
+        int references = readInt(in);
+        for (int i = 0; i < references; ++i) {
+            // name and length
+            skipFully(in, readInt(in) + 4);
+        }
+    }
+
+    /**
+     * Skip bytes of the header.
+     *
+     * @param in input
+     * @param n number of bytes
+     * @throws IOException if the input ends
+     */
+    private static void skipFully(DataInputStream in, int n) throws IOException {
+        if (in.skipBytes(n) != n) {
+            throw new EOFException("Truncated BAM header");
+        }
+    }
+
+    /**
+     * Read little endian integer.
+     *
+     * @param in input
+     * @return integer
+     * @throws IOException if the input ends
+     */
+    private static int readInt(DataInputStream in) throws IOException {
+        return Integer.reverseBytes(in.readInt());
+    }
+
+    /**
+     * Sort intervals and merge overlapping intervals.
+     *
+     * @param intervals intervals on one reference
+     * @return start and end of each merged interval
+     */
+    private static int[] mergeIntervals(List<Interval> intervals) {
+        List<Interval> sorted = new ArrayList<>(intervals);
+        Collections.sort(sorted, new Comparator<Interval>() {
+            @Override
+            public int compare(Interval i1, Interval i2) {
+                return Integer.compare(i1.getStart(), i2.getStart());
+            }
+        });
+        int[] merged = new int[2 * sorted.size()];
+        int size = 0;
+        for (Interval i : sorted) {
+            if (size > 0 && i.getStart() <= merged[size - 1] + 1) {
+                merged[size - 1] = Math.max(merged[size - 1], i.getEnd());
+            } else {
+                merged[size++] = i.getStart();
+                merged[size++] = i.getEnd();
+            }
+        }
+        int[] result = new int[size];
+        System.arraycopy(merged, 0, result, 0, size);
+        return result;
+    }
+
+    /**
+     * Sort chunks and merge overlapping chunks.
+     *
+     * @param chunks chunks of the index
+     * @return virtual file offsets of start and end of each merged chunk
+     */
+    private static long[] mergeChunks(List<Chunk> chunks) {
+        Collections.sort(chunks, new Comparator<Chunk>() {
+            @Override
+            public int compare(Chunk c1, Chunk c2) {
+                return Long.compare(c1.getChunkStart(), c2.getChunkStart());
+            }
+        });
+        long[] merged = new long[2 * chunks.size()];
+        int size = 0;
+        for (Chunk chunk : chunks) {
+            if (size > 0 && chunk.getChunkStart() <= merged[size - 1]) {
+                merged[size - 1] = Math.max(merged[size - 1], chunk.getChunkEnd());
+            } else {
+                merged[size++] = chunk.getChunkStart();
+                merged[size++] = chunk.getChunkEnd();
+            }
+        }
+        long[] result = new long[size];
+        System.arraycopy(merged, 0, result, 0, size);
+        return result;
+    }
+}
@@ -0,0 +1,132 @@
+/**
+ *****************************************************************************
+ * Copyright (c) 2015 Daniel Gerighausen, Lydia Mueller, and Dirk Zeckzer
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ ******************************************************************************
+ */
+package biovis.sierra.server.bam;
+
+import htsjdk.samtools.BAMRecordCodec;
+import htsjdk.samtools.SAMFileHeader;
+import htsjdk.samtools.SAMRecord;
+import htsjdk.samtools.util.CloseableIterator;
+
+import java.io.IOException;
+import java.nio.channels.FileChannel;
+import java.util.NoSuchElementException;
+import java.util.concurrent.ExecutorService;
+
+/**
+ * Iterator over the records of a BAM file decompressed by a pool of inflater
+ * threads.
+ *
+ * Either all records of the file are returned or the records overlapping a
+ * set of intervals on one reference, like an indexed query of a SamReader.
+ * A record overlaps an interval if it starts before the end of the interval
+ * and ends after its start; records without alignment end are located at
+ * their start.
+ *
+ * @author Lydia Mueller, Dirk Zeckzer
+ */
+public class BamRecordIterator
+        implements CloseableIterator<SAMRecord> {
+
+    // blocks read ahead per inflater thread
+    final static int BLOCKS_IN_FLIGHT_PER_THREAD = 2;
+
+    private final BgzfInputStream blocks;
+    private final BAMRecordCodec codec;
+    private final BamQuery query;
+
+    private SAMRecord next = null;
+
+    /**
+     * Constructor.
+     *
+     * @param channel channel of the BAM file, not closed by the iterator
+     * @param header header of the file
+     * @param query part of the file to read
+     * @param inflaters pool inflating the blocks
+     * @param threads number of inflater threads
+     * @throws IOException if the header cannot be skipped
+     */
+    BamRecordIterator(
+            FileChannel channel,
+            SAMFileHeader header,
+            BamQuery query,
+            ExecutorService inflaters,
+            int threads
+    ) throws IOException {
+        this.blocks = new BgzfInputStream(channel, query.getSpans(), inflaters, threads * BLOCKS_IN_FLIGHT_PER_THREAD);
+        this.codec = new BAMRecordCodec(header);
+        this.query = query;
+        try {
+            if (query.includesHeader()) {
+                BamQuery.skipHeader(blocks);
+            }
+            codec.setInputStream(blocks);
+        } catch (IOException | RuntimeException e) {
+            close();
+            throw e;
+        }
+    }
+
+    @Override
+    public boolean hasNext() {
+        if (next == null) {
+            next = advance();
+        }
+        return next != null;
+    }
+
+    @Override
+    public SAMRecord next() {
+        if (!hasNext()) {
+            throw new NoSuchElementException();
+        }
+        SAMRecord record = next;
+        next = null;
+        return record;
+    }
+
+    @Override
+    public void close() {
+        blocks.close();
+    }
+
+    /**
+     * Find next record of the query.
+     *
+     * @return next record, null if there is none
+     */
+    private SAMRecord advance() {
+        while (true) {
+            SAMRecord record = codec.decode();
+            if (record == null) {
+                return null;
+            }
+            Integer reference = record.getReferenceIndex();
+            int start = record.getStart();
+            int end = record.getReadUnmappedFlag() ? start : record.getEnd();
+            switch (query.filter(reference == null ? -1 : reference, start, end)) {
+                case BamQuery.ACCEPT:
+                    return record;
+                case BamQuery.DONE:
+                    return null;
+                default:
+                    break;
+            }
+        }
+    }
+}
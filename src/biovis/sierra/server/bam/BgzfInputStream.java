@@ -0,0 +1,370 @@
+/**
+ *****************************************************************************
+ * Copyright (c) 2015 Daniel Gerighausen, Lydia Mueller, and Dirk Zeckzer
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ ******************************************************************************
+ */
+package biovis.sierra.server.bam;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
+import java.util.ArrayDeque;
+import java.util.Deque;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadFactory;
+import java.util.zip.DataFormatException;
+import java.util.zip.Inflater;
+
+/**
+ * Decompressed content of spans of a BGZF compressed file, e.g., a BAM file.
+ *
+ * Compressed blocks are read with large positional reads and inflated on a
+ * pool of inflater threads. Up to blocksInFlight blocks are read ahead and
+ * inflated while the caller consumes the blocks in file order. Without a
+ * pool, blocks are inflated by the caller.
+ *
+ * Spans are given as pairs of virtual file offsets [start, end) as used in
+ * BAM indices: the upper 48 bits are the address of a compressed block, the
+ * lower 16 bits are the offset within the decompressed block.
+ *
+ * @author Lydia Mueller, Dirk Zeckzer
+ */
+public class BgzfInputStream
+        extends InputStream {
+
+    // end of the file as virtual file offset
+    public final static long END_OF_FILE = Long.MAX_VALUE;
+
+    private final static int BLOCK_HEADER_LENGTH = 18;
+    private final static int MAX_BLOCK_SIZE = 65536;
+    private final static int READ_SIZE = 4 * 1024 * 1024;
+
+    // inflater of each inflater thread
+    private final static ThreadLocal<Inflater> inflater = new ThreadLocal<Inflater>() {
+        @Override
+        protected Inflater initialValue() {
+            return new Inflater(true);
+        }
+    };
+
+    private final FileChannel channel;
+    private final long[] spans;
+    private final ExecutorService inflaters;
+    private final int blocksInFlight;
+
+    // blocks being inflated in file order
+    private final Deque<Future<Block>> inflating = new ArrayDeque<>();
+
+    // compressed data read ahead
+    private final ByteBuffer compressed = ByteBuffer.allocate(READ_SIZE).order(ByteOrder.LITTLE_ENDIAN);
+    private long compressedAddress = 0;
+
+    // next block to read
+    private int span = 0;
+    private long blockAddress;
+    private boolean endOfFile = false;
+
+    // block being consumed
+    private Block current = null;
+
+    /**
+     * Constructor.
+     *
+     * @param channel file channel, not closed by this stream
+     * @param spans virtual file offsets of start and end of each span, spans
+     * are sorted and do not overlap
+     * @param inflaters pool inflating the blocks, null to inflate by the caller
+     * @param blocksInFlight maximum number of blocks read ahead
+     */
+    public BgzfInputStream(
+            FileChannel channel,
+            long[] spans,
+            ExecutorService inflaters,
+            int blocksInFlight
+    ) {
+        this.channel = channel;
+        this.spans = spans;
+        this.inflaters = inflaters;
+        this.blocksInFlight = Math.max(1, blocksInFlight);
+        this.compressed.limit(0);
+        if (spans.length > 0) {
+            blockAddress = spans[0] >>> 16;
+        }
+    }
+
+    /**
+     * Create pool of inflater threads. The threads do not keep the virtual
+     * machine alive.
+     *
+     * @param threads number of threads
+     * @return pool
+     */
+    public static ExecutorService newInflaterPool(int threads) {
+        return Executors.newFixedThreadPool(threads, new ThreadFactory() {
+            @Override
+            public Thread newThread(Runnable r) {
+                Thread thread = new Thread(r, "BGZF inflater");
+                thread.setDaemon(true);
+                return thread;
+            }
+        });
+    }
+
+    @Override
+    public int read() throws IOException {
+        if (!nextBlock()) {
+            return -1;
+        }
+        return current.data[current.position++] & 0xff;
+    }
+
+    @Override
+    public int read(byte[] b, int off, int len) throws IOException {
+        if (len == 0) {
+            return 0;
+        }
+        if (!nextBlock()) {
+            return -1;
+        }
+        int n = Math.min(len, current.limit - current.position);
+        System.arraycopy(current.data, current.position, b, off, n);
+        current.position += n;
+        return n;
+    }
+
+    @Override
+    public long skip(long n) throws IOException {
+        long skipped = 0;
+        while (skipped < n && nextBlock()) {
+            int step = (int) Math.min(n - skipped, current.limit - current.position);
+            current.position += step;
+            skipped += step;
+        }
+        return skipped;
+    }
+
+    @Override
+    public void close() {
+        for (Future<Block> future : inflating) {
+            future.cancel(false);
+        }
+        inflating.clear();
+        current = null;
+        span = spans.length / 2;
+    }
+
+    /**
+     * Make sure that the current block has data left.
+     *
+     * @return false at the end of the last span
+     * @throws IOException if a block cannot be read or inflated
+     */
+    private boolean nextBlock() throws IOException {
+        while (current == null || current.position >= current.limit) {
+            submitBlocks();
+            Future<Block> future = inflating.pollFirst();
+            if (future == null) {
+                return false;
+            }
+            try {
+                current = future.get();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new IOException("Reading BGZF block interrupted", e);
+            } catch (ExecutionException e) {
+                if (e.getCause() instanceof IOException) {
+                    throw (IOException) e.getCause();
+                }
+                throw new IOException("Inflating BGZF block failed", e.getCause());
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Read blocks ahead and submit them for inflating.
+     *
+     * @throws IOException if a block cannot be read
+     */
+    private void submitBlocks() throws IOException {
+        while (inflating.size() < blocksInFlight && 2 * span < spans.length && !endOfFile) {
+            long start = spans[2 * span];
+            long end = spans[2 * span + 1];
+            if (blockAddress > (end >>> 16)) {
+                nextSpan();
+                continue;
+            }
+            final byte[] block = readBlock(blockAddress, (end >>> 16) + MAX_BLOCK_SIZE);
+            if (block == null) {
+                endOfFile = true;
+                break;
+            }
+            // part of the decompressed block inside the span
+            final int from = blockAddress == (start >>> 16) ? (int) (start & 0xffff) : 0;
+            final int to = blockAddress == (end >>> 16) ? (int) (end & 0xffff) : MAX_BLOCK_SIZE;
+            blockAddress += block.length;
+            if (from < to && inflaters == null) {
+                inflating.addLast(CompletableFuture.completedFuture(inflate(block, from, to)));
+            } else if (from < to) {
+                inflating.addLast(inflaters.submit(new Callable<Block>() {
+                    @Override
+                    public Block call() throws IOException {
+                        return inflate(block, from, to);
+                    }
+                }));
+            }
+        }
+    }
+
+    /**
+     * Move to next span. The next span may start in the last block of the
+     * previous span.
+     */
+    private void nextSpan() {
+        ++span;
+        if (2 * span < spans.length) {
+            blockAddress = spans[2 * span] >>> 16;
+        }
+    }
+
+    /**
+     * Read compressed block.
+     *
+     * @param address address of block
+     * @param readEnd address up to which reading ahead is useful
+     * @return compressed block including header and footer, null at the end
+     * of the file
+     * @throws IOException if the block cannot be read or is no BGZF block
+     */
+    private byte[] readBlock(long address, long readEnd) throws IOException {
+        if (!fill(address, BLOCK_HEADER_LENGTH, readEnd)) {
+            return null;
+        }
+        int header = (int) (address - compressedAddress);
+        if (compressed.get(header) != 31 || (compressed.get(header + 1) & 0xff) != 139
+            || (compressed.get(header + 3) & 4) == 0) {
+            throw new IOException("No BGZF block at address " + address);
+        }
+        int extraLength = compressed.getShort(header + 10) & 0xffff;
+        if (!fill(address, 12 + extraLength, readEnd)) {
+            throw new IOException("Truncated BGZF block at address " + address);
+        }
+        header = (int) (address - compressedAddress);
+        int blockSize = -1;
+        for (int field = header + 12; field + 4 <= header + 12 + extraLength; ) {
+            int fieldLength = compressed.getShort(field + 2) & 0xffff;
+            if (compressed.get(field) == 66 && compressed.get(field + 1) == 67 && fieldLength == 2) {
+                blockSize = (compressed.getShort(field + 4) & 0xffff) + 1;
+            }
+            field += 4 + fieldLength;
+        }
+        if (blockSize < 0) {
+            throw new IOException("No BGZF block size at address " + address);
+        }
+        if (!fill(address, blockSize, readEnd)) {
+            throw new IOException("Truncated BGZF block at address " + address);
+        }
+        byte[] block = new byte[blockSize];
+        compressed.position((int) (address - compressedAddress));
+        compressed.get(block);
+        return block;
+    }
+
+    /**
+     * Make sure that length bytes starting at address are in the read ahead
+     * buffer.
+     *
+     * @param address file address
+     * @param length number of bytes
+     * @param readEnd address up to which reading ahead is useful
+     * @return false if the file ends before
+     * @throws IOException if the file cannot be read
+     */
+    private boolean fill(long address, int length, long readEnd) throws IOException {
+        if (address >= compressedAddress && address + length <= compressedAddress + compressed.limit()) {
+            return true;
+        }
+        compressed.clear();
+        compressed.limit((int) Math.min(compressed.capacity(), Math.max(length, readEnd - address)));
+        compressedAddress = address;
+        while (compressed.hasRemaining()) {
+            if (channel.read(compressed, address + compressed.position()) < 0) {
+                break;
+            }
+        }
+        compressed.flip();
+        return compressed.limit() >= length;
+    }
+
+    /**
+     * Inflate compressed block.
+     *
+     * @param block compressed block
+     * @param from first byte of the decompressed block to deliver
+     * @param to end of the bytes of the decompressed block to deliver
+     * @return decompressed block
+     * @throws IOException if the block is corrupt
+     */
+    private static Block inflate(byte[] block, int from, int to) throws IOException {
+        ByteBuffer footer = ByteBuffer.wrap(block, block.length - 4, 4).order(ByteOrder.LITTLE_ENDIAN);
+        int size = footer.getInt();
+        int extraLength = (block[10] & 0xff) | (block[11] & 0xff) << 8;
+        int dataOffset = 12 + extraLength;
+
+        byte[] data = new byte[size];
+        Inflater blockInflater = inflater.get();
+        blockInflater.reset();
+        blockInflater.setInput(block, dataOffset, block.length - dataOffset - 8);
+        try {
+            int inflated = 0;
+            while (inflated < size) {
+                int n = blockInflater.inflate(data, inflated, size - inflated);
+                if (n == 0 && (blockInflater.finished() || blockInflater.needsInput())) {
+                    break;
+                }
+                inflated += n;
+            }
+            if (inflated != size) {
+                throw new IOException("Corrupt BGZF block");
+            }
+        } catch (DataFormatException e) {
+            throw new IOException("Corrupt BGZF block", e);
+        }
+        return new Block(data, Math.min(from, size), Math.min(to, size));
+    }
+
+    /**
+     * Decompressed block.
+     */
+    private static class Block {
+
+        final byte[] data;
+        int position;
+        final int limit;
+
+        Block(byte[] data, int position, int limit) {
+            this.data = data;
+            this.position = position;
+            this.limit = limit;
+        }
+    }
+}
@@ -0,0 +1,241 @@
+/**
+ *****************************************************************************
+ * Copyright (c) 2015 Daniel Gerighausen, Lydia Mueller, and Dirk Zeckzer
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ ******************************************************************************
+ */
+package biovis.sierra.server.bam;
+
+import htsjdk.samtools.BAMFileSpan;
+import htsjdk.samtools.BAMIndex;
+import htsjdk.samtools.SamReader;
+import htsjdk.samtools.SamReaderFactory;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.channels.FileChannel;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Deque;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Open readers of BAM files shared by the threads of a calculation.
+ *
+ * A reader is leased by one thread at a time and returned to the pool
+ * afterwards, so at most one reader per concurrently reading thread is
+ * opened per file and header and index are read once per reader instead of
+ * once per query. In addition, each file has one channel shared by all
+ * threads for positional reads and one index shared read-only for computing
+ * the spans of queries.
+ *
+ * @author Lydia Mueller, Dirk Zeckzer
+ */
+public class SamReaderPool {
+
+    private final SamReaderFactory samReaderFactory;
+    private final Map<File, Entry> entries = new HashMap<>();
+    private boolean closed = false;
+
+    /**
+     * Constructor.
+     *
+     * @param samReaderFactory factory opening the readers
+     */
+    public SamReaderPool(SamReaderFactory samReaderFactory) {
+        this.samReaderFactory = samReaderFactory;
+    }
+
+    /**
+     * Lease reader of a file. The lease has to be closed after use.
+     *
+     * @param file BAM file
+     * @return lease
+     * @throws IOException if the file cannot be opened
+     */
+    public Lease acquire(File file) throws IOException {
+        Entry entry = getEntry(file);
+        SamReader samReader;
+        synchronized (entry) {
+            samReader = entry.idle.pollFirst();
+        }
+        if (samReader == null) {
+            samReader = samReaderFactory.open(file);
+            synchronized (entry) {
+                entry.readers.add(samReader);
+            }
+        }
+        return new Lease(entry, samReader);
+    }
+
+    /**
+     * Get channel of a file for positional reads. The channel is closed
+     * together with the pool.
+     *
+     * @param file BAM file
+     * @return channel
+     * @throws IOException if the file cannot be opened
+     */
+    FileChannel getChannel(File file) throws IOException {
+        Entry entry = getEntry(file);
+        synchronized (entry) {
+            if (entry.channel == null) {
+                entry.channel = FileChannel.open(file.toPath(), StandardOpenOption.READ);
+            }
+            return entry.channel;
+        }
+    }
+
+    /**
+     * Get span of the file containing all records overlapping an interval
+     * using the shared index of the file.
+     *
+     * @param file BAM file
+     * @param referenceIndex reference
+     * @param start interval start
+     * @param end interval end
+     * @return span, null if the file has no index
+     * @throws IOException if the file cannot be opened
+     */
+    BAMFileSpan getSpanOverlapping(File file, int referenceIndex, int start, int end) throws IOException {
+        Entry entry = getEntry(file);
+        synchronized (entry) {
+            if (entry.indexReader == null) {
+                entry.indexReader = samReaderFactory.open(file);
+            }
+            if (!entry.indexReader.hasIndex()) {
+                return null;
+            }
+            BAMIndex index = entry.indexReader.indexing().getIndex();
+            return index.getSpanOverlapping(referenceIndex, start, end);
+        }
+    }
+
+    /**
+     * Close all readers and channels.
+     */
+    public void close() {
+        List<Entry> all;
+        synchronized (this) {
+            closed = true;
+            all = new ArrayList<>(entries.values());
+            entries.clear();
+        }
+        for (Entry entry : all) {
+            synchronized (entry) {
+                for (SamReader samReader : entry.readers) {
+                    closeQuietly(entry.file, samReader);
+                }
+                entry.readers.clear();
+                entry.idle.clear();
+                closeQuietly(entry.file, entry.indexReader);
+                closeQuietly(entry.file, entry.channel);
+                entry.indexReader = null;
+                entry.channel = null;
+            }
+        }
+    }
+
+    /**
+     * Get pool entry of a file.
+     *
+     * @param file BAM file
+     * @return entry
+     * @throws IOException if the pool is closed
+     */
+    private synchronized Entry getEntry(File file) throws IOException {
+        if (closed) {
+            throw new IOException("Reader pool closed");
+        }
+        Entry entry = entries.get(file);
+        if (entry == null) {
+            entry = new Entry(file);
+            entries.put(file, entry);
+        }
+        return entry;
+    }
+
+    /**
+     * Close reader or channel, errors are logged only.
+     *
+     * @param file file
+     * @param closeable reader or channel, may be null
+     */
+    private static void closeQuietly(File file, AutoCloseable closeable) {
+        if (closeable == null) {
+            return;
+        }
+        try {
+            closeable.close();
+        } catch (Exception e) {
+            Logger.getLogger(SamReaderPool.class.getName()).log(Level.WARNING, "Closing " + file + " failed", e);
+        }
+    }
+
+    /**
+     * Readers, channel and index of one file.
+     */
+    private static class Entry {
+
+        final File file;
+        final List<SamReader> readers = new ArrayList<>();
+        final Deque<SamReader> idle = new ArrayDeque<>();
+        FileChannel channel = null;
+        SamReader indexReader = null;
+
+        Entry(File file) {
+            this.file = file;
+        }
+    }
+
+    /**
+     * Reader leased by one thread.
+     */
+    public static class Lease
+            implements AutoCloseable {
+
+        private final Entry entry;
+        private SamReader samReader;
+
+        Lease(Entry entry, SamReader samReader) {
+            this.entry = entry;
+            this.samReader = samReader;
+        }
+
+        public SamReader getReader() {
+            return samReader;
+        }
+
+        /**
+         * Return reader to the pool.
+         */
+        @Override
+        public void close() {
+            if (samReader == null) {
+                return;
+            }
+            synchronized (entry) {
+                if (entry.readers.contains(samReader)) {
+                    entry.idle.addFirst(samReader);
+                }
+            }
+            samReader = null;
+        }
+    }
+}
@@ -20,16 +20,17 @@ package biovis.sierra.server.peakMe;
 import biovis.sierra.data.DataMapper;
 import biovis.sierra.data.Replicate;
 import biovis.sierra.data.windows.ChromosomeWindowRange;
-import biovis.sierra.data.windows.Window;
 import biovis.sierra.data.windows.WindowList;
-import biovis.sierra.data.windows.NeighborhoodLambda;
-import biovislib.parallel4.IterationParameter;
-import biovislib.parallel4.Parallel2;
-import biovislib.parallel4.ParallelForParameter;
-import biovislib.parallel4.ParallelizationFactory;
+import biovis.sierra.data.windows.NeighborhoodLambdas;
 
 import java.util.ArrayList;
 import java.util.List;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.logging.Level;
+import java.util.logging.Logger;
 
 /**
  *
@@ -37,6 +38,9 @@ import java.util.List;
  */
 public class PeakMeSpaceParallel {
 
+    // windows of a chromosome whose p-values are computed by one task
+    private final static int BLOCK_SIZE = 4096;
+
     private WindowList windowList;
     private DataMapper mapper;
 
@@ -56,57 +60,117 @@ public class PeakMeSpaceParallel {
 
     /**
      * Compute p-values for windows.
+     *
+     * The windows of each chromosome are split into blocks of BLOCK_SIZE
+     * windows. All blocks of all chromosomes are processed by a work stealing
+     * pool, so large chromosomes do not determine the run time.
      */
     public void peak() {
-        final List<ChromosomeWindowRange> chromosomeWindows = new ArrayList<>(windowList.getChromosomeWindows());
-        Parallel2 p2 = ParallelizationFactory.getInstance(mapper.getNumCores());
-        new ParallelForParameter<>(p2, chromosomeWindows).loop(
-                new IterationParameter<ChromosomeWindowRange>() {
-            @Override
-            public void iteration(ChromosomeWindowRange windowRange) {
-                List<Window> windows = windowList.getWindows(windowRange.getFirst(), windowRange.getLast());
-                NeighborhoodLambda neighbors1kFactory = new NeighborhoodLambda(windows, 1000, mapper.getReplicates());
-                NeighborhoodLambda neighbors5kFactory = new NeighborhoodLambda(windows, 5000, mapper.getReplicates());
-                NeighborhoodLambda neighbors10kFactory = new NeighborhoodLambda(windows, 10000, mapper.getReplicates());
-
-                int index = windowRange.getFirst();
-                double lambda1k[];
-                double lambda5k[];
-                double lambda10k[];
-                int expTag;
-                int controlTag;
-
-                double lambda;
-                double count;
-                double pval;
-                double countBack;
-                double pvalBack;
-                for (Window w : windows) {
-                    // Neighborhood lambda values
-                    lambda1k = neighbors1kFactory.computeLambda(w, index);
-                    lambda5k = neighbors5kFactory.computeLambda(w, index);
-                    lambda10k = neighbors10kFactory.computeLambda(w, index);
-
-                    // Compute p value for all replicates
-                    for (Replicate replicate : mapper.getReplicates()) {
-                        expTag = replicate.getExperiment().getIndex();
-                        controlTag = replicate.getBackground().getIndex();
-
-                        lambda = Math.max(Math.max(replicate.getBackground().getLambdaFromPoisson(), lambda1k[controlTag]),
-                                          Math.max(lambda5k[controlTag], lambda10k[controlTag]));
-                        countBack = w.getTagCount(controlTag);
-                        pvalBack = replicate.getBackground().getPValue(lambda, countBack);
-
-                        if (pvalBack < mapper.getPvaluecutoff()) {
-                        	lambda = countBack;
-                        }
-                        count = w.getTagCount(expTag);
-                        pval = replicate.getBackground().getPValue(lambda, count);
-                        w.setRawPValue(replicate.getIndex(), pval);
+        Logger log = Logger.getLogger("Computing p-values for single replicates");
+        final int[] lambdaRanges = mapper.getLambdaRangeList();
+        ExecutorService executor = Executors.newWorkStealingPool(mapper.getNumCores());
+        try {
+            List<Future<?>> blocks = new ArrayList<>();
+            for (ChromosomeWindowRange windowRange : windowList.getChromosomeWindows()) {
+                int first = windowRange.getFirst();
+                int end = Math.min(windowRange.getLast(), windowList.getSize());
+                NeighborhoodLambdas neighbors = new NeighborhoodLambdas(
+                        windowList, first, end, lambdaRanges, mapper.getReplicates(), BLOCK_SIZE);
+                for (int block = 0; block < neighbors.getNumberOfBlocks(); ++block) {
+                    blocks.add(executor.submit(new BlockTask(first, end, neighbors, block)));
+                }
+            }
+            log.log(Level.INFO, "Computing p-values of {0} blocks in parallel", blocks.size());
+            for (Future<?> future : blocks) {
+                future.get();
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IllegalStateException("Computing p-values interrupted", e);
+        } catch (ExecutionException e) {
+            throw new IllegalStateException("Computing p-values failed", e.getCause());
+        } finally {
+            executor.shutdownNow();
+        }
+    }
+
+    /**
+     * Computes the p-values of one block of windows of a chromosome.
+     */
+    private class BlockTask
+            implements Runnable {
+
+        private final int first;
+        private final int end;
+        private final NeighborhoodLambdas neighbors;
+        private final int block;
+
+        /**
+         * Constructor.
+         *
+         * @param first first window of the chromosome
+         * @param end last window of the chromosome + 1
+         * @param neighbors neighborhood lambdas of the chromosome
+         * @param block block
+         */
+        BlockTask(int first, int end, NeighborhoodLambdas neighbors, int block) {
+            this.first = first;
+            this.end = end;
+            this.neighbors = neighbors;
+            this.block = block;
+        }
+
+        @Override
+        public void run() {
+            final List<Replicate> replicates = mapper.getReplicates();
+            final double cutoff = mapper.getPvaluecutoff();
+            final int blockStart = block * neighbors.getBlockSize();
+            final int blockLength = Math.min(neighbors.getBlockSize(), end - first - blockStart);
+            NeighborhoodLambdas.Cursor cursor = neighbors.getCursor(block);
+
+            // maximal neighborhood lambda for each data set
+            double neighborhoodLambda[] = new double[replicates.size() * 2];
+            int expTag;
+            int controlTag;
+
+            double lambda;
+            double countBack;
+
+            // lambdas and counts of the windows for each replicate
+            double[][] lambdas = new double[replicates.size()][blockLength];
+            double[][] counts = new double[replicates.size()][blockLength];
+            double[] pvals = new double[blockLength];
+
+            for (int i = 0; i < blockLength; ++i) {
+                int w = first + blockStart + i;
+                // Neighborhood lambda values
+                cursor.computeMaxLambda(blockStart + i, neighborhoodLambda);
+
+                // Lambda for all replicates
+                for (int r = 0; r < replicates.size(); ++r) {
+                    Replicate replicate = replicates.get(r);
+                    expTag = replicate.getExperiment().getIndex();
+                    controlTag = replicate.getBackground().getIndex();
+
+                    lambda = Math.max(replicate.getBackground().getLambdaFromPoisson(), neighborhoodLambda[controlTag]);
+                    countBack = windowList.getTagCount(controlTag, w);
+                    // background p-value is below the cutoff iff the count reaches the critical count
+                    if (Math.round(countBack) >= replicate.getBackground().getCriticalCount(lambda, cutoff)) {
+                    	lambda = countBack;
                     }
-                    ++index;
+                    lambdas[r][i] = lambda;
+                    counts[r][i] = windowList.getTagCount(expTag, w);
+                }
+            }
+
+            // Compute p value for all replicates
+            for (int r = 0; r < replicates.size(); ++r) {
+                Replicate replicate = replicates.get(r);
+                replicate.getBackground().getPValues(lambdas[r], counts[r], pvals, blockLength);
+                for (int i = 0; i < blockLength; ++i) {
+                    windowList.setRawPValue(replicate.getIndex(), first + blockStart + i, pvals[i]);
                 }
             }
-        });
+        }
     }
 }
@@ -0,0 +1,205 @@
+/**
+ *****************************************************************************
+ * Copyright (c) 2015 Daniel Gerighausen, Lydia Mueller, and Dirk Zeckzer
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ ******************************************************************************
+ */
+package biovis.sierra.server.peakQuality;
+
+import biovis.sierra.data.QualityCounter;
+import biovis.sierra.data.peakcaller.Peak;
+import biovis.sierra.data.peakcaller.PeakList;
+
+import java.util.Arrays;
+
+/**
+ * Median base quality of a range of sorted peaks computed while streaming
+ * the reads sorted by start.
+ *
+ * A peak is finished as soon as a read starting after its end arrives. Only
+ * reads overlapping the current peak or a later one are kept, in a min heap
+ * by end. A histogram of the base qualities of the kept reads is updated
+ * when a read is added and when it is removed, so finishing a peak costs a
+ * scan of the histogram instead of counting the qualities of all its reads.
+ *
+ * @author Lydia Mueller, Dirk Zeckzer
+ */
+public class PeakQualityCursor {
+
+    /**
+     * Receives the median quality of each finished peak.
+     */
+    public interface Listener {
+
+        /**
+         * Peak is finished.
+         *
+         * @param peak peak
+         * @param medianQuality median quality of the reads overlapping the peak
+         */
+        void peakFinished(Peak peak, int medianQuality);
+    }
+
+    private final static int INITIAL_CAPACITY = 1024;
+
+    private final PeakList pl;
+    private final int plEndIndex;
+    private final Listener listener;
+
+    // next peak to finish
+    private int next;
+
+    // min heap of the kept reads by end
+    private int[] ends = new int[INITIAL_CAPACITY];
+    private byte[][] qualities = new byte[INITIAL_CAPACITY][];
+    private int size = 0;
+    private int maxSize = 0;
+
+    // base qualities of the kept reads
+    private final long[] qualitycounts = new long[QualityCounter.PHRED_MAX + 1];
+    private long totalcounts = 0;
+
+    /**
+     * Constructor.
+     *
+     * @param pl peak list sorted by start
+     * @param plStartIndex first peak
+     * @param plEndIndex end of peaks
+     * @param listener receives the median quality of each peak
+     */
+    public PeakQualityCursor(PeakList pl, int plStartIndex, int plEndIndex, Listener listener) {
+        this.pl = pl;
+        this.next = plStartIndex;
+        this.plEndIndex = plEndIndex;
+        this.listener = listener;
+    }
+
+    /**
+     * Add next read. Reads have to be added in the order of their start and
+     * must be on the chromosome of the peaks.
+     *
+     * @param start read start
+     * @param end read end
+     * @param baseQualities base qualities
+     */
+    public void add(int start, int end, byte[] baseQualities) {
+        // no further read overlaps peaks ending before this read
+        while (next < plEndIndex && pl.get(next).getEnd() < start) {
+            finishPeak();
+        }
+        if (next == plEndIndex || end < pl.get(next).getStart()) {
+            // read ends before the next peak
+            return;
+        }
+        push(end, baseQualities);
+    }
+
+    /**
+     * Finish all remaining peaks after the last read.
+     */
+    public void finish() {
+        while (next < plEndIndex) {
+            finishPeak();
+        }
+    }
+
+    /**
+     * Get maximal number of reads kept at the same time.
+     *
+     * @return maximal number of kept reads
+     */
+    public int getMaxSize() {
+        return maxSize;
+    }
+
+    /**
+     * Compute median quality of the next peak and move to the following peak.
+     */
+    private void finishPeak() {
+        Peak peak = pl.get(next++);
+        // remove reads ending before start of peak
+        while (size > 0 && ends[0] < peak.getStart()) {
+            pop();
+        }
+        listener.peakFinished(peak, QualityCounter.getAdjustedMedian(qualitycounts, totalcounts));
+    }
+
+    /**
+     * Keep read and count its base qualities.
+     *
+     * @param end read end
+     * @param baseQualities base qualities
+     */
+    private void push(int end, byte[] baseQualities) {
+        for (byte b : baseQualities) {
+            ++qualitycounts[Math.min((int) b, QualityCounter.PHRED_MAX)];
+        }
+        totalcounts += baseQualities.length;
+
+        if (size == ends.length) {
+            ends = Arrays.copyOf(ends, 2 * size);
+            qualities = Arrays.copyOf(qualities, 2 * size);
+        }
+        int i = size++;
+        while (i > 0) {
+            int parent = (i - 1) >>> 1;
+            if (ends[parent] <= end) {
+                break;
+            }
+            ends[i] = ends[parent];
+            qualities[i] = qualities[parent];
+            i = parent;
+        }
+        ends[i] = end;
+        qualities[i] = baseQualities;
+        if (maxSize < size) {
+            maxSize = size;
+        }
+    }
+
+    /**
+     * Remove read with smallest end and uncount its base qualities.
+     */
+    private void pop() {
+        for (byte b : qualities[0]) {
+            --qualitycounts[Math.min((int) b, QualityCounter.PHRED_MAX)];
+        }
+        totalcounts -= qualities[0].length;
+
+        --size;
+        int end = ends[size];
+        byte[] baseQualities = qualities[size];
+        qualities[size] = null;
+        int i = 0;
+        while (true) {
+            int child = 2 * i + 1;
+            if (child >= size) {
+                break;
+            }
+            if (child + 1 < size && ends[child + 1] < ends[child]) {
+                ++child;
+            }
+            if (end <= ends[child]) {
+                break;
+            }
+            ends[i] = ends[child];
+            qualities[i] = qualities[child];
+            i = child;
+        }
+        if (size > 0) {
+            ends[i] = end;
+            qualities[i] = baseQualities;
+        }
+    }
+}
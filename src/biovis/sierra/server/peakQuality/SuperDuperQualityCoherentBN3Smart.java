@@ -19,53 +19,72 @@ package biovis.sierra.server.peakQuality;
 
 import biovis.sierra.data.DataMapper;
 import biovis.sierra.data.QualityCounter;
-import biovis.sierra.data.Read;
 import biovis.sierra.data.Replicate;
+import biovis.sierra.data.ReplicateDataSet;
 import biovis.sierra.data.peakcaller.Peak;
 import biovis.sierra.data.peakcaller.PeakList;
 import biovis.sierra.data.peakcaller.PeakQuality;
-import biovislib.parallel4.IterationParameter;
-import biovislib.parallel4.Parallel2;
-import biovislib.parallel4.ParallelForParameter;
-import biovislib.parallel4.ParallelizationFactory;
-import biovislib.parallel4.Tuple;
-
-import htsjdk.samtools.SAMRecord;
+import biovis.sierra.server.bam.BamAlignment;
+import biovis.sierra.server.bam.BamAlignmentReader;
+import biovis.sierra.server.bam.SamReaderPool;
+import biovis.sierra.server.windowFactories.WindowQualityBins;
+
+import htsjdk.samtools.BAMFileSpan;
+import htsjdk.samtools.BAMIndex;
+import htsjdk.samtools.Chunk;
+import htsjdk.samtools.SAMSequenceDictionary;
 import htsjdk.samtools.SamReader;
 import htsjdk.samtools.util.CloseableIterator;
 import htsjdk.samtools.util.Interval;
 
 import java.io.File;
 import java.io.IOException;
+import java.io.UncheckedIOException;
 import java.util.ArrayList;
-import java.util.Comparator;
+import java.util.Collections;
+import java.util.HashMap;
 import java.util.List;
-import java.util.PriorityQueue;
-import java.util.Queue;
-import java.util.Vector;
+import java.util.Map;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
 import java.util.logging.Logger;
 
 import java.util.logging.Level;
 
 /**
+ * Peak qualities of all data sets computed in one parallel job.
+ *
+ * The broad peaks of each data set are grouped into ranges of consecutive
+ * peaks of similar read volume, estimated from the BAM index. The ranges of
+ * all data sets are processed by a work stealing pool, largest first. Each
+ * range reads its broad peaks once and evaluates the broad peaks and the
+ * narrow peaks contained in them while streaming the reads, keeping only the
+ * reads overlapping the current peak (see PeakQualityCursor). Data sets with base quality histograms
+ * recorded during window construction are evaluated without reading the BAM
+ * file.
  *
  * @author Lydia Mueller, Dirk Zeckzer
  */
 public class SuperDuperQualityCoherentBN3Smart {
 
-    //private final static int CHUNK_SIZE = 1;
+    // maximal number of bases of the broad peaks of a range
     private final static int CHUNK_SIZE = 100000;
-    private final static int QUEUE_SIZE = 10000;
-
-    // Comparator for start and end queue
-//    private static Comparator<SAMRecord> compareSAMRecordByStart = (s1, s2) -> Integer.compare(s1.getStart(), s2.getStart());
-//    private static Comparator<SAMRecord> compareSAMRecordByEnd = (s1, s2) -> Integer.compare(s1.getEnd(), s2.getEnd());
-    private static Comparator<Read> compareReadByStart = (s1, s2) -> Integer.compare(s1.getStart(), s2.getStart());
-    private static Comparator<Read> compareReadByEnd = (s1, s2) -> Integer.compare(s1.getEnd(), s2.getEnd());
+    // ranges per thread and data set
+    private final static int TASKS_PER_THREAD = 8;
+    // volume of a peak in addition to its compressed bytes, cost of the seek
+    private final static long PEAK_OVERHEAD = 4096;
 
     private DataMapper dm;
     private PeakList peakListBroad;
     private PeakList peakListNarrow;
+    private WindowQualityBins qualityBins;
+
+    // first narrow peak and end of narrow peaks for each chromosome
+    private Map<String, int[]> narrowChromosomes;
+    // maximum number of reads per range and of active reads per peak
+    private final int[] max = {0, 0};
 
     /**
      * Constructor.
@@ -78,10 +97,29 @@ public class SuperDuperQualityCoherentBN3Smart {
             DataMapper dm,
             PeakList peakListBroad,
             PeakList peakListNarrow
+    ) {
+        this(dm, peakListBroad, peakListNarrow, null);
+    }
+
+    /**
+     * Constructor.
+     *
+     * @param dm data mapper
+     * @param peakListBroad broad peak list
+     * @param peakListNarrow narrow peak list
+     * @param qualityBins base quality histograms recorded during window
+     * construction, null if the qualities are read from the BAM files
+     */
+    public SuperDuperQualityCoherentBN3Smart(
+            DataMapper dm,
+            PeakList peakListBroad,
+            PeakList peakListNarrow,
+            WindowQualityBins qualityBins
     ) {
         this.dm = dm;
         this.peakListBroad = peakListBroad;
         this.peakListNarrow = peakListNarrow;
+        this.qualityBins = qualityBins;
     }
 
     /**
@@ -89,6 +127,8 @@ public class SuperDuperQualityCoherentBN3Smart {
      *
      * @param pqBroad
      * @param pqNarrow
+     * @throws IllegalStateException if the qualities of a range of peaks
+     * cannot be computed, no peak quality is set then
      */
     public void evaluatePeakList(
             PeakQuality pqBroad,
@@ -97,297 +137,445 @@ public class SuperDuperQualityCoherentBN3Smart {
         Logger log = Logger.getLogger("starting evaluation of peak list");
         log.info("starting evaluation of peak list");
 
-        //log.info("starting evaluation of peak list II");
+        // background and experiment of all active replicates
+        List<DataSetQuality> dataSets = new ArrayList<>();
         int r_index = 0;
         for (Replicate r : dm.getReplicates()) {
-            //log.log(Level.INFO, "starting evaluation of peak list for replicate {0}", r.getExperimentDescription());
-            if (!r.isActive()) {
-                r_index++;
-                continue;
+            if (r.isActive()) {
+                dataSets.add(new DataSetQuality(r.getBackground(), r_index, false));
+                dataSets.add(new DataSetQuality(r.getExperiment(), r_index, true));
             }
-            List<Integer> medianQualitiesBroad = new Vector<>();
-            List<Integer> medianQualitiesNarrow = new Vector<>();
-            calcMedianPeakQualityAndReplicateQuality(
-                    r.getBackground().getDescription(),
-                    peakListBroad, peakListNarrow,
-                    medianQualitiesBroad, medianQualitiesNarrow,
-                    r_index,
-                    false);
-            pqBroad.addBackgroundFor(SuperDuperQualityHelper.makeBoxplotData(medianQualitiesBroad), r_index);
-            pqNarrow.addBackgroundFor(SuperDuperQualityHelper.makeBoxplotData(medianQualitiesNarrow), r_index);
-            log.log(Level.INFO, "Evaluation of peak list for replicate background {0} done", r.getBackground().getDescription());
-
-            medianQualitiesBroad = new Vector<>();
-            medianQualitiesNarrow = new Vector<>();
-            calcMedianPeakQualityAndReplicateQuality(
-                    r.getExperiment().getDescription(),
-                    peakListBroad, peakListNarrow,
-                    medianQualitiesBroad, medianQualitiesNarrow,
-                    r_index,
-                    true);
-            pqBroad.addExperimentFor(SuperDuperQualityHelper.makeBoxplotData(medianQualitiesBroad), r_index);
-            pqNarrow.addExperimentFor(SuperDuperQualityHelper.makeBoxplotData(medianQualitiesNarrow), r_index);
-            log.log(Level.INFO, "Evaluation of peak list for replicate experiment {0} done", r.getExperiment().getDescription());
-
-            log.log(Level.INFO, "Evaluation of peak list for replicate {0} done", r.getExperiment().getDescription());
-
             r_index++;
         }
+        narrowChromosomes = getChromosomes(peakListNarrow);
+
+        final int threads = dm.getNumCoresPeakQuality();
+        final BamAlignmentReader alignmentReader = BamAlignmentReader.create(dm);
+        ExecutorService executor = Executors.newWorkStealingPool(threads);
+        try {
+            List<RangeTask> tasks = new ArrayList<>();
+            for (DataSetQuality dataSet : dataSets) {
+                planRanges(dataSet, getVolumes(dataSet, alignmentReader), threads, alignmentReader, tasks);
+            }
+            log.log(Level.INFO, "Calculating {0} ranges of {1} data sets in parallel",
+                    new Object[]{tasks.size(), dataSets.size()});
+
+            // largest ranges first, the pool balances the remaining ones
+            Collections.sort(tasks, (t1, t2) -> Long.compare(t2.volume, t1.volume));
+            List<Future<?>> futures = new ArrayList<>();
+            for (RangeTask task : tasks) {
+                futures.add(executor.submit(task));
+            }
+            for (Future<?> future : futures) {
+                future.get();
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IllegalStateException("Evaluation of peak list interrupted", e);
+        } catch (ExecutionException e) {
+            // qualities of the remaining ranges are incomplete
+            throw new IllegalStateException("Evaluation of peak list failed", e.getCause());
+        } finally {
+            executor.shutdownNow();
+            alignmentReader.close();
+        }
+        log.log(Level.INFO, "max queues: {0} -- {1}", new Object[]{max[0], max[1]});
+
+        for (DataSetQuality dataSet : dataSets) {
+            if (dataSet.exp) {
+                pqBroad.addExperimentFor(SuperDuperQualityHelper.makeBoxplotData(dataSet.getBroad()), dataSet.r_index);
+                pqNarrow.addExperimentFor(SuperDuperQualityHelper.makeBoxplotData(dataSet.getNarrow()), dataSet.r_index);
+            } else {
+                pqBroad.addBackgroundFor(SuperDuperQualityHelper.makeBoxplotData(dataSet.getBroad()), dataSet.r_index);
+                pqNarrow.addBackgroundFor(SuperDuperQualityHelper.makeBoxplotData(dataSet.getNarrow()), dataSet.r_index);
+            }
+            log.log(Level.INFO, "Evaluation of peak list for {0} done", dataSet.dataSet.getDescription());
+        }
 
         log.info("evaluation of peak list done");
     }
 
     /**
-     * Calculate median peak and replicate quality (one step).
+     * Get first peak and end of peaks for each chromosome of a peak list.
+     * Peaks are sorted by chromosome and start.
      *
-     * @param file filename
-     * @param plBroad broad peak list
-     * @param plNarrow narrow peak list
-     * @param medianQualitiesBroad median quality of broad peaks
-     * @param medianQualitiesNarrow median quality of narrow peaks
-     * @param r_index replicate index
-     * @param exp true iff is experiment
-     * @return qualities for replicate
+     * @param pl peak list
+     * @return first peak and end of peaks for each chromosome
      */
-    private void calcMedianPeakQualityAndReplicateQuality(
-            String file,
-            PeakList plBroad,
-            PeakList plNarrow,
-            List<Integer> medianQualitiesBroad,
-            List<Integer> medianQualitiesNarrow,
-            int r_index,
-            boolean exp
-    ) {
-        if (medianQualitiesBroad != null) {
-            for (int i = 0; i <= QualityCounter.PHRED_MAX; i++) {
-                medianQualitiesBroad.add(0);
+    private static Map<String, int[]> getChromosomes(PeakList pl) {
+        Map<String, int[]> chromosomes = new HashMap<>();
+        int first = 0;
+        for (int peakIndex = 1; peakIndex <= pl.size(); ++peakIndex) {
+            if (peakIndex == pl.size()
+                || !pl.get(peakIndex).getChr().equals(pl.get(first).getChr())) {
+                chromosomes.put(pl.get(first).getChr(), new int[]{first, peakIndex});
+                first = peakIndex;
             }
         }
-        if (medianQualitiesNarrow != null) {
-            for (int i = 0; i <= QualityCounter.PHRED_MAX; i++) {
-                medianQualitiesNarrow.add(0);
+        return chromosomes;
+    }
+
+    /**
+     * Estimate read volume of each broad peak of a data set by the compressed
+     * bytes of its indexed query. Without index or with quality histograms,
+     * the volume of a peak is its length.
+     *
+     * @param dataSet data set
+     * @param alignmentReader reader
+     * @return volume of each broad peak
+     */
+    private long[] getVolumes(DataSetQuality dataSet, BamAlignmentReader alignmentReader) {
+        long[] volumes = new long[peakListBroad.size()];
+        BAMIndex index = null;
+        SAMSequenceDictionary dictionary = null;
+        SamReaderPool.Lease lease = null;
+        if (!dataSet.fromBins) {
+            try {
+                lease = alignmentReader.getReaders().acquire(dataSet.file);
+                SamReader samReader = lease.getReader();
+                if (samReader.hasIndex()) {
+                    index = samReader.indexing().getIndex();
+                    dictionary = samReader.getFileHeader().getSequenceDictionary();
+                }
+            } catch (IOException e) {
+                // ranges are planned by length, reading reports the error
+                Logger.getLogger("starting evaluation of peak list").log(
+                        Level.WARNING, "Cannot read index of " + dataSet.file, e);
             }
         }
+        try {
+            for (int peakIndex = 0; peakIndex < volumes.length; ++peakIndex) {
+                Peak peak = peakListBroad.get(peakIndex);
+                if (index == null) {
+                    volumes[peakIndex] = peak.getEnd() - peak.getStart() + 1;
+                    continue;
+                }
+                int referenceIndex = dictionary.getSequenceIndex(peak.getChr());
+                if (referenceIndex >= 0) {
+                    BAMFileSpan span = index.getSpanOverlapping(referenceIndex, peak.getStart(), peak.getEnd());
+                    if (span != null) {
+                        for (Chunk chunk : span.getChunks()) {
+                            volumes[peakIndex] += (chunk.getChunkEnd() >>> 16) - (chunk.getChunkStart() >>> 16);
+                        }
+                    }
+                }
+                volumes[peakIndex] += PEAK_OVERHEAD;
+            }
+        } finally {
+            if (lease != null) {
+                lease.close();
+            }
+        }
+        return volumes;
+    }
 
-        final int stepSize = Math.min(CHUNK_SIZE, plBroad.size() / dm.getNumCoresPeakQuality());
-        Logger log = Logger.getLogger("calcMedianPeakQualityAndReplicateQuality");
-        log.log(Level.INFO, "Step size {0}", stepSize);
-
-        final int[] max = {0, 0};
+    /**
+     * Group consecutive broad peaks of a data set on the same chromosome into
+     * ranges carrying about 1 / (threads * TASKS_PER_THREAD) of the volume of
+     * the data set and spanning at most CHUNK_SIZE bases.
+     *
+     * @param dataSet data set
+     * @param volumes volume of each broad peak
+     * @param threads number of threads
+     * @param alignmentReader reader
+     * @param tasks tasks, the ranges are added
+     */
+    private void planRanges(
+            DataSetQuality dataSet,
+            long[] volumes,
+            int threads,
+            BamAlignmentReader alignmentReader,
+            List<RangeTask> tasks
+    ) {
+        long total = 0;
+        for (long volume : volumes) {
+            total += volume;
+        }
+        long target = Math.max(1, total / ((long) Math.max(1, threads) * TASKS_PER_THREAD));
 
-        final ArrayList<Tuple<Integer, Integer>> ranges = new ArrayList<>();
+        PeakList plBroad = peakListBroad;
         for (int peakIndex = 0; peakIndex < plBroad.size(); ++peakIndex) {
             int plStartIndex = peakIndex;
             int plEndIndex = plStartIndex;
             int peakSetSize = plBroad.get(plStartIndex).getEnd() - plBroad.get(plStartIndex).getStart() + 1;
-            while (plEndIndex + 1 < plBroad.size()
+            long rangeVolume = volumes[plStartIndex];
+            while (rangeVolume < target
+                   && plEndIndex + 1 < plBroad.size()
                    && plBroad.get(plStartIndex).getChr().equals(plBroad.get(plEndIndex + 1).getChr())
-                   && plBroad.get(plEndIndex + 1).getEnd() - plBroad.get(plEndIndex + 1).getStart() + 1 + peakSetSize <= stepSize) {
+                   && plBroad.get(plEndIndex + 1).getEnd() - plBroad.get(plEndIndex + 1).getStart() + 1 + peakSetSize <= CHUNK_SIZE) {
                 ++plEndIndex;
                 int peakAddSize = plBroad.get(plEndIndex).getEnd() - plBroad.get(plEndIndex).getStart() + 1;
                 peakSetSize += peakAddSize;
+                rangeVolume += volumes[plEndIndex];
             }
-            ranges.add(new Tuple<>(plStartIndex, plEndIndex));
+            tasks.add(new RangeTask(dataSet, plStartIndex, plEndIndex, rangeVolume, alignmentReader));
             peakIndex = plEndIndex;
         }
-        log.log(Level.INFO, "Calculating {0} ranges in parallel", ranges.size());
-
-        //Parallel2 parallel = new Parallel2(1);
-        Parallel2 p2 = ParallelizationFactory.getInstance(dm.getNumCoresPeakQuality());
-        new ParallelForParameter<>(p2, ranges).loop(
-                new IterationParameter<Tuple<Integer, Integer>>() {
-                    @Override
-                    public void iteration(Tuple<Integer, Integer> range) {
-                        int plStartIndex = range.getFirst();
-                        int plEndIndex = range.getSecond();
-                        try (SamReader samReader = SuperDuperQualityHelper.samReaderFactory.open(new File(file))) {
-                            computeIntervalQuality(plStartIndex, plEndIndex, samReader);
-                        } catch (IOException e) {
-                            // TODO Auto-generated catch block
-                            e.printStackTrace();
-                        }
-                    }
+    }
 
-                    /**
-                     *
-                     * @param plStartIndex peak list start index
-                     * @param plEndIndex peak list end index
-                     * @param samReader sam reader
-                     */
-                    private void computeIntervalQuality(
-                            int plBroadStartIndex,
-                            int plBroadEndIndex,
-                            final SamReader samReader
-                    ) {
-                        // broad peaks
-                        List<Interval> intervalList = new ArrayList<>();
-                        for (int plBroadIndex = plBroadStartIndex;
-                             plBroadIndex <= plBroadEndIndex;
-                             ++plBroadIndex) {
-                            intervalList.add(
-                                    new Interval(
-                                            plBroad.get(plBroadIndex).getChr(),
-                                            plBroad.get(plBroadIndex).getStart(),
-                                            plBroad.get(plBroadIndex).getEnd()
-                                    ));
-                        }
+    /**
+     * Get range of the narrow peaks contained in a range of broad peaks on
+     * one chromosome.
+     *
+     * @param broadStart first broad peak
+     * @param broadEnd last broad peak
+     * @return first narrow peak and end of narrow peaks
+     */
+    private int[] getNarrowRange(Peak broadStart, Peak broadEnd) {
+        int[] chromosome = narrowChromosomes.get(broadStart.getChr());
+        if (chromosome == null) {
+            return new int[]{0, 0};
+        }
+        // first narrow peak starting at or after the first broad peak
+        int low = chromosome[0];
+        int high = chromosome[1];
+        while (low < high) {
+            int mid = (low + high) >>> 1;
+            if (peakListNarrow.get(mid).getStart() < broadStart.getStart()) {
+                low = mid + 1;
+            } else {
+                high = mid;
+            }
+        }
+        int first = low;
+        // first narrow peak ending after the last broad peak
+        high = chromosome[1];
+        while (low < high) {
+            int mid = (low + high) >>> 1;
+            if (peakListNarrow.get(mid).getEnd() <= broadEnd.getEnd()) {
+                low = mid + 1;
+            } else {
+                high = mid;
+            }
+        }
+        return new int[]{first, low};
+    }
 
-                        // prepare priority queues for counting
-                        Queue<Read> recordsStartBroad = new PriorityQueue<>(QUEUE_SIZE, compareReadByStart);
-                        Queue<Read> recordsEndBroad = new PriorityQueue<>(QUEUE_SIZE, compareReadByEnd);
-                        Queue<Read> recordsStartNarrow = new PriorityQueue<>(QUEUE_SIZE, compareReadByStart);
-                        Queue<Read> recordsEndNarrow = new PriorityQueue<>(QUEUE_SIZE, compareReadByEnd);
-
-                        // prepare priority queues for counting
-                        try (CloseableIterator<SAMRecord> overlapping = SuperDuperQualityHelper.samRecordIntervalIteratorFactory.makeSamRecordIntervalIterator(samReader, intervalList, true)) {
-                            // insert records sorted by start value in start queue
-                            while (overlapping.hasNext()) {
-                                SAMRecord samRecord = overlapping.next();
-                                Read read = new Read(samRecord);
-                                recordsStartBroad.add(read);
-                                recordsStartNarrow.add(read);
-                            }
-                        }
+    /**
+     * Median qualities of the peaks of one data set.
+     */
+    private class DataSetQuality {
+
+        final ReplicateDataSet dataSet;
+        final int r_index;
+        final boolean exp;
+        final File file;
+        // qualities are taken from the histograms of window construction
+        final boolean fromBins;
+
+        // number of peaks for each median quality
+        private final int[] medianQualitiesBroad = new int[QualityCounter.PHRED_MAX + 1];
+        private final int[] medianQualitiesNarrow = new int[QualityCounter.PHRED_MAX + 1];
+
+        /**
+         * Constructor.
+         *
+         * @param dataSet data set
+         * @param r_index replicate index
+         * @param exp true iff is experiment
+         */
+        DataSetQuality(ReplicateDataSet dataSet, int r_index, boolean exp) {
+            this.dataSet = dataSet;
+            this.r_index = r_index;
+            this.exp = exp;
+            this.file = new File(dataSet.getDescription());
+            this.fromBins = qualityBins != null && qualityBins.isComplete(dataSet.getIndex());
+        }
 
-                        synchronized (max) {
-                            if (max[0] < recordsStartBroad.size()) {
-                                max[0] = recordsStartBroad.size();
-                            }
-                        }
+        /**
+         * Add median qualities of the peaks of a range.
+         *
+         * @param broad number of broad peaks for each median quality
+         * @param narrow number of narrow peaks for each median quality
+         */
+        synchronized void add(int[] broad, int[] narrow) {
+            for (int i = 0; i <= QualityCounter.PHRED_MAX; i++) {
+                medianQualitiesBroad[i] += broad[i];
+                medianQualitiesNarrow[i] += narrow[i];
+            }
+        }
 
-                        computeQualitiesForChunk(
-                                plBroad,
-                                plBroadStartIndex,
-                                plBroadEndIndex,
-                                recordsStartBroad,
-                                recordsEndBroad,
-                                medianQualitiesBroad);
-
-                        // narrow peaks
-                        // search the range of narrow peaks that are part of this broad peak
-                        int plNarrowStartIndex = 0;
-                        int plNarrowEndIndex = 0;
-                        Peak plBroadStart = plBroad.get(plBroadStartIndex);
-                        Peak plBroadEnd = plBroad.get(plBroadEndIndex);
-                        Peak peak = null;
-                        for (int peakIndex = 0; peakIndex < plNarrow.size(); ++peakIndex) {
-                            peak = plNarrow.get(peakIndex);
-                            if (plBroadStart.getChr().equals(peak.getChr())
-                                && plBroadStart.getStart() <= peak.getStart()) {
-                                plNarrowStartIndex = peakIndex;
-                                break;
-                            }
-                        }
-                        for (int peakIndex = plNarrow.size() - 1; peakIndex >= plNarrowStartIndex; --peakIndex) {
-                            peak = plNarrow.get(peakIndex);
-                            if (plBroadEnd.getChr().equals(peak.getChr())
-                                && peak.getEnd() <= plBroadEnd.getEnd()) {
-                                plNarrowEndIndex = peakIndex;
-                                break;
-                            }
-                        }
-                        /*
-                         System.err.print("Broad index range: " + plBroadStartIndex + "--" + plBroadEndIndex);
-                         System.err.print(" | ");
-                         System.err.println("Narrow index range: " + plNarrowStartIndex + "--" + plNarrowEndIndex);
-                         System.err.print("Broad range: " + plBroad.get(plBroadStartIndex).getChr()
-                         + "-> " + plBroad.get(plBroadStartIndex).getStart()
-                         + "--" + plBroad.get(plBroadEndIndex).getEnd());
-                         System.err.print(" | ");
-                         System.err.println("Narrow range: " + plNarrow.get(plNarrowStartIndex).getChr()
-                         + "-> " + plNarrow.get(plNarrowStartIndex).getStart()
-                         + "--" + plNarrow.get(plNarrowStartIndex).getEnd()
-                         + " ---- " + plNarrow.get(plNarrowEndIndex).getChr()
-                         + "-> " + plNarrow.get(plNarrowEndIndex).getStart()
-                         + "--" + plNarrow.get(plNarrowEndIndex).getEnd());
-                         */
-
-                        computeQualitiesForChunk(
-                                plNarrow,
-                                plNarrowStartIndex,
-                                plNarrowEndIndex,
-                                recordsStartNarrow,
-                                recordsEndNarrow,
-                                medianQualitiesNarrow);
-                    }
+        synchronized List<Integer> getBroad() {
+            return toList(medianQualitiesBroad);
+        }
 
-                    /**
-                     * Compute qualities of all peaks in one chunk.
-                     *
-                     * @param pl peak list
-                     * @param plStartIndex first chunk
-                     * @param plEndIndex last chunk
-                     * @param recordsStart start queue
-                     * @param recordsEnd end queue
-                     * @param medianQualities median qualities
-                     */
-                    private void computeQualitiesForChunk(
-                            PeakList pl,
-                            int plStartIndex,
-                            int plEndIndex,
-                            Queue<Read> recordsStart,
-                            Queue<Read> recordsEnd,
-                            List<Integer> medianQualities
-                    ) {
-                        for (int peakIndex = plStartIndex; peakIndex <= plEndIndex; ++peakIndex) {
-                            Peak peak = pl.get(peakIndex);
-
-                            // remove reads ending before start of peak
-                            while (!recordsEnd.isEmpty()
-                                   && recordsEnd.peek().getEnd() < peak.getStart()) {
-                                recordsEnd.poll();
-                            }
-
-                            // add reads starting before end of peak
-                            while (!recordsStart.isEmpty()
-                                   && recordsStart.peek().getStart() <= peak.getEnd()) {
-                                if (recordsStart.peek().getEnd() >= peak.getStart()) {
-                                    recordsEnd.add(recordsStart.poll());
-                                } else {
-                                    recordsStart.poll();
-                                }
-                            }
-
-                            synchronized (max) {
-                                if (max[1] < recordsEnd.size()) {
-                                    max[1] = recordsEnd.size();
-                                }
-                            }
-
-                            int medianQuality = computeQualitiesForReads(recordsEnd);
-
-                            if (exp) {
-                                peak.addExperimentQuality(r_index, medianQuality);
-                            } else {
-                                peak.addBackgroundQuality(r_index, medianQuality);
-                            }
-
-                            if (medianQualities != null) {
-                                synchronized (medianQualities) {
-                                    medianQualities.set(medianQuality, medianQualities.get(medianQuality) + 1);
-                                }
-                            }
-                        }
-                    }
-                });
+        synchronized List<Integer> getNarrow() {
+            return toList(medianQualitiesNarrow);
+        }
 
-        log.log(Level.INFO, "max queues for {0}: {1} -- {2}", new Object[]{r_index, max[0], max[1]});
+        private List<Integer> toList(int[] counts) {
+            List<Integer> list = new ArrayList<>(counts.length);
+            for (int count : counts) {
+                list.add(count);
+            }
+            return list;
+        }
     }
 
     /**
-     * Compute qualities for one peak.
-     *
-     * @param reads all reads
-     * @return qualities for peak
+     * Median qualities of a range of broad peaks and of the narrow peaks
+     * contained in them.
      */
-    private int computeQualitiesForReads(
-            Iterable<Read> reads
-    ) {
-        QualityCounter qc = new QualityCounter();
-        qc.count(reads);
-        qc.adjust();
+    private class RangeTask
+            implements Runnable {
+
+        final DataSetQuality quality;
+        final int plBroadStartIndex;
+        final int plBroadEndIndex;
+        final long volume;
+        final BamAlignmentReader alignmentReader;
+
+        // number of peaks for each median quality
+        private final int[] medianQualitiesBroad = new int[QualityCounter.PHRED_MAX + 1];
+        private final int[] medianQualitiesNarrow = new int[QualityCounter.PHRED_MAX + 1];
+
+        /**
+         * Constructor.
+         *
+         * @param quality qualities of the data set
+         * @param plBroadStartIndex first broad peak
+         * @param plBroadEndIndex last broad peak
+         * @param volume estimated read volume
+         * @param alignmentReader reader
+         */
+        RangeTask(
+                DataSetQuality quality,
+                int plBroadStartIndex,
+                int plBroadEndIndex,
+                long volume,
+                BamAlignmentReader alignmentReader
+        ) {
+            this.quality = quality;
+            this.plBroadStartIndex = plBroadStartIndex;
+            this.plBroadEndIndex = plBroadEndIndex;
+            this.volume = volume;
+            this.alignmentReader = alignmentReader;
+        }
+
+        @Override
+        public void run() {
+            int[] narrow = getNarrowRange(peakListBroad.get(plBroadStartIndex), peakListBroad.get(plBroadEndIndex));
+            try {
+                if (quality.fromBins) {
+                    computeBinsQuality(peakListBroad, plBroadStartIndex, plBroadEndIndex + 1, medianQualitiesBroad);
+                    computeBinsQuality(peakListNarrow, narrow[0], narrow[1], medianQualitiesNarrow);
+                } else {
+                    computeIntervalQuality(narrow[0], narrow[1]);
+                }
+            } catch (IOException e) {
+                throw new UncheckedIOException("Cannot read peaks of " + quality.file, e);
+            }
+            quality.add(medianQualitiesBroad, medianQualitiesNarrow);
+        }
+
+        /**
+         * Compute qualities of peaks from the base quality histograms of the
+         * windows. No reads are read.
+         *
+         * @param pl peak list
+         * @param plStartIndex first peak
+         * @param plEndIndex end of peaks
+         * @param medianQualities median qualities
+         */
+        private void computeBinsQuality(
+                PeakList pl,
+                int plStartIndex,
+                int plEndIndex,
+                int[] medianQualities
+        ) {
+            for (int peakIndex = plStartIndex; peakIndex < plEndIndex; ++peakIndex) {
+                Peak peak = pl.get(peakIndex);
+                int medianQuality = qualityBins.getMedianQuality(
+                        quality.dataSet.getIndex(), peak.getChr(), peak.getStart(), peak.getEnd());
+                setQuality(peak, medianQuality, medianQualities);
+            }
+        }
 
-        int medianQuality = qc.getMedian();
-        return medianQuality;
+        /**
+         * Compute qualities of the broad peaks of the range and of the narrow
+         * peaks contained in them in one pass over the reads of the broad
+         * peaks.
+         *
+         * @param plNarrowStartIndex first narrow peak
+         * @param plNarrowEndIndex end of narrow peaks
+         * @throws IOException if the reads cannot be read
+         */
+        private void computeIntervalQuality(
+                int plNarrowStartIndex,
+                int plNarrowEndIndex
+        ) throws IOException {
+            // broad peaks
+            List<Interval> intervalList = new ArrayList<>();
+            for (int plBroadIndex = plBroadStartIndex;
+                 plBroadIndex <= plBroadEndIndex;
+                 ++plBroadIndex) {
+                intervalList.add(
+                        new Interval(
+                                peakListBroad.get(plBroadIndex).getChr(),
+                                peakListBroad.get(plBroadIndex).getStart(),
+                                peakListBroad.get(plBroadIndex).getEnd()
+                        ));
+            }
+
+            PeakQualityCursor broad = new PeakQualityCursor(
+                    peakListBroad, plBroadStartIndex, plBroadEndIndex + 1,
+                    new PeakQualityCursor.Listener() {
+                        @Override
+                        public void peakFinished(Peak peak, int medianQuality) {
+                            setQuality(peak, medianQuality, medianQualitiesBroad);
+                        }
+                    });
+            // narrow peaks contained in the broad peaks
+            PeakQualityCursor narrow = new PeakQualityCursor(
+                    peakListNarrow, plNarrowStartIndex, plNarrowEndIndex,
+                    new PeakQualityCursor.Listener() {
+                        @Override
+                        public void peakFinished(Peak peak, int medianQuality) {
+                            setQuality(peak, medianQuality, medianQualitiesNarrow);
+                        }
+                    });
+
+            // reads arrive sorted by start
+            int reads = 0;
+            try (CloseableIterator<BamAlignment> overlapping = alignmentReader.query(quality.file, intervalList)) {
+                while (overlapping.hasNext()) {
+                    BamAlignment alignment = overlapping.next();
+                    ++reads;
+                    if (alignment.getReadUnmappedFlag()) {
+                        // base qualities of unmapped reads are not counted
+                        continue;
+                    }
+                    broad.add(alignment.getStart(), alignment.getEnd(), alignment.getBaseQualities());
+                    narrow.add(alignment.getStart(), alignment.getEnd(), alignment.getBaseQualities());
+                }
+            }
+            broad.finish();
+            narrow.finish();
+
+            synchronized (max) {
+                if (max[0] < reads) {
+                    max[0] = reads;
+                }
+                if (max[1] < broad.getMaxSize()) {
+                    max[1] = broad.getMaxSize();
+                }
+            }
+        }
+
+        /**
+         * Set median quality of a peak.
+         *
+         * @param peak peak
+         * @param medianQuality median quality
+         * @param medianQualities median qualities
+         */
+        private void setQuality(Peak peak, int medianQuality, int[] medianQualities) {
+            if (quality.exp) {
+                peak.addExperimentQuality(quality.r_index, medianQuality);
+            } else {
+                peak.addBackgroundQuality(quality.r_index, medianQuality);
+            }
+            ++medianQualities[medianQuality];
+        }
     }
 }
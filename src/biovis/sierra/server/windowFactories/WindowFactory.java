@@ -18,14 +18,16 @@
 package biovis.sierra.server.windowFactories;
 
 import biovis.sierra.data.DataMapper;
+import biovis.sierra.data.QualityCounter;
 import biovis.sierra.data.Replicate;
 
 import htsjdk.samtools.SAMSequenceRecord;
 import htsjdk.samtools.SamReaderFactory;
 
+import java.io.File;
 import java.io.IOException;
-import java.util.HashMap;
 import java.util.Iterator;
+import java.util.LinkedHashMap;
 import java.util.Map;
 
 
@@ -61,11 +63,55 @@ public class WindowFactory {
         progress = 0.0;
     }
 
+    /**
+     * Load tag counts of a data set from the count index or, if the index
+     * is not available, from the count cache.
+     *
+     * @param index count index, null if not used
+     * @param cache count cache, null if not used
+     * @param file data set file
+     * @param dataSet data set
+     * @param list window list
+     * @return quality counts of the data set, null if the data set has to be
+     * counted from its file
+     */
+    protected static QualityCounter loadCounts(
+            WindowFactoryCountIndex index,
+            WindowFactoryCountCache cache,
+            File file,
+            int dataSet,
+            WindowListChunkSlots list
+    ) {
+        QualityCounter qualityCounter = null;
+        if (index != null) {
+            qualityCounter = index.load(file, dataSet, list);
+        }
+        if (qualityCounter == null && cache != null) {
+            qualityCounter = cache.load(file, dataSet, list);
+        }
+        return qualityCounter;
+    }
+
+    /**
+     * Create quality counter for counting a data set from its file. Base
+     * qualities are counted for the reads sampled as configured in the data
+     * mapper.
+     *
+     * @param mapper data mapper
+     * @return quality counter
+     */
+    protected static QualityCounter newQualityCounter(DataMapper mapper) {
+        QualityCounter qualityCounter = new QualityCounter();
+        qualityCounter.setSampling(mapper.getQualitySampling());
+        return qualityCounter;
+    }
+
     /**
      * Reads the file header of all data set files and compiles a list of
      * chromosomes and the corresponding lengths out of it. If a chromosome
      * identifier occurs twice but with different length only the longer
-     * length is kept.
+     * length is kept. Chromosomes are kept in the order in which they occur
+     * in the file headers.
      *
      * @param mapper data mapper containing the files
      * @return map mapping chromosome identifiers (string) to their length (integer)
@@ -73,7 +119,7 @@ public class WindowFactory {
      */
     protected static Map<String, Integer> generateGenome(DataMapper mapper) throws IOException {
 
-        Map<String, Integer> genome = new HashMap<>();
+        Map<String, Integer> genome = new LinkedHashMap<>();
         SamReaderFactory samReaderDefaultFactory = SamReaderFactory.makeDefault();
         Iterator<SAMSequenceRecord> it;
         for (Replicate replicate : mapper.getReplicates()) {
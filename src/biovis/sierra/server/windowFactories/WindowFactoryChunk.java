@@ -0,0 +1,415 @@
+/**
+ *****************************************************************************
+ * Copyright (c) 2015 Daniel Gerighausen, Lydia Mueller, and Dirk Zeckzer
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ ******************************************************************************
+ */
+package biovis.sierra.server.windowFactories;
+
+import biovis.sierra.data.DataMapper;
+import biovis.sierra.data.QualityCounter;
+
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * One chunk of windows on a chromosome.
+ *
+ * The chunk contains all windows starting in [startChunk, startNextChunk).
+ * Reads are required if they overlap the interval
+ * [startChunk, startNextChunk - offset + windowSize - 1].
+ *
+ * @author Lydia Mueller, Dirk Zeckzer
+ */
+public class WindowFactoryChunk {
+
+    private static int QUEUE_END = 10000;
+
+    private final int index;
+    private final String chr;
+    private final int chrLength;
+    private final int startChunk;
+    private final int startNextChunk;
+    private final int windowSize;
+    private final int offset;
+
+    /**
+     * Constructor.
+     *
+     * @param index chunk index
+     * @param chr chromosome
+     * @param chrLength chromosome length
+     * @param startChunk start of first window in chunk
+     * @param windowSize window size
+     * @param offset window offset
+     * @param chunkSize chunk size
+     */
+    public WindowFactoryChunk(
+            int index,
+            String chr,
+            int chrLength,
+            int startChunk,
+            int windowSize,
+            int offset,
+            int chunkSize
+    ) {
+        this.index = index;
+        this.chr = chr;
+        this.chrLength = chrLength;
+        this.startChunk = startChunk;
+        this.windowSize = windowSize;
+        this.offset = offset;
+        int startNext = startChunk + chunkSize * offset;
+        if (startNext > chrLength) {
+            startNext = chrLength;
+        }
+        this.startNextChunk = startNext;
+    }
+
+    public int getIndex() {
+        return index;
+    }
+
+    public String getChr() {
+        return chr;
+    }
+
+    public int getStartChunk() {
+        return startChunk;
+    }
+
+    public int getStartNextChunk() {
+        return startNextChunk;
+    }
+
+    /**
+     * Get start of interval containing all reads relevant for this chunk.
+     *
+     * @return interval start
+     */
+    public int getIntervalStart() {
+        return startChunk;
+    }
+
+    /**
+     * Get end of interval containing all reads relevant for this chunk.
+     *
+     * @return interval end
+     */
+    public int getIntervalEnd() {
+        return startNextChunk - offset + windowSize - 1;
+    }
+
+    /**
+     * Get maximum number of windows in this chunk.
+     *
+     * @return maximum number of windows
+     */
+    public int getNumberOfWindows() {
+        return (startNextChunk - startChunk + offset - 1) / offset;
+    }
+
+    /**
+     * Get start of window.
+     *
+     * @param slot window index within chunk
+     * @return window start
+     */
+    public int getWindowStart(int slot) {
+        return startChunk + slot * offset;
+    }
+
+    /**
+     * Get end of window, windows are trimmed at the end of the chromosome.
+     *
+     * @param slot window index within chunk
+     * @return window end
+     */
+    public int getWindowEnd(int slot) {
+        return Math.min(getWindowStart(slot) + windowSize - 1, chrLength - 1);
+    }
+
+    /**
+     * Count reads for all windows of the chunk. Reads must be sorted by start
+     * and restricted to reads overlapping the chunk interval.
+     *
+     * Base qualities are counted for all reads starting in the chunk.
+     *
+     * @param overlapping reads overlapping the chunk interval
+     * @param qualityCounter quality counter of data set
+     * @param max maximum queue sizes
+     * @param tags tag count for each window of the chunk
+     * @return number of windows in chunk
+     */
+    public int count(
+            WindowFactoryReadBatch overlapping,
+            QualityCounter qualityCounter,
+            int[] max,
+            int[] tags
+    ) {
+        int windowStart = startChunk;
+        int windowEnd = windowStart + windowSize - 1;
+        int slot = 0;
+        int maxQueue = 0;
+
+        // base qualities are counted without locking the shared counter
+        final QualityCounter.Stripe quality = qualityCounter.getStripe();
+
+        // ends of reads overlapping the current window
+        WindowFactoryEndHeap recordsEnd = new WindowFactoryEndHeap(QUEUE_END);
+
+        // next read to take from the batch
+        final int size = overlapping.size();
+        int next = 0;
+        // read next - 1 was taken but does not overlap the previous window
+        boolean lastUnused = false;
+
+        while (windowStart < startNextChunk) {
+            if (windowEnd >= chrLength) {
+                // trim windows at the end of the genome
+                windowEnd = chrLength - 1;
+            }
+
+            if (windowEnd - windowStart < windowSize - offset) {
+                // do not consider too small windows at the end
+                break;
+            }
+
+            // remove records ending before start of window
+            while (!recordsEnd.isEmpty() && recordsEnd.peek() < windowStart) {
+                recordsEnd.poll();
+            }
+
+            if (lastUnused
+                && overlapping.getStart(next - 1) <= windowEnd) {
+                // outside previous window
+                recordsEnd.add(overlapping.getEnd(next - 1));
+                lastUnused = false;
+            }
+
+            while (!lastUnused && next < size) {
+                int start = overlapping.getStart(next);
+                if (startChunk <= start
+                    && start < startNextChunk
+                    && overlapping.getBaseQualities(next) != null) {
+                    quality.count(overlapping.getBaseQualities(next));
+                }
+
+                if (start <= windowEnd) {
+                    recordsEnd.add(overlapping.getEnd(next));
+                } else {
+                    lastUnused = true;
+                }
+                ++next;
+            }
+
+            if (maxQueue < recordsEnd.size()) {
+                maxQueue = recordsEnd.size();
+            }
+
+            // count elements
+            tags[slot] = recordsEnd.size();
+
+            // move window
+            windowStart += offset;
+            windowEnd += offset;
+            ++slot;
+        }
+
+        synchronized (max) {
+            if (max[1] < maxQueue) {
+                max[1] = maxQueue;
+            }
+        }
+
+        return slot;
+    }
+
+    /**
+     * Get number of windows counted in this chunk. Too small windows at the
+     * end of the chromosome are not counted.
+     *
+     * @return number of counted windows
+     */
+    public int getNumberOfCountedWindows() {
+        int slot = 0;
+        while (getWindowStart(slot) < startNextChunk
+               && getWindowEnd(slot) - getWindowStart(slot) >= windowSize - offset) {
+            ++slot;
+        }
+        return slot;
+    }
+
+    /**
+     * Count reads for all windows of the chunk. Reads must be sorted by start
+     * and restricted to reads overlapping the chunk interval.
+     *
+     * Each read is counted once: it increments the first window it overlaps
+     * and decrements the window following the last one it overlaps. A prefix
+     * sum over the windows yields the same counts as the end queue of
+     * count(). In particular, a read ending before its start (e.g., an
+     * unmapped read) is counted in the first window containing its start only.
+     *
+     * @param overlapping reads overlapping the chunk interval
+     * @param qualityCounter quality counter of data set
+     * @param max maximum queue sizes
+     * @param tags tag count for each window of the chunk
+     * @return number of windows in chunk
+     */
+    public int countBins(
+            WindowFactoryReadBatch overlapping,
+            QualityCounter qualityCounter,
+            int[] max,
+            int[] tags
+    ) {
+        final int windows = getNumberOfCountedWindows();
+        if (windows == 0) {
+            return 0;
+        }
+        Arrays.fill(tags, 0, windows, 0);
+        final int lastWindowEnd = getWindowEnd(windows - 1);
+        // base qualities are counted without locking the shared counter
+        final QualityCounter.Stripe quality = qualityCounter.getStripe();
+
+        final int size = overlapping.size();
+        for (int next = 0; next < size; ++next) {
+            int start = overlapping.getStart(next);
+            if (startChunk <= start
+                && start < startNextChunk
+                && overlapping.getBaseQualities(next) != null) {
+                quality.count(overlapping.getBaseQualities(next));
+            }
+            if (start > lastWindowEnd) {
+                // no further read overlaps a window of this chunk
+                break;
+            }
+
+            // first window with windowStart + windowSize - 1 >= start
+            int first = start - windowSize + 1 - startChunk;
+            first = first <= 0 ? 0 : (first + offset - 1) / offset;
+            // last window with windowStart <= end
+            int end = overlapping.getEnd(next) - startChunk;
+            int last = end < 0 ? -1 : end / offset;
+            if (last < first) {
+                last = first;
+            }
+
+            ++tags[first];
+            if (last + 1 < windows) {
+                --tags[last + 1];
+            }
+        }
+
+        int maxCount = 0;
+        for (int slot = 1; slot < windows; ++slot) {
+            tags[slot] += tags[slot - 1];
+        }
+        for (int slot = 0; slot < windows; ++slot) {
+            if (maxCount < tags[slot]) {
+                maxCount = tags[slot];
+            }
+        }
+
+        synchronized (max) {
+            if (max[1] < maxCount) {
+                max[1] = maxCount;
+            }
+        }
+
+        return windows;
+    }
+
+    /**
+     * Count reads for all windows of the chunk using the counting method
+     * selected in the data mapper.
+     *
+     * @param overlapping reads overlapping the chunk interval
+     * @param mapper data mapper
+     * @param qualityCounter quality counter of data set
+     * @param max maximum queue sizes
+     * @param tags tag count for each window of the chunk
+     * @return number of windows in chunk
+     */
+    private int count(
+            WindowFactoryReadBatch overlapping,
+            DataMapper mapper,
+            QualityCounter qualityCounter,
+            int[] max,
+            int[] tags
+    ) {
+        if ("bins".equals(mapper.getWindowCounting())) {
+            return countBins(overlapping, qualityCounter, max, tags);
+        }
+        return count(overlapping, qualityCounter, max, tags);
+    }
+
+    /**
+     * Count reads of one data set for all windows of the chunk. The tag counts
+     * are stored in the slots of the chunk in the window list, together with
+     * the base quality histograms if the list records them.
+     *
+     * @param overlapping reads overlapping the chunk interval
+     * @param currentDataSet data set the reads belong to
+     * @param list window list
+     * @param mapper data mapper
+     * @param qualityCounter quality counter of data set
+     * @param max maximum queue sizes
+     */
+    public void countWindows(
+            WindowFactoryReadBatch overlapping,
+            int currentDataSet,
+            WindowListChunkSlots list,
+            DataMapper mapper,
+            QualityCounter qualityCounter,
+            int[] max
+    ) {
+        int[] tags = new int[getNumberOfWindows()];
+        int windows = count(overlapping, mapper, qualityCounter, max, tags);
+        list.setTags(this, currentDataSet, tags, windows);
+        if (list.getQualityBins() != null) {
+            list.getQualityBins().record(this, currentDataSet, overlapping);
+        }
+    }
+
+    /**
+     * Count reads of all data sets for all windows of the chunk. The complete
+     * tag vectors of all windows of the chunk are stored in one step, together
+     * with the base quality histograms if the list records them.
+     *
+     * @param overlapping reads overlapping the chunk interval for each data
+     * set, null if a data set has no such reads
+     * @param list window list
+     * @param mapper data mapper
+     * @param qualityCounters quality counter for each data set
+     * @param max maximum queue sizes
+     */
+    public void countWindows(
+            List<WindowFactoryReadBatch> overlapping,
+            WindowListChunkSlots list,
+            DataMapper mapper,
+            QualityCounter[] qualityCounters,
+            int[] max
+    ) {
+        for (int dataSet = 0; dataSet < overlapping.size(); ++dataSet) {
+            if (overlapping.get(dataSet) != null) {
+                int[] tags = new int[getNumberOfWindows()];
+                int windows = count(overlapping.get(dataSet), mapper, qualityCounters[dataSet], max, tags);
+                list.setTags(this, dataSet, tags, windows);
+                if (list.getQualityBins() != null) {
+                    list.getQualityBins().record(this, dataSet, overlapping.get(dataSet));
+                }
+            }
+        }
+    }
+}
@@ -17,6 +17,7 @@
  */
 package biovis.sierra.server.windowFactories;
 
+import java.util.HashMap;
 import java.util.Map;
 import java.util.TreeMap;
 
@@ -29,6 +30,15 @@ public class WindowFactoryChunkMap
 
     private int chunks = 0;
 
+    private final Map<String, Integer> genome;
+    private final int windowSize;
+    private final int offset;
+    private final int chunkSize;
+
+    // first chunk and number of chunks for each chromosome
+    private final Map<String, Integer> firstChunk = new HashMap<>();
+    private final Map<String, Integer> numberOfChunks = new HashMap<>();
+
     /**
      * Construct chunk to chromosome map.
      *
@@ -43,6 +53,11 @@ public class WindowFactoryChunkMap
             int offset,
             int chunkSize
     ) {
+        this.genome = genome;
+        this.windowSize = windowSize;
+        this.offset = offset;
+        this.chunkSize = chunkSize;
+
         // construct TreeMap to find corresponding chromosome
         int startChunk = 0;
         for (String chr : genome.keySet()) {
@@ -55,6 +70,8 @@ public class WindowFactoryChunkMap
             if (numChunks * chunkSize < windowNum) {
                 numChunks++;
             }
+            firstChunk.put(chr, startChunk);
+            numberOfChunks.put(chr, numChunks);
             startChunk += numChunks;
         }
         chunks = startChunk;
@@ -63,4 +80,51 @@ public class WindowFactoryChunkMap
     public int getChunks() {
         return chunks;
     }
+
+    public int getChunkSize() {
+        return chunkSize;
+    }
+
+    /**
+     * Get first chunk of chromosome.
+     *
+     * @param chr chromosome
+     * @return index of first chunk of chromosome, null if chromosome is unknown
+     */
+    public Integer getFirstChunk(String chr) {
+        return firstChunk.get(chr);
+    }
+
+    /**
+     * Get number of chunks of chromosome.
+     *
+     * @param chr chromosome
+     * @return number of chunks of chromosome, 0 if chromosome is unknown
+     */
+    public int getNumberOfChunks(String chr) {
+        Integer num = numberOfChunks.get(chr);
+        return num == null ? 0 : num;
+    }
+
+    /**
+     * Get geometry of chunk.
+     *
+     * @param index chunk index
+     * @return chunk
+     */
+    public WindowFactoryChunk getChunk(int index) {
+        //start chunk for corresponding index --> first chunk on chromosome
+        int chrStartChunk = floorKey(index);
+
+        //chromosome for current chunk
+        String chr = get(chrStartChunk);
+
+        //relativ (to chromosome based) chunk number for index
+        int numChunk = index - chrStartChunk;
+
+        return new WindowFactoryChunk(
+                index, chr, genome.get(chr),
+                numChunk * chunkSize * offset,
+                windowSize, offset, chunkSize);
+    }
 }
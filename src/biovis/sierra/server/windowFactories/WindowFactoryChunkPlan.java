@@ -0,0 +1,245 @@
+/**
+ *****************************************************************************
+ * Copyright (c) 2015 Daniel Gerighausen, Lydia Mueller, and Dirk Zeckzer
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ ******************************************************************************
+ */
+package biovis.sierra.server.windowFactories;
+
+import htsjdk.samtools.BAMFileSpan;
+import htsjdk.samtools.BAMIndex;
+import htsjdk.samtools.BAMIndexMetaData;
+import htsjdk.samtools.Chunk;
+import htsjdk.samtools.SAMSequenceDictionary;
+import htsjdk.samtools.SamReader;
+
+/**
+ * Grouping of the chunks of one data set into tasks of similar read volume.
+ *
+ * The read volume of a chunk is estimated by the compressed bytes of the
+ * BAM file an indexed query of the chunk interval reads, as given by the
+ * bins and the linear index of the BAI. Chunks on references without
+ * records and chunks without any bin content are empty and are not queried
+ * at all. Consecutive chunks are combined until a task carries about
+ * 1 / (threads * TASKS_PER_THREAD) of the total volume. The chunk geometry
+ * itself is not changed, i.e., window counts do not depend on the plan. A
+ * single dense chunk remains one task; a smaller chunk size splits dense
+ * regions further while sparse regions are still combined.
+ *
+ * @author Lydia Mueller, Dirk Zeckzer
+ */
+public class WindowFactoryChunkPlan {
+
+    // tasks per counting thread
+    private final static int TASKS_PER_THREAD = 8;
+    // volume of a non-empty chunk in addition to its compressed bytes, cost
+    // of the query itself
+    private final static long CHUNK_OVERHEAD = 65536;
+
+    // first chunk of each task and end of the last task
+    private final int[] taskStart;
+    private final boolean[] empty;
+    private final int emptyChunks;
+
+    /**
+     * Constructor.
+     *
+     * @param taskStart first chunk of each task and end of the last task
+     * @param empty true for each chunk without reads
+     */
+    private WindowFactoryChunkPlan(int[] taskStart, boolean[] empty) {
+        this.taskStart = taskStart;
+        this.empty = empty;
+        int count = 0;
+        for (boolean e : empty) {
+            if (e) {
+                ++count;
+            }
+        }
+        this.emptyChunks = count;
+    }
+
+    /**
+     * Plan with one task per chunk and no empty chunk.
+     *
+     * @param chrtree chunk map
+     * @return plan
+     */
+    public static WindowFactoryChunkPlan uniform(WindowFactoryChunkMap chrtree) {
+        int chunks = chrtree.getChunks();
+        int[] taskStart = new int[chunks + 1];
+        for (int index = 0; index <= chunks; ++index) {
+            taskStart[index] = index;
+        }
+        return new WindowFactoryChunkPlan(taskStart, new boolean[chunks]);
+    }
+
+    /**
+     * Plan tasks for one data set using its BAM index. Without index, there
+     * is one task per chunk.
+     *
+     * @param chrtree chunk map
+     * @param samReader reader of the data set
+     * @param threads number of counting threads
+     * @return plan
+     */
+    public static WindowFactoryChunkPlan create(
+            WindowFactoryChunkMap chrtree,
+            SamReader samReader,
+            int threads
+    ) {
+        if (!samReader.hasIndex()) {
+            return uniform(chrtree);
+        }
+        BAMIndex index = samReader.indexing().getIndex();
+        SAMSequenceDictionary dictionary = samReader.getFileHeader().getSequenceDictionary();
+
+        final int chunks = chrtree.getChunks();
+        long[] volume = new long[chunks];
+        long total = 0;
+        for (int chunkIndex = 0; chunkIndex < chunks; ++chunkIndex) {
+            WindowFactoryChunk chunk = chrtree.getChunk(chunkIndex);
+            int referenceIndex = dictionary.getSequenceIndex(chunk.getChr());
+            if (referenceIndex < 0) {
+                continue;
+            }
+            if (chunkIndex == chrtree.getFirstChunk(chunk.getChr())
+                && isEmpty(index, referenceIndex, dictionary.getSequence(referenceIndex).getSequenceLength())) {
+                // no record on the reference
+                chunkIndex += chrtree.getNumberOfChunks(chunk.getChr()) - 1;
+                continue;
+            }
+            volume[chunkIndex] = getVolume(index, referenceIndex, chunk);
+            total += volume[chunkIndex];
+        }
+
+        boolean[] empty = new boolean[chunks];
+        for (int chunkIndex = 0; chunkIndex < chunks; ++chunkIndex) {
+            empty[chunkIndex] = volume[chunkIndex] == 0;
+        }
+
+        // combine consecutive chunks to tasks of similar volume
+        long target = Math.max(1, total / ((long) Math.max(1, threads) * TASKS_PER_THREAD));
+        int[] taskStart = new int[chunks + 1];
+        int tasks = 0;
+        long taskVolume = 0;
+        boolean open = false;
+        for (int chunkIndex = 0; chunkIndex < chunks; ++chunkIndex) {
+            if (!open) {
+                taskStart[tasks++] = chunkIndex;
+                open = true;
+            }
+            taskVolume += volume[chunkIndex];
+            if (taskVolume >= target) {
+                taskVolume = 0;
+                open = false;
+            }
+        }
+        taskStart[tasks] = chunks;
+        int[] result = new int[tasks + 1];
+        System.arraycopy(taskStart, 0, result, 0, tasks + 1);
+        return new WindowFactoryChunkPlan(result, empty);
+    }
+
+    /**
+     * Check whether a reference contains no record. Record counts are only
+     * available if the index contains the meta data pseudo bin, otherwise
+     * the meta data reports 0 records. Hence, 0 records are only trusted if
+     * the reference has no indexed span.
+     *
+     * @param index BAM index
+     * @param referenceIndex reference
+     * @param length length of reference
+     * @return true if no record is on the reference
+     */
+    private static boolean isEmpty(BAMIndex index, int referenceIndex, int length) {
+        BAMIndexMetaData metaData = index.getMetaData(referenceIndex);
+        if (metaData != null
+            && (metaData.getAlignedRecordCount() > 0 || metaData.getUnalignedRecordCount() > 0)) {
+            // meta data pseudo bin present
+            return false;
+        }
+        BAMFileSpan span = index.getSpanOverlapping(referenceIndex, 1, length);
+        return span == null || span.isEmpty();
+    }
+
+    /**
+     * Estimate read volume of a chunk by the compressed bytes of its indexed
+     * query.
+     *
+     * @param index BAM index
+     * @param referenceIndex reference of chunk
+     * @param chunk chunk
+     * @return volume, 0 if no record can overlap the chunk interval
+     */
+    private static long getVolume(BAMIndex index, int referenceIndex, WindowFactoryChunk chunk) {
+        BAMFileSpan span = index.getSpanOverlapping(referenceIndex, chunk.getIntervalStart(), chunk.getIntervalEnd());
+        if (span == null || span.isEmpty()) {
+            return 0;
+        }
+        long bytes = 0;
+        for (Chunk bamChunk : span.getChunks()) {
+            bytes += (bamChunk.getChunkEnd() >>> 16) - (bamChunk.getChunkStart() >>> 16);
+        }
+        return bytes + CHUNK_OVERHEAD;
+    }
+
+    /**
+     * Get number of tasks.
+     *
+     * @return number of tasks
+     */
+    public int getTasks() {
+        return taskStart.length - 1;
+    }
+
+    /**
+     * Get first chunk of task.
+     *
+     * @param task task
+     * @return chunk index
+     */
+    public int getFirstChunk(int task) {
+        return taskStart[task];
+    }
+
+    /**
+     * Get end of chunks of task.
+     *
+     * @param task task
+     * @return index of first chunk after the task
+     */
+    public int getEndChunk(int task) {
+        return taskStart[task + 1];
+    }
+
+    /**
+     * Check whether no read can overlap the chunk interval.
+     *
+     * @param index chunk index
+     * @return true iff the chunk is empty
+     */
+    public boolean isEmpty(int index) {
+        return empty[index];
+    }
+
+    /**
+     * Get number of empty chunks.
+     *
+     * @return number of empty chunks
+     */
+    public int getEmptyChunks() {
+        return emptyChunks;
+    }
+}
@@ -0,0 +1,410 @@
+/**
+ *****************************************************************************
+ * Copyright (c) 2015 Daniel Gerighausen, Lydia Mueller, and Dirk Zeckzer
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ ******************************************************************************
+ */
+package biovis.sierra.server.windowFactories;
+
+import biovis.sierra.data.DataMapper;
+import biovis.sierra.data.QualityCounter;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.AtomicMoveNotSupportedException;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+import java.util.zip.GZIPInputStream;
+import java.util.zip.GZIPOutputStream;
+
+/**
+ * On-disk cache of the window tag counts and base quality counts of data sets.
+ *
+ * An entry is keyed by the canonical path, size and modification time of the
+ * data set file together with window size, offset and chunk size. Reads
+ * without alignment end are counted once per chunk they reach, hence counts
+ * depend on the chunk size. Quality counts of sampled reads are stored under
+ * a key including the sampling rate. An entry additionally records the genome used for
+ * window construction and is only used if the genome is the same. Entries
+ * contain the non-zero tag counts of the windows of each chromosome and the
+ * quality counts before adjusting the quality scale.
+ *
+ * Failing to read or write an entry is not an error; the data set is then
+ * counted from its file.
+ *
+ * @author Lydia Mueller, Dirk Zeckzer
+ */
+public class WindowFactoryCountCache {
+
+    private final static int MAGIC = 0x53434e54;
+    private final static int VERSION = 2;
+    private final static String SUFFIX = ".counts.gz";
+
+    private final Logger log = Logger.getLogger("Constructing windows and state");
+
+    private final File directory;
+    private final Map<String, Integer> genome;
+    private final WindowFactoryChunkMap chrtree;
+    private final int windowSize;
+    private final int offset;
+    private final int qualitySampling;
+
+    /**
+     * Constructor.
+     *
+     * @param directory cache directory
+     * @param genome genome
+     * @param chrtree chunk map
+     * @param windowSize window size
+     * @param offset window offset
+     * @param qualitySampling base qualities are counted for one of
+     * qualitySampling reads
+     */
+    private WindowFactoryCountCache(
+            File directory,
+            Map<String, Integer> genome,
+            WindowFactoryChunkMap chrtree,
+            int windowSize,
+            int offset,
+            int qualitySampling
+    ) {
+        this.directory = directory;
+        this.genome = genome;
+        this.chrtree = chrtree;
+        this.windowSize = windowSize;
+        this.offset = offset;
+        this.qualitySampling = Math.max(1, qualitySampling);
+    }
+
+    /**
+     * Create count cache for the cache directory of the data mapper.
+     *
+     * @param mapper data mapper
+     * @param genome genome
+     * @param chrtree chunk map
+     * @param windowSize window size
+     * @param offset window offset
+     * @return count cache, null if no cache directory is set
+     */
+    public static WindowFactoryCountCache create(
+            DataMapper mapper,
+            Map<String, Integer> genome,
+            WindowFactoryChunkMap chrtree,
+            int windowSize,
+            int offset
+    ) {
+        String directory = mapper.getCountCacheDirectory();
+        if (directory == null || directory.isEmpty()) {
+            return null;
+        }
+        return new WindowFactoryCountCache(new File(directory), genome, chrtree, windowSize, offset,
+                                           mapper.getQualitySampling());
+    }
+
+    /**
+     * Load tag counts of a data set into the window list.
+     *
+     * @param file data set file
+     * @param dataSet data set
+     * @param list window list
+     * @return quality counts of the data set, null if there is no valid entry
+     */
+    public QualityCounter load(File file, int dataSet, WindowListChunkSlots list) {
+        File entry;
+        String key;
+        try {
+            key = getKey(file);
+            entry = getEntry(directory, key, SUFFIX);
+        } catch (IOException e) {
+            log.log(Level.WARNING, "Count cache: cannot access " + file, e);
+            return null;
+        }
+        if (!entry.isFile()) {
+            log.log(Level.INFO, "Count cache miss: {0}", file);
+            return null;
+        }
+
+        // read complete entry before touching the window list
+        QualityCounter qualityCounter;
+        List<WindowFactoryChunk> chunks = new ArrayList<>();
+        List<int[]> tags = new ArrayList<>();
+        try (DataInputStream in = new DataInputStream(new BufferedInputStream(
+                new GZIPInputStream(new FileInputStream(entry))))) {
+            if (in.readInt() != MAGIC || in.readInt() != VERSION || !key.equals(in.readUTF())
+                || !readGenome(in)) {
+                log.log(Level.INFO, "Count cache miss: {0}", file);
+                return null;
+            }
+
+            long[] qualitycounts = new long[in.readInt()];
+            for (int i = 0; i < qualitycounts.length; ++i) {
+                qualitycounts[i] = in.readLong();
+            }
+            long totalcounts = in.readLong();
+            int tagCount = in.readInt();
+            qualityCounter = new QualityCounter(qualitycounts, totalcounts, tagCount);
+            qualityCounter.setSampling(qualitySampling);
+
+            for (String chr : genome.keySet()) {
+                readChromosome(in, chr, chunks, tags);
+            }
+        } catch (IOException | RuntimeException e) {
+            log.log(Level.WARNING, "Count cache: cannot read entry for " + file, e);
+            return null;
+        }
+
+        for (int i = 0; i < chunks.size(); ++i) {
+            WindowFactoryChunk chunk = chunks.get(i);
+            list.setTags(chunk, dataSet, tags.get(i), chunk.getNumberOfCountedWindows());
+        }
+        log.log(Level.INFO, "Count cache hit: {0}", file);
+        return qualityCounter;
+    }
+
+    /**
+     * Store tag counts and quality counts of a data set. Must be called before
+     * the window list is flattened and before the quality counts are adjusted.
+     *
+     * @param file data set file
+     * @param dataSet data set
+     * @param list window list
+     * @param qualityCounter quality counts of the data set
+     */
+    public void store(File file, int dataSet, WindowListChunkSlots list, QualityCounter qualityCounter) {
+        File temporary = null;
+        try {
+            String key = getKey(file);
+            File entry = getEntry(directory, key, SUFFIX);
+            if (!directory.isDirectory() && !directory.mkdirs() && !directory.isDirectory()) {
+                throw new IOException("Cannot create directory " + directory);
+            }
+            temporary = File.createTempFile("entry", ".tmp", directory);
+            try (DataOutputStream out = new DataOutputStream(new BufferedOutputStream(
+                    new GZIPOutputStream(new FileOutputStream(temporary))))) {
+                out.writeInt(MAGIC);
+                out.writeInt(VERSION);
+                out.writeUTF(key);
+                out.writeInt(genome.size());
+                for (Map.Entry<String, Integer> chr : genome.entrySet()) {
+                    out.writeUTF(chr.getKey());
+                    out.writeInt(chr.getValue());
+                }
+
+                long[] qualitycounts = qualityCounter.getQualitycounts();
+                out.writeInt(qualitycounts.length);
+                for (long count : qualitycounts) {
+                    out.writeLong(count);
+                }
+                out.writeLong(qualityCounter.getTotalcounts());
+                out.writeInt(qualityCounter.getTagCount());
+
+                for (String chr : genome.keySet()) {
+                    writeChromosome(out, chr, dataSet, list);
+                }
+            }
+            moveEntry(temporary, entry);
+            temporary = null;
+            log.log(Level.INFO, "Count cache stored: {0}", file);
+        } catch (IOException e) {
+            log.log(Level.WARNING, "Count cache: cannot store entry for " + file, e);
+        } finally {
+            if (temporary != null && !temporary.delete()) {
+                temporary.deleteOnExit();
+            }
+        }
+    }
+
+    /**
+     * Get key of data set file.
+     *
+     * @param file data set file
+     * @return key
+     * @throws IOException if the file cannot be accessed
+     */
+    private String getKey(File file) throws IOException {
+        String key = getFileKey(file) + "|" + windowSize + "|" + offset + "|" + chrtree.getChunkSize();
+        return qualitySampling == 1 ? key : key + "|" + qualitySampling;
+    }
+
+    /**
+     * Get key identifying the content of a file by canonical path, size and
+     * modification time.
+     *
+     * @param file file
+     * @return key
+     * @throws IOException if the file cannot be accessed
+     */
+    static String getFileKey(File file) throws IOException {
+        File canonical = file.getCanonicalFile();
+        if (!canonical.isFile()) {
+            throw new IOException("No such file " + canonical);
+        }
+        return canonical.getPath() + "|" + canonical.length() + "|" + canonical.lastModified();
+    }
+
+    /**
+     * Move completely written entry into place. Concurrent jobs may store
+     * the same entry, the last one wins.
+     *
+     * @param temporary completely written entry
+     * @param entry entry file
+     * @throws IOException if the entry cannot be moved
+     */
+    static void moveEntry(File temporary, File entry) throws IOException {
+        try {
+            Files.move(temporary.toPath(), entry.toPath(),
+                       StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        } catch (AtomicMoveNotSupportedException e) {
+            Files.move(temporary.toPath(), entry.toPath(), StandardCopyOption.REPLACE_EXISTING);
+        }
+    }
+
+    /**
+     * Get entry file for a key.
+     *
+     * @param directory cache directory
+     * @param key key
+     * @param suffix suffix of entry files
+     * @return entry file
+     */
+    static File getEntry(File directory, String key, String suffix) {
+        try {
+            byte[] digest = MessageDigest.getInstance("SHA-1").digest(key.getBytes(StandardCharsets.UTF_8));
+            StringBuilder name = new StringBuilder();
+            for (byte b : digest) {
+                name.append(String.format("%02x", b));
+            }
+            return new File(directory, name.append(suffix).toString());
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    /**
+     * Read genome of entry and compare it to the current genome.
+     *
+     * @param in entry
+     * @return true if the genomes are the same
+     * @throws IOException if the entry cannot be read
+     */
+    private boolean readGenome(DataInputStream in) throws IOException {
+        int size = in.readInt();
+        if (size != genome.size()) {
+            return false;
+        }
+        for (Map.Entry<String, Integer> chr : genome.entrySet()) {
+            if (!chr.getKey().equals(in.readUTF()) || chr.getValue() != in.readInt()) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Write non-zero tag counts of the windows of a chromosome: number of
+     * windows followed by window index and tag count of each window.
+     *
+     * @param out entry
+     * @param chr chromosome
+     * @param dataSet data set
+     * @param list window list
+     * @throws IOException if the entry cannot be written
+     */
+    private void writeChromosome(DataOutputStream out, String chr, int dataSet, WindowListChunkSlots list)
+            throws IOException {
+        int first = chrtree.getFirstChunk(chr);
+        int last = first + chrtree.getNumberOfChunks(chr);
+
+        int windows = 0;
+        for (int index = first; index < last; ++index) {
+            int[] tags = list.getTags(index, dataSet);
+            if (tags != null) {
+                int counted = chrtree.getChunk(index).getNumberOfCountedWindows();
+                for (int slot = 0; slot < counted; ++slot) {
+                    if (tags[slot] != 0) {
+                        ++windows;
+                    }
+                }
+            }
+        }
+        out.writeInt(windows);
+
+        for (int index = first; index < last; ++index) {
+            int[] tags = list.getTags(index, dataSet);
+            if (tags != null) {
+                WindowFactoryChunk chunk = chrtree.getChunk(index);
+                int counted = chunk.getNumberOfCountedWindows();
+                for (int slot = 0; slot < counted; ++slot) {
+                    if (tags[slot] != 0) {
+                        out.writeInt(chunk.getStartChunk() / offset + slot);
+                        out.writeInt(tags[slot]);
+                    }
+                }
+            }
+        }
+    }
+
+    /**
+     * Read non-zero tag counts of the windows of a chromosome and collect
+     * them per chunk.
+     *
+     * @param in entry
+     * @param chr chromosome
+     * @param chunks chunks with tags
+     * @param tags tag counts for each chunk with tags
+     * @throws IOException if the entry cannot be read or is corrupt
+     */
+    private void readChromosome(DataInputStream in, String chr, List<WindowFactoryChunk> chunks, List<int[]> tags)
+            throws IOException {
+        int first = chrtree.getFirstChunk(chr);
+        int numberOfChunks = chrtree.getNumberOfChunks(chr);
+        int chunkSize = chrtree.getChunkSize();
+
+        int windows = in.readInt();
+        int lastWindow = -1;
+        int[] current = null;
+        for (int i = 0; i < windows; ++i) {
+            int window = in.readInt();
+            int count = in.readInt();
+            if (window <= lastWindow || window / chunkSize >= numberOfChunks) {
+                throw new IOException("Corrupt count cache entry");
+            }
+            if (current == null || window / chunkSize != lastWindow / chunkSize) {
+                WindowFactoryChunk chunk = chrtree.getChunk(first + window / chunkSize);
+                current = new int[chunk.getNumberOfWindows()];
+                chunks.add(chunk);
+                tags.add(current);
+            }
+            if (window % chunkSize >= current.length) {
+                throw new IOException("Corrupt count cache entry");
+            }
+            current[window % chunkSize] = count;
+            lastWindow = window;
+        }
+    }
+}
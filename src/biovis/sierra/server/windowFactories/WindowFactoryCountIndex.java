@@ -0,0 +1,543 @@
+/**
+ *****************************************************************************
+ * Copyright (c) 2015 Daniel Gerighausen, Lydia Mueller, and Dirk Zeckzer
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ ******************************************************************************
+ */
+package biovis.sierra.server.windowFactories;
+
+import biovis.sierra.data.DataMapper;
+import biovis.sierra.data.QualityCounter;
+import biovis.sierra.server.bam.BamAlignment;
+import biovis.sierra.server.bam.BamAlignmentReader;
+import htsjdk.samtools.util.CloseableIterator;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+import java.util.zip.GZIPInputStream;
+import java.util.zip.GZIPOutputStream;
+
+/**
+ * On-disk index of the reads of data sets at a fixed base resolution.
+ *
+ * For each chromosome, the index stores per bin of resolution bases the
+ * number of reads starting and the number of reads ending in the bin. Reads
+ * without alignment end are stored by their start only. If window size and
+ * offset are multiples of the resolution, every window start and every
+ * window end + 1 is a bin boundary. The tag count of a window is then the
+ * number of reads starting before its end + 1 minus the number of reads
+ * ending before its start, and window counts for any such window size and
+ * offset are derived exactly by a linear scan over the bins. The end of the
+ * chromosome is an additional bin boundary as windows are trimmed there.
+ *
+ * An entry is keyed by the canonical path, size and modification time of the
+ * data set file together with the resolution and is built by one pass over
+ * the file on first use. Base quality counts are kept per chromosome and
+ * contain all reads starting on the chromosome.
+ *
+ * @author Lydia Mueller, Dirk Zeckzer
+ */
+public class WindowFactoryCountIndex {
+
+    private final static int MAGIC = 0x53494458;
+    private final static int VERSION = 2;
+    private final static String SUFFIX = ".index.gz";
+
+    private final Logger log = Logger.getLogger("Constructing windows and state");
+
+    private final File directory;
+    private final int resolution;
+    private final Map<String, Integer> genome;
+    private final WindowFactoryChunkMap chrtree;
+    private final int windowSize;
+    private final int offset;
+    // decoding of the data set files
+    private final String bamDecoder;
+    private final int inflateThreads;
+
+    /**
+     * Constructor.
+     *
+     * @param directory index directory
+     * @param resolution bin size in bases
+     * @param genome genome
+     * @param chrtree chunk map
+     * @param windowSize window size
+     * @param offset window offset
+     * @param bamDecoder decoder of BAM records
+     * @param inflateThreads number of threads inflating BAM blocks
+     */
+    private WindowFactoryCountIndex(
+            File directory,
+            int resolution,
+            Map<String, Integer> genome,
+            WindowFactoryChunkMap chrtree,
+            int windowSize,
+            int offset,
+            String bamDecoder,
+            int inflateThreads
+    ) {
+        this.directory = directory;
+        this.resolution = resolution;
+        this.genome = genome;
+        this.chrtree = chrtree;
+        this.windowSize = windowSize;
+        this.offset = offset;
+        this.bamDecoder = bamDecoder;
+        this.inflateThreads = inflateThreads;
+    }
+
+    /**
+     * Create count index for the index directory of the data mapper.
+     *
+     * @param mapper data mapper
+     * @param genome genome
+     * @param chrtree chunk map
+     * @param windowSize window size
+     * @param offset window offset
+     * @return count index, null if no index directory is set or window size
+     * and offset are no multiples of the resolution
+     */
+    public static WindowFactoryCountIndex create(
+            DataMapper mapper,
+            Map<String, Integer> genome,
+            WindowFactoryChunkMap chrtree,
+            int windowSize,
+            int offset
+    ) {
+        String directory = mapper.getCountIndexDirectory();
+        if (directory == null || directory.isEmpty()) {
+            return null;
+        }
+        int resolution = mapper.getCountIndexResolution();
+        if (resolution <= 0 || windowSize % resolution != 0 || offset % resolution != 0) {
+            Logger.getLogger("Constructing windows and state").log(
+                    Level.WARNING, "Count index not used: window size {0} and offset {1} are no multiples of resolution {2}",
+                    new Object[]{windowSize, offset, resolution});
+            return null;
+        }
+        return new WindowFactoryCountIndex(new File(directory), resolution, genome, chrtree, windowSize, offset,
+                                           mapper.getBamDecoder(), mapper.getInflateThreads());
+    }
+
+    /**
+     * Load tag counts of a data set into the window list. The index entry is
+     * built first if it does not exist.
+     *
+     * @param file data set file
+     * @param dataSet data set
+     * @param list window list
+     * @return quality counts of the data set, null if the counts could not
+     * be derived from the index
+     */
+    public QualityCounter load(File file, int dataSet, WindowListChunkSlots list) {
+        String key;
+        File entry;
+        try {
+            key = WindowFactoryCountCache.getFileKey(file) + "|" + resolution;
+            entry = WindowFactoryCountCache.getEntry(directory, key, SUFFIX);
+            if (!entry.isFile() || !isValid(entry, key)) {
+                log.log(Level.INFO, "Count index: indexing {0}", file);
+                build(file, key, entry);
+            }
+        } catch (IOException | RuntimeException e) {
+            log.log(Level.WARNING, "Count index: cannot index " + file, e);
+            return null;
+        }
+
+        // derive complete counts before touching the window list
+        List<WindowFactoryChunk> chunks = new ArrayList<>();
+        List<int[]> tags = new ArrayList<>();
+        long[] qualitycounts = new long[QualityCounter.PHRED_MAX + 1];
+        long totalcounts = 0;
+        int tagCount = 0;
+        try (DataInputStream in = open(entry, key)) {
+            while (in.readBoolean()) {
+                ChromosomeBins bins = ChromosomeBins.read(in);
+                if (chrtree.getNumberOfChunks(bins.chr) == 0) {
+                    // no windows on this chromosome
+                    continue;
+                }
+                derive(bins, chunks, tags);
+                for (int i = 0; i < qualitycounts.length; ++i) {
+                    qualitycounts[i] += bins.quality.getQualitycounts()[i];
+                }
+                totalcounts += bins.quality.getTotalcounts();
+                tagCount += bins.quality.getTagCount();
+            }
+        } catch (IOException | RuntimeException e) {
+            log.log(Level.WARNING, "Count index: cannot read entry for " + file, e);
+            return null;
+        }
+
+        for (int i = 0; i < chunks.size(); ++i) {
+            WindowFactoryChunk chunk = chunks.get(i);
+            list.setTags(chunk, dataSet, tags.get(i), chunk.getNumberOfCountedWindows());
+        }
+        log.log(Level.INFO, "Count index used: {0}", file);
+        return new QualityCounter(qualitycounts, totalcounts, tagCount);
+    }
+
+    /**
+     * Derive tag counts of all windows of a chromosome.
+     *
+     * @param bins bins of the chromosome
+     * @param chunks chunks with tags
+     * @param tags tag counts for each chunk with tags
+     * @throws IOException if the chromosome length differs from the genome
+     */
+    private void derive(ChromosomeBins bins, List<WindowFactoryChunk> chunks, List<int[]> tags)
+            throws IOException {
+        Integer length = genome.get(bins.chr);
+        if (length == null || length != bins.length) {
+            throw new IOException("Length of chromosome " + bins.chr + " differs from index");
+        }
+        final int n = bins.starts.length - 1;
+        final int binsPerWindow = windowSize / resolution;
+        final int binsPerOffset = offset / resolution;
+        final int chunkSize = chrtree.getChunkSize();
+        final int first = chrtree.getFirstChunk(bins.chr);
+        final int numberOfChunks = chrtree.getNumberOfChunks(bins.chr);
+
+        // reads starting and ending before each bin
+        int[] startsBefore = prefixSum(bins.starts);
+        int[] endsBefore = prefixSum(bins.ends);
+
+        int[][] chrTags = new int[numberOfChunks][];
+        int[] counted = new int[numberOfChunks];
+        for (int c = 0; c < numberOfChunks; ++c) {
+            WindowFactoryChunk chunk = chrtree.getChunk(first + c);
+            chrTags[c] = new int[chunk.getNumberOfWindows()];
+            counted[c] = chunk.getNumberOfCountedWindows();
+            for (int slot = 0; slot < counted[c]; ++slot) {
+                int startBin = (c * chunkSize + slot) * binsPerOffset;
+                int endBin = Math.min(startBin + binsPerWindow, n);
+                chrTags[c][slot] = startsBefore[endBin] - endsBefore[startBin];
+            }
+        }
+
+        // reads without alignment end are counted in the first window
+        // reaching their start, once in each chunk whose interval contains it
+        for (int bin = 0; bin < n; ++bin) {
+            if (bins.points[bin] == 0) {
+                continue;
+            }
+            int window = Math.max(0, Math.floorDiv(bin - binsPerWindow, binsPerOffset) + 1);
+            for (int c = window / chunkSize;
+                 c < numberOfChunks && c * chunkSize * binsPerOffset <= bin;
+                 ++c) {
+                int slot = Math.max(window, c * chunkSize) - c * chunkSize;
+                if (slot < counted[c]) {
+                    chrTags[c][slot] += bins.points[bin];
+                }
+            }
+        }
+
+        for (int c = 0; c < numberOfChunks; ++c) {
+            chunks.add(chrtree.getChunk(first + c));
+            tags.add(chrTags[c]);
+        }
+    }
+
+    /**
+     * Compute prefix sums.
+     *
+     * @param counts counts per bin
+     * @return sum of counts of all bins before each bin, one element more
+     * than counts
+     */
+    private static int[] prefixSum(int[] counts) {
+        int[] sum = new int[counts.length + 1];
+        for (int i = 0; i < counts.length; ++i) {
+            sum[i + 1] = sum[i] + counts[i];
+        }
+        return sum;
+    }
+
+    /**
+     * Check if an entry was built for a key.
+     *
+     * @param entry entry file
+     * @param key key
+     * @return true if the entry belongs to the key
+     */
+    private boolean isValid(File entry, String key) {
+        try {
+            open(entry, key).close();
+            return true;
+        } catch (IOException e) {
+            return false;
+        }
+    }
+
+    /**
+     * Open entry and check its header.
+     *
+     * @param entry entry file
+     * @param key key
+     * @return entry positioned at the first chromosome
+     * @throws IOException if the entry cannot be read or belongs to another key
+     */
+    private DataInputStream open(File entry, String key) throws IOException {
+        DataInputStream in = new DataInputStream(new BufferedInputStream(
+                new GZIPInputStream(new FileInputStream(entry))));
+        try {
+            if (in.readInt() != MAGIC || in.readInt() != VERSION || !key.equals(in.readUTF())) {
+                throw new IOException("Count index entry " + entry + " does not belong to " + key);
+            }
+        } catch (IOException e) {
+            in.close();
+            throw e;
+        }
+        return in;
+    }
+
+    /**
+     * Build index entry by one pass over the data set file.
+     *
+     * @param file data set file
+     * @param key key
+     * @param entry entry file
+     * @throws IOException if the file cannot be read or the entry cannot be
+     * written
+     */
+    private void build(File file, String key, File entry) throws IOException {
+        if (!directory.isDirectory() && !directory.mkdirs() && !directory.isDirectory()) {
+            throw new IOException("Cannot create directory " + directory);
+        }
+        File temporary = File.createTempFile("entry", ".tmp", directory);
+        BamAlignmentReader alignmentReader = new BamAlignmentReader(bamDecoder, inflateThreads);
+        try {
+            try (CloseableIterator<BamAlignment> records = alignmentReader.all(file);
+                 DataOutputStream out = new DataOutputStream(new BufferedOutputStream(
+                         new GZIPOutputStream(new FileOutputStream(temporary))))) {
+                out.writeInt(MAGIC);
+                out.writeInt(VERSION);
+                out.writeUTF(key);
+                write(records, file.getPath(), out);
+            }
+            WindowFactoryCountCache.moveEntry(temporary, entry);
+            temporary = null;
+        } finally {
+            alignmentReader.close();
+            if (temporary != null && !temporary.delete()) {
+                temporary.deleteOnExit();
+            }
+        }
+    }
+
+    /**
+     * Bin the reads of a coordinate sorted data set chromosome by chromosome.
+     *
+     * @param records reads
+     * @param description description of data set
+     * @param out entry
+     * @throws IOException if the data set is not sorted by coordinate
+     */
+    private void write(Iterator<BamAlignment> records, String description, DataOutputStream out)
+            throws IOException {
+        Set<String> finishedChromosomes = new HashSet<>();
+        String currentChr = null;
+        ChromosomeBins current = null;
+        while (records.hasNext()) {
+            BamAlignment record = records.next();
+            if (record.getReferenceIndex() < 0) {
+                // unplaced reads are not part of any window
+                continue;
+            }
+            String chr = record.getReferenceName();
+            if (!chr.equals(currentChr)) {
+                if (current != null) {
+                    out.writeBoolean(true);
+                    current.write(out);
+                }
+                if (!finishedChromosomes.add(chr)) {
+                    throw new IOException("Data set " + description + " is not sorted by coordinate");
+                }
+                currentChr = chr;
+                Integer length = genome.get(chr);
+                current = length == null ? null : new ChromosomeBins(chr, length, resolution);
+            }
+            if (current != null) {
+                current.add(record.getStart(), record.getEnd(),
+                            record.getReadUnmappedFlag() ? null : record.getBaseQualities());
+            }
+        }
+        if (current != null) {
+            out.writeBoolean(true);
+            current.write(out);
+        }
+        out.writeBoolean(false);
+    }
+
+    /**
+     * Bins of one chromosome.
+     */
+    static class ChromosomeBins {
+
+        final String chr;
+        final int length;
+        final int resolution;
+        // reads starting, ending and starting without alignment end in each
+        // bin; the last bin contains all positions beyond the chromosome end
+        final int[] starts;
+        final int[] ends;
+        final int[] points;
+        final QualityCounter quality;
+
+        /**
+         * Constructor for empty bins.
+         *
+         * @param chr chromosome
+         * @param length chromosome length
+         * @param resolution bin size in bases
+         */
+        ChromosomeBins(String chr, int length, int resolution) {
+            this.chr = chr;
+            this.length = length;
+            this.resolution = resolution;
+            int bins = (length + resolution - 1) / resolution + 1;
+            this.starts = new int[bins];
+            this.ends = new int[bins];
+            this.points = new int[bins];
+            this.quality = new QualityCounter();
+        }
+
+        /**
+         * Constructor for stored bins.
+         *
+         * @param chr chromosome
+         * @param length chromosome length
+         * @param resolution bin size in bases
+         * @param starts reads starting in each bin
+         * @param ends reads ending in each bin
+         * @param points reads without alignment end starting in each bin
+         * @param quality quality counts
+         */
+        private ChromosomeBins(
+                String chr,
+                int length,
+                int resolution,
+                int[] starts,
+                int[] ends,
+                int[] points,
+                QualityCounter quality
+        ) {
+            this.chr = chr;
+            this.length = length;
+            this.resolution = resolution;
+            this.starts = starts;
+            this.ends = ends;
+            this.points = points;
+            this.quality = quality;
+        }
+
+        /**
+         * Get bin of position.
+         *
+         * @param position position
+         * @return bin
+         */
+        int getBin(int position) {
+            if (position >= length) {
+                return starts.length - 1;
+            }
+            return position < 0 ? 0 : position / resolution;
+        }
+
+        /**
+         * Add read.
+         *
+         * @param start read start
+         * @param end read end, smaller than start if there is no alignment end
+         * @param baseQualities base qualities, null for unmapped reads
+         */
+        void add(int start, int end, byte[] baseQualities) {
+            if (end < start) {
+                ++points[getBin(start)];
+            } else {
+                ++starts[getBin(start)];
+                ++ends[getBin(end)];
+            }
+            if (baseQualities != null && start < length) {
+                quality.count(baseQualities);
+            }
+        }
+
+        /**
+         * Write bins.
+         *
+         * @param out entry
+         * @throws IOException if the entry cannot be written
+         */
+        void write(DataOutputStream out) throws IOException {
+            out.writeUTF(chr);
+            out.writeInt(length);
+            out.writeInt(resolution);
+            for (int[] bins : new int[][]{starts, ends, points}) {
+                for (int count : bins) {
+                    out.writeInt(count);
+                }
+            }
+            long[] qualitycounts = quality.getQualitycounts();
+            out.writeInt(qualitycounts.length);
+            for (long count : qualitycounts) {
+                out.writeLong(count);
+            }
+            out.writeLong(quality.getTotalcounts());
+            out.writeInt(quality.getTagCount());
+        }
+
+        /**
+         * Read bins.
+         *
+         * @param in entry
+         * @return bins
+         * @throws IOException if the entry cannot be read
+         */
+        static ChromosomeBins read(DataInputStream in) throws IOException {
+            String chr = in.readUTF();
+            int length = in.readInt();
+            int resolution = in.readInt();
+            int[][] counts = new int[3][(length + resolution - 1) / resolution + 1];
+            for (int[] bins : counts) {
+                for (int i = 0; i < bins.length; ++i) {
+                    bins[i] = in.readInt();
+                }
+            }
+            long[] qualitycounts = new long[in.readInt()];
+            for (int i = 0; i < qualitycounts.length; ++i) {
+                qualitycounts[i] = in.readLong();
+            }
+            long totalcounts = in.readLong();
+            int tagCount = in.readInt();
+            return new ChromosomeBins(chr, length, resolution, counts[0], counts[1], counts[2],
+                                      new QualityCounter(qualitycounts, totalcounts, tagCount));
+        }
+    }
+}
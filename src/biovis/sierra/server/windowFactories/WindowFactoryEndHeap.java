@@ -0,0 +1,103 @@
+/**
+ *****************************************************************************
+ * Copyright (c) 2015 Daniel Gerighausen, Lydia Mueller, and Dirk Zeckzer
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ ******************************************************************************
+ */
+package biovis.sierra.server.windowFactories;
+
+import java.util.Arrays;
+
+/**
+ * Binary min heap of read end positions.
+ *
+ * @author Lydia Mueller, Dirk Zeckzer
+ */
+public class WindowFactoryEndHeap {
+
+    private int[] heap;
+    private int size = 0;
+
+    /**
+     * Constructor.
+     *
+     * @param capacity initial capacity
+     */
+    public WindowFactoryEndHeap(int capacity) {
+        heap = new int[Math.max(capacity, 1)];
+    }
+
+    public int size() {
+        return size;
+    }
+
+    public boolean isEmpty() {
+        return size == 0;
+    }
+
+    public void clear() {
+        size = 0;
+    }
+
+    /**
+     * Get smallest end.
+     *
+     * @return smallest end
+     */
+    public int peek() {
+        return heap[0];
+    }
+
+    /**
+     * Add end.
+     *
+     * @param end read end
+     */
+    public void add(int end) {
+        if (size == heap.length) {
+            heap = Arrays.copyOf(heap, 2 * size);
+        }
+        int i = size++;
+        while (i > 0) {
+            int parent = (i - 1) >>> 1;
+            if (heap[parent] <= end) {
+                break;
+            }
+            heap[i] = heap[parent];
+            i = parent;
+        }
+        heap[i] = end;
+    }
+
+    /**
+     * Remove smallest end.
+     */
+    public void poll() {
+        int last = heap[--size];
+        int i = 0;
+        int half = size >>> 1;
+        while (i < half) {
+            int child = 2 * i + 1;
+            if (child + 1 < size && heap[child + 1] < heap[child]) {
+                ++child;
+            }
+            if (last <= heap[child]) {
+                break;
+            }
+            heap[i] = heap[child];
+            i = child;
+        }
+        heap[i] = last;
+    }
+}
@@ -0,0 +1,93 @@
+/**
+ *****************************************************************************
+ * Copyright (c) 2015 Daniel Gerighausen, Lydia Mueller, and Dirk Zeckzer
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ ******************************************************************************
+ */
+package biovis.sierra.server.windowFactories;
+
+import biovis.sierra.server.bam.BamAlignment;
+
+import java.util.Arrays;
+
+/**
+ * Reads of one chunk sorted by start, stored as primitive positions.
+ *
+ * Only start, end, and base qualities of a read are kept. The end is the
+ * alignment end as reported by the record, i.e., 0 for unmapped reads.
+ * Base qualities are kept for mapped reads only.
+ *
+ * @author Lydia Mueller, Dirk Zeckzer
+ */
+public class WindowFactoryReadBatch {
+
+    private static final int INITIAL_CAPACITY = 1024;
+
+    private int[] starts = new int[INITIAL_CAPACITY];
+    private int[] ends = new int[INITIAL_CAPACITY];
+    private byte[][] qualities = new byte[INITIAL_CAPACITY][];
+    private int size = 0;
+
+    /**
+     * Add alignment.
+     *
+     * @param record alignment
+     */
+    public void add(BamAlignment record) {
+        add(record.getStart(), record.getEnd(),
+            record.getReadUnmappedFlag() ? null : record.getBaseQualities());
+    }
+
+    /**
+     * Add read.
+     *
+     * @param start read start
+     * @param end read end
+     * @param baseQualities base qualities, null for unmapped reads
+     */
+    public void add(int start, int end, byte[] baseQualities) {
+        if (size == starts.length) {
+            int capacity = 2 * size;
+            starts = Arrays.copyOf(starts, capacity);
+            ends = Arrays.copyOf(ends, capacity);
+            qualities = Arrays.copyOf(qualities, capacity);
+        }
+        starts[size] = start;
+        ends[size] = end;
+        qualities[size] = baseQualities;
+        ++size;
+    }
+
+    public int size() {
+        return size;
+    }
+
+    public int getStart(int i) {
+        return starts[i];
+    }
+
+    public int getEnd(int i) {
+        return ends[i];
+    }
+
+    /**
+     * Get base qualities of read.
+     *
+     * @param i read index
+     * @return base qualities, null for unmapped reads
+     */
+    public byte[] getBaseQualities(int i) {
+        return qualities[i];
+    }
+}
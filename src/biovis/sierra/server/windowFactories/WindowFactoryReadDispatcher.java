@@ -0,0 +1,208 @@
+/**
+ *****************************************************************************
+ * Copyright (c) 2015 Daniel Gerighausen, Lydia Mueller, and Dirk Zeckzer
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ ******************************************************************************
+ */
+package biovis.sierra.server.windowFactories;
+
+import biovis.sierra.server.bam.BamAlignment;
+
+import java.io.IOException;
+import java.util.ArrayDeque;
+import java.util.Deque;
+import java.util.HashSet;
+import java.util.Set;
+
+/**
+ * Distributes the reads of one coordinate sorted data set to the chunks they
+ * overlap. A chunk is closed as soon as no further read of the data set can
+ * overlap it.
+ *
+ * @author Lydia Mueller, Dirk Zeckzer
+ */
+abstract class WindowFactoryReadDispatcher {
+
+    /**
+     * Chunk under construction together with the reads collected so far.
+     */
+    static class OpenChunk {
+
+        final WindowFactoryChunk chunk;
+        final WindowFactoryReadBatch reads = new WindowFactoryReadBatch();
+
+        OpenChunk(WindowFactoryChunk chunk) {
+            this.chunk = chunk;
+        }
+    }
+
+    private final WindowFactoryChunkMap chrtree;
+    private final String description;
+
+    private final Deque<OpenChunk> openChunks = new ArrayDeque<>();
+    private final Set<String> finishedChromosomes = new HashSet<>();
+
+    private String currentChr = null;
+    private int chrFirstChunk = 0;
+    private int chrChunks = 0;
+    private int nextChunk = 0;
+    private int lastStart = 0;
+
+    /**
+     * Constructor.
+     *
+     * @param chrtree chunk map
+     * @param description description of data set
+     */
+    WindowFactoryReadDispatcher(WindowFactoryChunkMap chrtree, String description) {
+        this.chrtree = chrtree;
+        this.description = description;
+    }
+
+    /**
+     * Chunk is complete for this data set.
+     *
+     * @param openChunk chunk with its reads
+     * @throws IOException if the chunk cannot be processed
+     */
+    protected abstract void chunkClosed(OpenChunk openChunk) throws IOException;
+
+    /**
+     * Chunk is about to be opened. Reads of earlier chunks will not follow.
+     *
+     * @param index chunk index
+     * @throws IOException if the chunk must not be opened
+     */
+    protected void chunkOpening(int index) throws IOException {
+    }
+
+    /**
+     * Get description of data set.
+     *
+     * @return description
+     */
+    protected String getDescription() {
+        return description;
+    }
+
+    /**
+     * Get smallest chunk index that may still receive reads of this data set.
+     *
+     * @return chunk index, -1 if the current chromosome has no chunks
+     */
+    protected int getFrontier() {
+        if (!openChunks.isEmpty()) {
+            return openChunks.peekFirst().chunk.getIndex();
+        }
+        if (chrChunks == 0) {
+            return -1;
+        }
+        return chrFirstChunk + nextChunk;
+    }
+
+    /**
+     * Add next alignment of the data set.
+     *
+     * @param record alignment
+     * @throws IOException if the data set is not sorted by coordinate
+     */
+    void add(BamAlignment record) throws IOException {
+        if (record.getReferenceIndex() < 0) {
+            // unplaced reads are not part of any chunk
+            return;
+        }
+
+        String chr = record.getReferenceName();
+        if (!chr.equals(currentChr)) {
+            startChromosome(chr);
+        }
+        if (chrChunks == 0) {
+            return;
+        }
+
+        int start = record.getStart();
+        if (start < lastStart) {
+            throw new IOException("Data set " + description + " is not sorted by coordinate");
+        }
+        lastStart = start;
+        // reads without alignment end overlap their start position only
+        int end = record.getReadUnmappedFlag() ? start : record.getEnd();
+        byte[] baseQualities = record.getReadUnmappedFlag() ? null : record.getBaseQualities();
+
+        // no further read can overlap chunks ending before this read
+        while (!openChunks.isEmpty()
+               && openChunks.peekFirst().chunk.getIntervalEnd() < start) {
+            chunkClosed(openChunks.pollFirst());
+        }
+
+        // open chunks reached by this read
+        while (nextChunk < chrChunks) {
+            WindowFactoryChunk chunk = chrtree.getChunk(chrFirstChunk + nextChunk);
+            if (chunk.getIntervalStart() > end) {
+                break;
+            }
+            if (chunk.getIntervalEnd() >= start) {
+                chunkOpening(chunk.getIndex());
+                openChunks.addLast(new OpenChunk(chunk));
+            }
+            ++nextChunk;
+        }
+
+        for (OpenChunk openChunk : openChunks) {
+            if (openChunk.chunk.getIntervalStart() > end) {
+                break;
+            }
+            openChunk.reads.add(start, record.getEnd(), baseQualities);
+        }
+    }
+
+    /**
+     * Close all remaining chunks after the last record.
+     *
+     * @throws IOException if a chunk cannot be processed
+     */
+    void finishReading() throws IOException {
+        finishChromosome();
+    }
+
+    /**
+     * Start new chromosome.
+     *
+     * @param chr chromosome
+     * @throws IOException if the chromosome was already seen before
+     */
+    private void startChromosome(String chr) throws IOException {
+        finishChromosome();
+        if (!finishedChromosomes.add(chr)) {
+            throw new IOException("Data set " + description + " is not sorted by coordinate");
+        }
+        currentChr = chr;
+        Integer first = chrtree.getFirstChunk(chr);
+        chrFirstChunk = first == null ? 0 : first;
+        chrChunks = chrtree.getNumberOfChunks(chr);
+        nextChunk = 0;
+        lastStart = 0;
+    }
+
+    /**
+     * Close all open chunks of the current chromosome.
+     *
+     * @throws IOException if a chunk cannot be processed
+     */
+    private void finishChromosome() throws IOException {
+        while (!openChunks.isEmpty()) {
+            chunkClosed(openChunks.pollFirst());
+        }
+    }
+}
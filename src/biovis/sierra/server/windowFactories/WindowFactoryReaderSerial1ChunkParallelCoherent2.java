@@ -19,28 +19,25 @@ package biovis.sierra.server.windowFactories;
 
 import biovis.sierra.data.DataMapper;
 import biovis.sierra.data.QualityCounter;
-import biovis.sierra.data.Read;
-import biovis.sierra.data.windows.Window;
+import biovis.sierra.data.windows.WindowColumnStorage;
 import biovis.sierra.data.windows.WindowList;
 import biovis.sierra.server.Commander.PeakCommander;
+import biovis.sierra.server.bam.BamAlignment;
+import biovis.sierra.server.bam.BamAlignmentReader;
+import biovis.sierra.server.bam.SamReaderPool;
 import biovislib.parallel4.IterationInt;
 import biovislib.parallel4.Parallel2;
 import biovislib.parallel4.ParallelForInt2;
 import biovislib.parallel4.ParallelizationFactory;
-import htsjdk.samtools.SAMRecord;
-import htsjdk.samtools.SamReader;
-import htsjdk.samtools.SamReaderFactory;
 import htsjdk.samtools.util.CloseableIterator;
 import htsjdk.samtools.util.Interval;
-import htsjdk.samtools.util.SamRecordIntervalIteratorFactory;
 
+import java.io.File;
 import java.io.IOException;
 import java.util.ArrayList;
-import java.util.Comparator;
 import java.util.List;
 import java.util.Map;
-import java.util.PriorityQueue;
-import java.util.Queue;
+import java.util.concurrent.atomic.AtomicReference;
 import java.util.logging.Level;
 import java.util.logging.Logger;
 
@@ -51,17 +48,11 @@ import java.util.logging.Logger;
 public class WindowFactoryReaderSerial1ChunkParallelCoherent2
         extends WindowFactory {
 
-    private static int QUEUE_END = 10000;
-
-    private static SamRecordIntervalIteratorFactory samRecordIntervalIteratorFactory = new SamRecordIntervalIteratorFactory();
-
-    // Comparator for start and end queue
-    private static Comparator<Read> compareReadByEnd = (s1, s2) -> Integer.compare(s1.getEnd(), s2.getEnd());
-
     /**
      * Approach E:
      * - for each data set:
      * - create and count in chunks
+     * - group chunks to tasks of similar read volume, skip empty chunks
      * - get one chunk from bam File
      * - store all reads in queue sorted by start
      * - store reads of window in queue sorted by end
@@ -106,163 +97,123 @@ public class WindowFactoryReaderSerial1ChunkParallelCoherent2
         //number of data sets
         final int numberOfDataSets = mapper.getNumberOfDataSets();
         // window list
-        final WindowListReaderSerial1ChunkParallelCoherent2 list = new WindowListReaderSerial1ChunkParallelCoherent2(mapper);
-        //Sam reader array for the all data sets
-        final SamReaderFactory samReaderDefaultFactory = SamReaderFactory.makeDefault();
-
-        for (int currentDataSetLoop = 0; currentDataSetLoop < numberOfDataSets; currentDataSetLoop++) {
-            log.log(Level.INFO, "Processing data set {0}: {1} start", new Object[]{currentDataSetLoop, mapper.getDataSetByTag(currentDataSetLoop).getDescription()});
-
-            final QualityCounter qualityCounter = new QualityCounter();
-
-            final int currentDataSet = currentDataSetLoop;
-
-            final int[] max = {0, 0};
-
-            //make windows in parallel
-            Parallel2 p2 = ParallelizationFactory.getInstance(mapper.getNumCoresWindowFactory());
-            new ParallelForInt2(p2, 0, chunks).loop(new IterationInt() {
-                @Override
-                public void iteration(int index) {
-
-                    // open sam reader
-                    try (final SamReader samReader = samReaderDefaultFactory.open(mapper.getDataSetByTag(currentDataSet).getFile());) {
-                        //start chunk for corresponding index --> first chunk on chromosome
-                        int chrStartChunk = chrtree.floorKey(index);
-
-                        //chromosome for current chunk
-                        String chr = chrtree.get(chrStartChunk);
-
-                        //relativ (to chromosome based) chunk number for index
-                        int numChunk = index - chrStartChunk;
-
-                        int startChunk = numChunk * chunkSize * windowOffset;
-                        int startNextChunk = startChunk + chunkSize * windowOffset;
-                        if (startNextChunk > genome.get(chr)) {
-                            startNextChunk = genome.get(chr);
-                        }
-                        int windowStart = startChunk;
-                        int windowEnd = windowStart + windowSize - 1;
-
-                        // retrieve chunk elements from sam reader
-                        List<Interval> intervalList = new ArrayList<>();
-                        intervalList.add(new Interval(chr, windowStart, startNextChunk - windowOffset + windowSize - 1));
-                        //Queue<SAMRecord> recordsStart;
-                        Queue<Read> recordsEnd;
-                        // prepare priority queues for counting
-                        try (CloseableIterator<SAMRecord> overlapping = samRecordIntervalIteratorFactory.makeSamRecordIntervalIterator(samReader, intervalList, true)) {
-                            // prepare priority queues for counting
-                            recordsEnd = new PriorityQueue<>(QUEUE_END, compareReadByEnd);
-
-                            // last unused SAM record from iterator
-                            Read lastUnused = null;
-                            SAMRecord record;
-
-                            while (windowStart < startNextChunk) {
-                                if (windowEnd >= genome.get(chr)) {
-                                    // trim windows at the end of the genome
-                                    windowEnd = genome.get(chr) - 1;
-                                }
-
-                                if (windowEnd - windowStart < windowSize - windowOffset) {
-                                    // do not consider too small windows at the end
-                                    break;
-                                }
-
-                                // remove records ending before start of window
-                                while (!recordsEnd.isEmpty() && recordsEnd.peek().getEnd() < windowStart) {
-                                    recordsEnd.poll();
-                                }
-
-                                if (lastUnused != null
-                                    && lastUnused.getStart() <= windowEnd) {
-                                    // outside previous window
-                                    recordsEnd.add(lastUnused);
-                                    lastUnused = null;
-                                }
-
-                                while (lastUnused == null && overlapping.hasNext()) {
-                                    record = overlapping.next();
-                                    lastUnused = new Read(record);
-                                    if (startChunk <= lastUnused.getStart()
-                                        && lastUnused.getStart() < startNextChunk) {
-                                        qualityCounter.count(lastUnused);
-                                    }
-
-                                    if (lastUnused.getStart() <= windowEnd) {
-                                        recordsEnd.add(lastUnused);
-                                        lastUnused = null;
-                                    } else {
-                                        break;
-                                    }
-                                }
+        final WindowListChunkSlots list = new WindowListChunkSlots(chrtree, numberOfDataSets, mapper.getReplicates().size(),
+                                                                   WindowColumnStorage.create(mapper));
+        // base quality histograms for peak qualities
+        list.setQualityBins(WindowQualityBins.create(mapper, chrtree, windowOffset));
+        // tag counts of earlier calculations
+        final WindowFactoryCountIndex index = WindowFactoryCountIndex.create(mapper, genome, chrtree, windowSize, windowOffset);
+        final WindowFactoryCountCache cache = WindowFactoryCountCache.create(mapper, genome, chrtree, windowSize, windowOffset);
+        final BamAlignmentReader alignmentReader = BamAlignmentReader.createForWindows(mapper);
+
+        try {
+            for (int currentDataSetLoop = 0; currentDataSetLoop < numberOfDataSets; currentDataSetLoop++) {
+                log.log(Level.INFO, "Processing data set {0}: {1} start", new Object[]{currentDataSetLoop, mapper.getDataSetByTag(currentDataSetLoop).getDescription()});
+
+                final int currentDataSet = currentDataSetLoop;
+
+                final int[] max = {0, 0};
+
+                QualityCounter cached = loadCounts(index, cache, mapper.getDataSetByTag(currentDataSet).getFile(), currentDataSet, list);
+                final QualityCounter qualityCounter = cached == null ? newQualityCounter(mapper) : cached;
+                // first failure of a task, the remaining tasks are skipped
+                final AtomicReference<Exception> failure = new AtomicReference<>();
+
+                //make windows in parallel
+                if (cached == null) {
+                    // group chunks to tasks of similar read volume, skip empty chunks
+                    final WindowFactoryChunkPlan plan;
+                    try (SamReaderPool.Lease lease = alignmentReader.getReaders().acquire(mapper.getDataSetByTag(currentDataSet).getFile())) {
+                        plan = WindowFactoryChunkPlan.create(chrtree, lease.getReader(), mapper.getNumCoresWindowFactory());
+                    }
+                    log.log(Level.INFO, "{0} tasks, {1} of {2} chunks empty",
+                            new Object[]{plan.getTasks(), plan.getEmptyChunks(), chunks});
+
+                    Parallel2 p2 = ParallelizationFactory.getInstance(mapper.getNumCoresWindowFactory());
+                    new ParallelForInt2(p2, 0, plan.getTasks()).loop(new IterationInt() {
+                        @Override
+                        public void iteration(int task) {
+                            if (failure.get() != null) {
+                                return;
+                            }
 
-                                synchronized (max) {
-                                    if (max[1] < recordsEnd.size()) {
-                                        max[1] = recordsEnd.size();
+                            File file = mapper.getDataSetByTag(currentDataSet).getFile();
+                            try {
+                                for (int index = plan.getFirstChunk(task); index < plan.getEndChunk(task); ++index) {
+                                    if (plan.isEmpty(index)) {
+                                        // no read overlaps the chunk
+                                        continue;
                                     }
-                                }
-
-                                // count elements
-                                double tags = (double) recordsEnd.size();
-                                if (tags > 0) {
-                                    // if window countains reads -> create Window
-                                    Window w = list.getWindow(chr, windowStart);
-                                    if (w == null) {
-                                        w = new Window(chr, windowStart, windowEnd,
-                                                       mapper.getNumberOfDataSets(),
-                                                       mapper.getReplicates().size());
-                                        list.addWindow(chr, windowStart, w);
+                                    WindowFactoryChunk chunk = chrtree.getChunk(index);
+
+                                    // retrieve chunk elements from pooled sam reader
+                                    List<Interval> intervalList = new ArrayList<>();
+                                    intervalList.add(new Interval(chunk.getChr(), chunk.getIntervalStart(), chunk.getIntervalEnd()));
+                                    WindowFactoryReadBatch reads = new WindowFactoryReadBatch();
+                                    try (CloseableIterator<BamAlignment> overlapping = alignmentReader.query(file, intervalList)) {
+                                        while (overlapping.hasNext()) {
+                                            reads.add(overlapping.next());
+                                        }
                                     }
-                                    w.setTagCount(currentDataSet, tags);
+                                    chunk.countWindows(
+                                            reads,
+                                            currentDataSet, list, mapper, qualityCounter, max);
                                 }
+                            } catch (IOException | RuntimeException e) {
+                                failure.compareAndSet(null, e);
+                                return;
+                            }
 
-                                // move window
-                                windowStart += windowOffset;
-                                windowEnd += windowOffset;
+                            //Chunks of task are done
+                            /**/
+                            if (pc != null) {
+                                double quotient = (double) chunks * (double) numberOfDataSets;
+                                addProgress(0.25 * (plan.getEndChunk(task) - plan.getFirstChunk(task)) / (quotient));
+                                Object[] command = new Object[2];
+                                command[0] = "setProgress";
+                                command[1] = getProgress();
+                                pc.sendCommand(command);
                             }
+                            /**/
                         }
-                    } catch (IOException e) {
-                        // TODO Auto-generated catch block
-                        e.printStackTrace();
-                    }
+                    });
+                    rethrow(failure.get());
 
-                    //One chunk is done
-                    /**/
-                    if (pc != null) {
-                        double quotient = (double) chunks * (double) numberOfDataSets;
-                        addProgress(0.25 * (1) / (quotient));
-                        Object[] command = new Object[2];
-                        command[0] = "setProgress";
-                        command[1] = getProgress();
-                        pc.sendCommand(command);
+                    if (cache != null) {
+                        cache.store(mapper.getDataSetByTag(currentDataSet).getFile(), currentDataSet, list, qualityCounter);
+                    }
+                    if (list.getQualityBins() != null) {
+                        list.getQualityBins().setComplete(currentDataSet);
                     }
-                    /**/
+                } else if (pc != null) {
+                    // all chunks of the data set are done
+                    addProgress(0.25 / (double) numberOfDataSets);
+                    Object[] command = new Object[2];
+                    command[0] = "setProgress";
+                    command[1] = getProgress();
+                    pc.sendCommand(command);
                 }
-            });
-
-            qualityCounter.adjust();
-            mapper.getDataSetByTag(currentDataSetLoop).computeQuality(
-                    qualityCounter.getTotalcounts(),
-                    qualityCounter.getQualitycounts(),
-                    qualityCounter.getTagCount());
-            log.log(Level.INFO, "max queues for {0}: {1} -- {2}",
-                    new Object[]{mapper.getDataSetByTag(currentDataSetLoop).getDescription(), max[0], max[1]});
 
-            /*
-             if (pc != null) {
-             double quotient = (double) numberOfDataSets;
-             addProgress(0.25 * (1) / (quotient));
-             Object[] command = new Object[2];
-             command[0] = "setProgress";
-             command[1] = getProgress();
-             pc.sendCommand(command);
-             }
-             */
-//            System.gc();
-            log.log(Level.INFO, "Processing data set {0} end", mapper.getDataSetByTag(currentDataSetLoop).getDescription());
+                mapper.getDataSetByTag(currentDataSetLoop).computeQuality(qualityCounter);
+                log.log(Level.INFO, "max queues for {0}: {1} -- {2}",
+                        new Object[]{mapper.getDataSetByTag(currentDataSetLoop).getDescription(), max[0], max[1]});
+
+                /*
+                 if (pc != null) {
+                 double quotient = (double) numberOfDataSets;
+                 addProgress(0.25 * (1) / (quotient));
+                 Object[] command = new Object[2];
+                 command[0] = "setProgress";
+                 command[1] = getProgress();
+                 pc.sendCommand(command);
+                 }
+                 */
+//                System.gc();
+                log.log(Level.INFO, "Processing data set {0} end", mapper.getDataSetByTag(currentDataSetLoop).getDescription());
+            }
+        } finally {
+            alignmentReader.close();
         }
-
         log.info("windows constructed");
 
         log.info("flatten window list");
@@ -273,4 +224,19 @@ public class WindowFactoryReaderSerial1ChunkParallelCoherent2
 
         return list;
     }
+
+    /**
+     * Rethrow failure of a counting task.
+     *
+     * @param failure failure, null if all tasks succeeded
+     * @throws IOException if a task failed
+     */
+    private static void rethrow(Exception failure) throws IOException {
+        if (failure instanceof IOException) {
+            throw (IOException) failure;
+        }
+        if (failure != null) {
+            throw new IOException("Counting chunk failed", failure);
+        }
+    }
 }
@@ -0,0 +1,288 @@
+/**
+ *****************************************************************************
+ * Copyright (c) 2015 Daniel Gerighausen, Lydia Mueller, and Dirk Zeckzer
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ ******************************************************************************
+ */
+package biovis.sierra.server.windowFactories;
+
+import biovis.sierra.data.DataMapper;
+import biovis.sierra.data.QualityCounter;
+import biovis.sierra.data.windows.WindowColumnStorage;
+import biovis.sierra.data.windows.WindowList;
+import biovis.sierra.server.Commander.PeakCommander;
+import biovis.sierra.server.bam.BamAlignment;
+import biovis.sierra.server.bam.BamAlignmentReader;
+import htsjdk.samtools.util.CloseableIterator;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.Semaphore;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ *
+ * @author Lydia Mueller, Dirk Zeckzer
+ */
+public class WindowFactoryStreamingCoherent
+        extends WindowFactory {
+
+    // chunks waiting for or being counted per counting thread
+    private final static int CHUNKS_IN_FLIGHT_PER_THREAD = 4;
+
+    /**
+     * Approach S:
+     * - for each data set:
+     * - read the coordinate sorted bam file front to back exactly once
+     * - distribute the reads to the chunks they overlap
+     * - as soon as no further read can overlap a chunk, count the chunk in
+     * parallel using the same counting as approach E
+     *
+     * The resulting window list is the same as the one of approach E, but no
+     * index lookups and no repeated decoding of reads in chunk overlaps are
+     * necessary.
+     */
+    /**
+     * construct list of windows, only windows with at least one tag in at least
+     * one experiment or background are kept
+     *
+     * @param mapper data mapper with mapping of experiments to controls and data set to data file
+     * @param windowSize length of windows
+     * @param windowOffset offset by which window start is moved to the next window
+     * @param pc peak commander
+     * @param chunkSize chunk size
+     * @return WindowList with list of windows ready for calculations
+     * @throws IOException Throws IOException if a data set file cannot be read
+     */
+    public static WindowList constructWindows(
+            DataMapper mapper,
+            int windowSize,
+            int windowOffset,
+            PeakCommander pc,
+            int chunkSize
+    ) throws IOException {
+
+        Logger log = Logger.getLogger("Constructing windows and state");
+        log.info("Constructing windows and state; S-1");
+
+        // reset progress
+        resetProgress();
+
+        log.log(Level.INFO, "Chunk size: {0}", chunkSize);
+
+        // construct TreeMap to find corresponding chromosome
+        Map<String, Integer> genome = WindowFactory.generateGenome(mapper);
+        final WindowFactoryChunkMap chrtree = new WindowFactoryChunkMap(genome, windowSize, windowOffset, chunkSize);
+        final int chunks = chrtree.getChunks();
+        log.info("genome chunks prepared for calculation");
+
+        //number of data sets
+        final int numberOfDataSets = mapper.getNumberOfDataSets();
+        // window list
+        final WindowListChunkSlots list = new WindowListChunkSlots(chrtree, numberOfDataSets, mapper.getReplicates().size(),
+                                                                   WindowColumnStorage.create(mapper));
+        // base quality histograms for peak qualities
+        list.setQualityBins(WindowQualityBins.create(mapper, chrtree, windowOffset));
+        // tag counts of earlier calculations
+        final WindowFactoryCountIndex index = WindowFactoryCountIndex.create(mapper, genome, chrtree, windowSize, windowOffset);
+        final WindowFactoryCountCache cache = WindowFactoryCountCache.create(mapper, genome, chrtree, windowSize, windowOffset);
+
+        final int threads = mapper.getNumCoresWindowFactory();
+        ExecutorService executor = Executors.newFixedThreadPool(threads);
+        final BamAlignmentReader alignmentReader = BamAlignmentReader.createForWindows(mapper);
+        try {
+            for (int currentDataSet = 0; currentDataSet < numberOfDataSets; currentDataSet++) {
+                log.log(Level.INFO, "Processing data set {0}: {1} start", new Object[]{currentDataSet, mapper.getDataSetByTag(currentDataSet).getDescription()});
+
+                final int[] max = {0, 0};
+
+                QualityCounter qualityCounter = loadCounts(index, cache, mapper.getDataSetByTag(currentDataSet).getFile(), currentDataSet, list);
+                if (qualityCounter == null) {
+                    qualityCounter = newQualityCounter(mapper);
+                    ChunkDispatcher dispatcher = new ChunkDispatcher(
+                            chrtree, executor, threads * CHUNKS_IN_FLIGHT_PER_THREAD,
+                            currentDataSet, list, mapper, qualityCounter, max,
+                            pc, chunks, numberOfDataSets);
+                    File file = mapper.getDataSetByTag(currentDataSet).getFile();
+                    try (CloseableIterator<BamAlignment> records = alignmentReader.all(file)) {
+                        while (records.hasNext()) {
+                            dispatcher.add(records.next());
+                        }
+                    }
+                    dispatcher.finish();
+                    if (list.getQualityBins() != null) {
+                        list.getQualityBins().setComplete(currentDataSet);
+                    }
+                    if (cache != null) {
+                        cache.store(mapper.getDataSetByTag(currentDataSet).getFile(), currentDataSet, list, qualityCounter);
+                    }
+                } else {
+                    // all chunks of the data set are done
+                    sendProgress(pc, 0.25 / (double) numberOfDataSets);
+                }
+
+                mapper.getDataSetByTag(currentDataSet).computeQuality(qualityCounter);
+                log.log(Level.INFO, "max queues for {0}: {1} -- {2}",
+                        new Object[]{mapper.getDataSetByTag(currentDataSet).getDescription(), max[0], max[1]});
+                log.log(Level.INFO, "Processing data set {0} end", mapper.getDataSetByTag(currentDataSet).getDescription());
+            }
+        } finally {
+            executor.shutdownNow();
+            alignmentReader.close();
+        }
+
+        log.info("windows constructed");
+
+        log.info("flatten window list");
+        list.flattenList();
+        log.info("window list flattened");
+
+        log.info("window list generated");
+
+        return list;
+    }
+
+    /**
+     * Send progress.
+     *
+     * @param pc peak commander
+     * @param part part being added
+     */
+    private static void sendProgress(PeakCommander pc, double part) {
+        if (pc != null) {
+            addProgress(part);
+            Object[] command = new Object[2];
+            command[0] = "setProgress";
+            command[1] = getProgress();
+            pc.sendCommand(command);
+        }
+    }
+
+    /**
+     * Distributes the reads of one coordinate sorted data set to the chunks
+     * and counts each chunk once it is complete.
+     */
+    private static class ChunkDispatcher
+            extends WindowFactoryReadDispatcher {
+
+        private final ExecutorService executor;
+        private final Semaphore inFlight;
+        private final int currentDataSet;
+        private final WindowListChunkSlots list;
+        private final DataMapper mapper;
+        private final QualityCounter qualityCounter;
+        private final int[] max;
+        private final PeakCommander pc;
+        private final double progressPart;
+        private final int chunks;
+
+        private final List<Future<?>> counting = new ArrayList<>();
+
+        private int submitted = 0;
+
+        /**
+         * Constructor.
+         *
+         * @param chrtree chunk map
+         * @param executor executor counting the chunks
+         * @param maxInFlight maximum number of chunks waiting for or being counted
+         * @param currentDataSet data set
+         * @param list window list
+         * @param mapper data mapper
+         * @param qualityCounter quality counter of data set
+         * @param max maximum queue sizes
+         * @param pc peak commander
+         * @param chunks number of chunks
+         * @param numberOfDataSets number of data sets
+         */
+        ChunkDispatcher(
+                WindowFactoryChunkMap chrtree,
+                ExecutorService executor,
+                int maxInFlight,
+                int currentDataSet,
+                WindowListChunkSlots list,
+                DataMapper mapper,
+                QualityCounter qualityCounter,
+                int[] max,
+                PeakCommander pc,
+                int chunks,
+                int numberOfDataSets
+        ) {
+            super(chrtree, mapper.getDataSetByTag(currentDataSet).getDescription());
+            this.executor = executor;
+            this.inFlight = new Semaphore(maxInFlight);
+            this.currentDataSet = currentDataSet;
+            this.list = list;
+            this.mapper = mapper;
+            this.qualityCounter = qualityCounter;
+            this.max = max;
+            this.pc = pc;
+            this.chunks = chunks;
+            this.progressPart = 0.25 / ((double) chunks * (double) numberOfDataSets);
+        }
+
+        /**
+         * Count remaining chunks and wait for all chunks of the data set.
+         *
+         * @throws IOException if counting a chunk failed
+         */
+        void finish() throws IOException {
+            finishReading();
+            for (Future<?> future : counting) {
+                try {
+                    future.get();
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    throw new IOException("Window construction interrupted", e);
+                } catch (ExecutionException e) {
+                    throw new IOException("Counting chunk failed", e.getCause());
+                }
+            }
+            // chunks without any read
+            sendProgress(pc, (chunks - submitted) * progressPart);
+        }
+
+        /**
+         * Count chunk in parallel.
+         *
+         * @param openChunk chunk with its reads
+         */
+        @Override
+        protected void chunkClosed(final OpenChunk openChunk) {
+            inFlight.acquireUninterruptibly();
+            ++submitted;
+            counting.add(executor.submit(new Runnable() {
+                @Override
+                public void run() {
+                    try {
+                        openChunk.chunk.countWindows(
+                                openChunk.reads,
+                                currentDataSet, list, mapper, qualityCounter, max);
+                        sendProgress(pc, progressPart);
+                    } finally {
+                        inFlight.release();
+                    }
+                }
+            }));
+        }
+    }
+}
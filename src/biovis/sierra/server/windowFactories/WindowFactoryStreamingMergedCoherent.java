@@ -0,0 +1,499 @@
+/**
+ *****************************************************************************
+ * Copyright (c) 2015 Daniel Gerighausen, Lydia Mueller, and Dirk Zeckzer
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ ******************************************************************************
+ */
+package biovis.sierra.server.windowFactories;
+
+import biovis.sierra.data.DataMapper;
+import biovis.sierra.data.QualityCounter;
+import biovis.sierra.data.windows.WindowColumnStorage;
+import biovis.sierra.data.windows.WindowList;
+import biovis.sierra.server.Commander.PeakCommander;
+import biovis.sierra.server.bam.BamAlignment;
+import biovis.sierra.server.bam.BamAlignmentReader;
+import htsjdk.samtools.util.CloseableIterator;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ *
+ * @author Lydia Mueller, Dirk Zeckzer
+ */
+public class WindowFactoryStreamingMergedCoherent
+        extends WindowFactory {
+
+    // chunks waiting for or being counted per counting thread
+    private final static int CHUNKS_IN_FLIGHT_PER_THREAD = 4;
+
+    /**
+     * Approach S-2:
+     * - read all coordinate sorted bam files concurrently, one reader per file
+     * - each reader distributes its reads to the chunks they overlap
+     * - as soon as all readers have passed a chunk, count the chunk for all
+     * data sets at once and create each window with its complete tag vector
+     *
+     * Readers running ahead of the slowest reader are held back such that only
+     * a bounded number of chunks is buffered. All files have to list the
+     * chromosomes in the same order.
+     */
+    /**
+     * construct list of windows, only windows with at least one tag in at least
+     * one experiment or background are kept
+     *
+     * @param mapper data mapper with mapping of experiments to controls and data set to data file
+     * @param windowSize length of windows
+     * @param windowOffset offset by which window start is moved to the next window
+     * @param pc peak commander
+     * @param chunkSize chunk size
+     * @return WindowList with list of windows ready for calculations
+     * @throws IOException Throws IOException if a data set file cannot be read
+     */
+    public static WindowList constructWindows(
+            DataMapper mapper,
+            int windowSize,
+            int windowOffset,
+            PeakCommander pc,
+            int chunkSize
+    ) throws IOException {
+
+        Logger log = Logger.getLogger("Constructing windows and state");
+        log.info("Constructing windows and state; S-2");
+
+        // reset progress
+        resetProgress();
+
+        log.log(Level.INFO, "Chunk size: {0}", chunkSize);
+
+        // construct TreeMap to find corresponding chromosome
+        Map<String, Integer> genome = WindowFactory.generateGenome(mapper);
+        final WindowFactoryChunkMap chrtree = new WindowFactoryChunkMap(genome, windowSize, windowOffset, chunkSize);
+        final int chunks = chrtree.getChunks();
+        log.info("genome chunks prepared for calculation");
+
+        //number of data sets
+        final int numberOfDataSets = mapper.getNumberOfDataSets();
+        // window list
+        final WindowListChunkSlots list = new WindowListChunkSlots(chrtree, numberOfDataSets, mapper.getReplicates().size(),
+                                                                   WindowColumnStorage.create(mapper));
+        // base quality histograms for peak qualities
+        list.setQualityBins(WindowQualityBins.create(mapper, chrtree, windowOffset));
+        // tag counts of earlier calculations
+        final WindowFactoryCountIndex index = WindowFactoryCountIndex.create(mapper, genome, chrtree, windowSize, windowOffset);
+        final WindowFactoryCountCache cache = WindowFactoryCountCache.create(mapper, genome, chrtree, windowSize, windowOffset);
+
+        final QualityCounter[] qualityCounters = new QualityCounter[numberOfDataSets];
+        // data sets loaded from the index or the cache are not read
+        final boolean[] cached = new boolean[numberOfDataSets];
+        for (int currentDataSet = 0; currentDataSet < numberOfDataSets; currentDataSet++) {
+            qualityCounters[currentDataSet] = loadCounts(index, cache, mapper.getDataSetByTag(currentDataSet).getFile(), currentDataSet, list);
+            cached[currentDataSet] = qualityCounters[currentDataSet] != null;
+            if (!cached[currentDataSet]) {
+                qualityCounters[currentDataSet] = newQualityCounter(mapper);
+            }
+        }
+        final int[] max = {0, 0};
+
+        final int threads = mapper.getNumCoresWindowFactory();
+        ExecutorService executor = Executors.newFixedThreadPool(threads);
+        ExecutorService readers = Executors.newFixedThreadPool(numberOfDataSets);
+        final BamAlignmentReader alignmentReader = BamAlignmentReader.createForWindows(mapper);
+        try {
+            final MergedChunkTable table = new MergedChunkTable(
+                    chrtree, executor, threads * CHUNKS_IN_FLIGHT_PER_THREAD,
+                    list, mapper, qualityCounters, max,
+                    pc, chunks, numberOfDataSets);
+
+            List<Future<Void>> reading = new ArrayList<>();
+            for (int currentDataSet = 0; currentDataSet < numberOfDataSets; currentDataSet++) {
+                if (cached[currentDataSet]) {
+                    // no read of this data set will follow
+                    table.advance(currentDataSet, Integer.MAX_VALUE);
+                    continue;
+                }
+                final int dataSet = currentDataSet;
+                reading.add(readers.submit(new Callable<Void>() {
+                    @Override
+                    public Void call() throws IOException {
+                        log.log(Level.INFO, "Processing data set {0}: {1} start", new Object[]{dataSet, mapper.getDataSetByTag(dataSet).getDescription()});
+                        ChunkDispatcher dispatcher = new ChunkDispatcher(chrtree, table, dataSet,
+                                                                         mapper.getDataSetByTag(dataSet).getDescription());
+                        File file = mapper.getDataSetByTag(dataSet).getFile();
+                        try (CloseableIterator<BamAlignment> records = alignmentReader.all(file)) {
+                            while (records.hasNext()) {
+                                dispatcher.add(records.next());
+                            }
+                            dispatcher.finish();
+                        } catch (IOException | RuntimeException e) {
+                            table.fail();
+                            throw e;
+                        }
+                        log.log(Level.INFO, "Processing data set {0} end", mapper.getDataSetByTag(dataSet).getDescription());
+                        return null;
+                    }
+                }));
+            }
+
+            for (Future<Void> future : reading) {
+                waitFor(future, "Reading data set failed");
+            }
+            table.finish();
+        } finally {
+            readers.shutdownNow();
+            executor.shutdownNow();
+            alignmentReader.close();
+        }
+
+        for (int currentDataSet = 0; currentDataSet < numberOfDataSets; currentDataSet++) {
+            QualityCounter qualityCounter = qualityCounters[currentDataSet];
+            if (cache != null && !cached[currentDataSet]) {
+                cache.store(mapper.getDataSetByTag(currentDataSet).getFile(), currentDataSet, list, qualityCounter);
+            }
+            if (list.getQualityBins() != null && !cached[currentDataSet]) {
+                list.getQualityBins().setComplete(currentDataSet);
+            }
+            mapper.getDataSetByTag(currentDataSet).computeQuality(qualityCounter);
+        }
+        log.log(Level.INFO, "max queues: {0} -- {1}", new Object[]{max[0], max[1]});
+
+        log.info("windows constructed");
+
+        log.info("flatten window list");
+        list.flattenList();
+        log.info("window list flattened");
+
+        log.info("window list generated");
+
+        return list;
+    }
+
+    /**
+     * Send progress.
+     *
+     * @param pc peak commander
+     * @param part part being added
+     */
+    private static void sendProgress(PeakCommander pc, double part) {
+        if (pc != null) {
+            addProgress(part);
+            Object[] command = new Object[2];
+            command[0] = "setProgress";
+            command[1] = getProgress();
+            pc.sendCommand(command);
+        }
+    }
+
+    /**
+     * Wait for task.
+     *
+     * @param future task
+     * @param message message if task failed
+     * @throws IOException if task failed
+     */
+    private static void waitFor(Future<?> future, String message) throws IOException {
+        try {
+            future.get();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IOException("Window construction interrupted", e);
+        } catch (ExecutionException e) {
+            if (e.getCause() instanceof IOException) {
+                throw (IOException) e.getCause();
+            }
+            throw new IOException(message, e.getCause());
+        }
+    }
+
+    /**
+     * Collects the reads of all data sets for each chunk and counts a chunk as
+     * soon as all readers have passed it.
+     */
+    private static class MergedChunkTable {
+
+        private final WindowFactoryChunkMap chrtree;
+        private final ExecutorService executor;
+        private final int maxInFlight;
+        private final WindowListChunkSlots list;
+        private final DataMapper mapper;
+        private final QualityCounter[] qualityCounters;
+        private final int[] max;
+        private final PeakCommander pc;
+        private final double progressPart;
+        private final int chunks;
+        private final int numberOfDataSets;
+
+        // smallest chunk each reader may still add reads to
+        private final int[] frontier;
+        // chunk index -> reads for each data set
+        private final TreeMap<Integer, List<WindowFactoryReadBatch>> pending = new TreeMap<>();
+        private final List<Future<?>> counting = new ArrayList<>();
+
+        private int inFlight = 0;
+        private int submitted = 0;
+        private boolean failed = false;
+
+        /**
+         * Constructor.
+         *
+         * @param chrtree chunk map
+         * @param executor executor counting the chunks
+         * @param maxInFlight maximum number of chunks buffered or being counted
+         * @param list window list
+         * @param mapper data mapper
+         * @param qualityCounters quality counter for each data set
+         * @param max maximum queue sizes
+         * @param pc peak commander
+         * @param chunks number of chunks
+         * @param numberOfDataSets number of data sets
+         */
+        MergedChunkTable(
+                WindowFactoryChunkMap chrtree,
+                ExecutorService executor,
+                int maxInFlight,
+                WindowListChunkSlots list,
+                DataMapper mapper,
+                QualityCounter[] qualityCounters,
+                int[] max,
+                PeakCommander pc,
+                int chunks,
+                int numberOfDataSets
+        ) {
+            this.chrtree = chrtree;
+            this.executor = executor;
+            this.maxInFlight = maxInFlight;
+            this.list = list;
+            this.mapper = mapper;
+            this.qualityCounters = qualityCounters;
+            this.max = max;
+            this.pc = pc;
+            this.chunks = chunks;
+            this.numberOfDataSets = numberOfDataSets;
+            this.progressPart = 0.25 / (double) chunks;
+            this.frontier = new int[numberOfDataSets];
+        }
+
+        /**
+         * Store reads of a data set for a chunk.
+         *
+         * @param dataSet data set
+         * @param openChunk chunk with its reads
+         */
+        synchronized void deposit(int dataSet, WindowFactoryReadDispatcher.OpenChunk openChunk) {
+            List<WindowFactoryReadBatch> reads = pending.get(openChunk.chunk.getIndex());
+            if (reads == null) {
+                reads = new ArrayList<>(numberOfDataSets);
+                for (int i = 0; i < numberOfDataSets; ++i) {
+                    reads.add(null);
+                }
+                pending.put(openChunk.chunk.getIndex(), reads);
+            }
+            reads.set(dataSet, openChunk.reads);
+        }
+
+        /**
+         * Move frontier of a reader and count all chunks passed by all
+         * readers.
+         *
+         * @param dataSet data set
+         * @param index smallest chunk the reader may still add reads to
+         * @throws IOException if the reader moves backwards
+         */
+        synchronized void advance(int dataSet, int index) throws IOException {
+            if (index < frontier[dataSet]) {
+                throw new IOException("Data set " + mapper.getDataSetByTag(dataSet).getDescription()
+                                      + " does not list the chromosomes in the same order as the other data sets");
+            }
+            frontier[dataSet] = index;
+            int minFrontier = getMinFrontier();
+            while (!pending.isEmpty() && pending.firstKey() < minFrontier) {
+                Map.Entry<Integer, List<WindowFactoryReadBatch>> entry = pending.pollFirstEntry();
+                submit(entry.getKey(), entry.getValue());
+            }
+            notifyAll();
+        }
+
+        /**
+         * Wait until a reader may open a chunk. The slowest reader is never
+         * held back by the number of buffered chunks.
+         *
+         * @param dataSet data set
+         * @param index chunk index
+         * @throws IOException if another reader failed
+         */
+        synchronized void awaitOpen(int dataSet, int index) throws IOException {
+            try {
+                while (!failed
+                       && (inFlight >= maxInFlight
+                           || (index >= getMinFrontier() + maxInFlight && frontier[dataSet] > getMinFrontier()))) {
+                    wait();
+                }
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new IOException("Window construction interrupted", e);
+            }
+            if (failed) {
+                throw new IOException("Window construction aborted");
+            }
+        }
+
+        /**
+         * Abort, e.g., because a reader failed.
+         */
+        synchronized void fail() {
+            failed = true;
+            notifyAll();
+        }
+
+        /**
+         * Wait for all chunks.
+         *
+         * @throws IOException if counting a chunk failed
+         */
+        void finish() throws IOException {
+            List<Future<?>> all;
+            synchronized (this) {
+                all = new ArrayList<>(counting);
+            }
+            for (Future<?> future : all) {
+                waitFor(future, "Counting chunk failed");
+            }
+            // chunks without any read
+            sendProgress(pc, (chunks - submitted) * progressPart);
+        }
+
+        /**
+         * Get frontier of the slowest reader.
+         *
+         * @return smallest frontier
+         */
+        private int getMinFrontier() {
+            int min = Integer.MAX_VALUE;
+            for (int f : frontier) {
+                min = Math.min(min, f);
+            }
+            return min;
+        }
+
+        /**
+         * Count chunk for all data sets in parallel to reading.
+         *
+         * @param index chunk index
+         * @param reads reads for each data set, null if a data set has no reads
+         */
+        private void submit(final int index, final List<WindowFactoryReadBatch> reads) {
+            ++inFlight;
+            ++submitted;
+            counting.add(executor.submit(new Runnable() {
+                @Override
+                public void run() {
+                    try {
+                        chrtree.getChunk(index).countWindows(reads, list, mapper, qualityCounters, max);
+                        sendProgress(pc, progressPart);
+                    } finally {
+                        synchronized (MergedChunkTable.this) {
+                            --inFlight;
+                            MergedChunkTable.this.notifyAll();
+                        }
+                    }
+                }
+            }));
+        }
+    }
+
+    /**
+     * Distributes the reads of one data set to the chunks and hands over each
+     * complete chunk to the merged chunk table.
+     */
+    private static class ChunkDispatcher
+            extends WindowFactoryReadDispatcher {
+
+        private final MergedChunkTable table;
+        private final int dataSet;
+        private int frontier = 0;
+
+        /**
+         * Constructor.
+         *
+         * @param chrtree chunk map
+         * @param table merged chunk table
+         * @param dataSet data set
+         * @param description description of data set
+         */
+        ChunkDispatcher(
+                WindowFactoryChunkMap chrtree,
+                MergedChunkTable table,
+                int dataSet,
+                String description
+        ) {
+            super(chrtree, description);
+            this.table = table;
+            this.dataSet = dataSet;
+        }
+
+        @Override
+        void add(BamAlignment record) throws IOException {
+            super.add(record);
+            updateFrontier(getFrontier());
+        }
+
+        /**
+         * Hand over remaining chunks and release all chunks for counting.
+         *
+         * @throws IOException if handing over a chunk failed
+         */
+        void finish() throws IOException {
+            finishReading();
+            updateFrontier(Integer.MAX_VALUE);
+        }
+
+        @Override
+        protected void chunkClosed(OpenChunk openChunk) {
+            table.deposit(dataSet, openChunk);
+        }
+
+        @Override
+        protected void chunkOpening(int index) throws IOException {
+            // reads of skipped chunks will not follow
+            int current = getFrontier();
+            updateFrontier(current < 0 || current > index ? index : current);
+            table.awaitOpen(dataSet, index);
+        }
+
+        /**
+         * Report new frontier to the table if it changed.
+         *
+         * @param index new frontier, -1 if unknown
+         * @throws IOException if the reader moves backwards
+         */
+        private void updateFrontier(int index) throws IOException {
+            if (index >= 0 && index != frontier) {
+                frontier = index;
+                table.advance(dataSet, index);
+            }
+        }
+    }
+}
@@ -0,0 +1,175 @@
+/**
+ *****************************************************************************
+ * Copyright (c) 2015 Daniel Gerighausen, Lydia Mueller, and Dirk Zeckzer
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ ******************************************************************************
+ */
+package biovis.sierra.server.windowFactories;
+
+import biovis.sierra.data.windows.WindowColumnStorage;
+import biovis.sierra.data.windows.WindowListColumnar;
+
+/**
+ * Window list filled chunk by chunk during window construction.
+ *
+ * Each chunk of the chunk map owns a dense array of tag counts per data set,
+ * one slot per window of the chunk. A chunk is only ever processed by one
+ * thread at a time, hence slots are written without locking. Chunks are
+ * numbered chromosome by chromosome in increasing order of their start.
+ * Flattening is therefore an ordered concatenation of the windows with at
+ * least one tag into the columns of the window list.
+ *
+ * @author Lydia Mueller, Dirk Zeckzer
+ */
+public class WindowListChunkSlots
+        extends WindowListColumnar {
+
+    private final WindowFactoryChunkMap chrtree;
+    private final int numberOfDataSets;
+    // tag counts for each chunk and data set, null if there is no tag
+    private int[][][] slots;
+    // number of counted windows for each chunk
+    private int[] countedWindows;
+    // base quality histograms of the window bins, null if not recorded
+    private WindowQualityBins qualityBins = null;
+
+    /**
+     * Constructor.
+     *
+     * @param chrtree chunk map defining the chunks
+     * @param numberOfDataSets number of data sets
+     * @param numberOfReplicates number of replicates
+     * @param storage storage of the window columns
+     */
+    public WindowListChunkSlots(
+            WindowFactoryChunkMap chrtree,
+            int numberOfDataSets,
+            int numberOfReplicates,
+            WindowColumnStorage storage
+    ) {
+        super(numberOfDataSets, numberOfReplicates, storage);
+        this.chrtree = chrtree;
+        this.numberOfDataSets = numberOfDataSets;
+        this.slots = new int[chrtree.getChunks()][][];
+        this.countedWindows = new int[chrtree.getChunks()];
+    }
+
+    /**
+     * Set tag counts of a data set for all windows of a chunk.
+     *
+     * @param chunk chunk
+     * @param dataSet data set
+     * @param tags tag count for each window of the chunk, kept by the list
+     * @param windows number of counted windows
+     */
+    public void setTags(WindowFactoryChunk chunk, int dataSet, int[] tags, int windows) {
+        boolean empty = true;
+        for (int slot = 0; slot < windows && empty; ++slot) {
+            empty = tags[slot] == 0;
+        }
+        if (empty) {
+            return;
+        }
+
+        int index = chunk.getIndex();
+        if (slots[index] == null) {
+            slots[index] = new int[numberOfDataSets][];
+        }
+        slots[index][dataSet] = tags;
+        if (countedWindows[index] < windows) {
+            countedWindows[index] = windows;
+        }
+    }
+
+    public WindowQualityBins getQualityBins() {
+        return qualityBins;
+    }
+
+    public void setQualityBins(WindowQualityBins qualityBins) {
+        this.qualityBins = qualityBins;
+    }
+
+    /**
+     * Get tag counts of a data set for all windows of a chunk.
+     *
+     * @param index chunk index
+     * @param dataSet data set
+     * @return tag count for each window of the chunk, null if there is no tag
+     */
+    public int[] getTags(int index, int dataSet) {
+        if (slots[index] == null) {
+            return null;
+        }
+        return slots[index][dataSet];
+    }
+
+    /**
+     * Concatenate the windows of all chunks into the final window list.
+     */
+    public void flattenList() {
+        // count windows
+        int size = 0;
+        for (int index = 0; index < slots.length; ++index) {
+            for (int slot = 0; slot < countedWindows[index]; ++slot) {
+                if (hasTags(index, slot)) {
+                    ++size;
+                }
+            }
+        }
+        allocate(size);
+
+        // fill window list
+        for (int index = 0; index < slots.length; ++index) {
+            if (slots[index] == null) {
+                continue;
+            }
+            WindowFactoryChunk chunk = chrtree.getChunk(index);
+            for (int slot = 0; slot < countedWindows[index]; ++slot) {
+                if (hasTags(index, slot)) {
+                    int w = appendWindow(chunk.getChr(), chunk.getWindowStart(slot), chunk.getWindowEnd(slot));
+                    for (int dataSet = 0; dataSet < numberOfDataSets; ++dataSet) {
+                        int[] tags = slots[index][dataSet];
+                        if (tags != null) {
+                            setTagCount(dataSet, w, tags[slot]);
+                        }
+                    }
+                }
+            }
+            slots[index] = null;
+        }
+        init();
+
+        slots = new int[0][][];
+        countedWindows = new int[0];
+    }
+
+    /**
+     * Check if window contains at least one tag in at least one data set.
+     *
+     * @param index chunk index
+     * @param slot window index within chunk
+     * @return true if window contains a tag
+     */
+    private boolean hasTags(int index, int slot) {
+        if (slots[index] == null) {
+            return false;
+        }
+        for (int[] tags : slots[index]) {
+            if (tags != null && tags[slot] > 0) {
+                return true;
+            }
+        }
+        return false;
+    }
+}
@@ -0,0 +1,218 @@
+/**
+ *****************************************************************************
+ * Copyright (c) 2015 Daniel Gerighausen, Lydia Mueller, and Dirk Zeckzer
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ ******************************************************************************
+ */
+package biovis.sierra.server.windowFactories;
+
+import biovis.sierra.data.DataMapper;
+import biovis.sierra.data.QualityCounter;
+
+/**
+ * Base quality histograms of the reads starting in each window offset bin,
+ * recorded while the windows are counted.
+ *
+ * Bin b of a chromosome contains the reads starting in
+ * [b * offset, (b + 1) * offset), i.e., the bins of a chunk are the slots of
+ * its windows. The histograms of a chunk are stored sparse: the first
+ * (windows + 1) entries are the offsets of the bins into the array, followed
+ * by (count << QUALITY_BITS | quality) for each quality occurring in the bin.
+ *
+ * The median quality of a peak is the median of the merged histograms of
+ * the bins covering the peak, hence reads starting before the peak are not
+ * taken into account. Data sets whose counts are taken from the count index
+ * or the count cache have no histograms.
+ *
+ * @author Lydia Mueller, Dirk Zeckzer
+ */
+public class WindowQualityBins {
+
+    private final static int QUALITIES = QualityCounter.PHRED_MAX + 1;
+    private final static int QUALITY_BITS = 7;
+    private final static int MAX_COUNT = Integer.MAX_VALUE >>> QUALITY_BITS;
+
+    private final WindowFactoryChunkMap chrtree;
+    private final int offset;
+    // histograms for each data set and chunk, null if no read starts in the chunk
+    private final int[][][] bins;
+    // histograms of the data set have been recorded from all reads
+    private final boolean[] complete;
+
+    // dense histograms of the chunk being recorded by the current thread
+    private final ThreadLocal<int[]> dense = new ThreadLocal<>();
+
+    /**
+     * Constructor.
+     *
+     * @param chrtree chunk map
+     * @param offset window offset
+     * @param numberOfDataSets number of data sets
+     */
+    public WindowQualityBins(WindowFactoryChunkMap chrtree, int offset, int numberOfDataSets) {
+        this.chrtree = chrtree;
+        this.offset = offset;
+        this.bins = new int[numberOfDataSets][chrtree.getChunks()][];
+        this.complete = new boolean[numberOfDataSets];
+    }
+
+    /**
+     * Create quality bins if peak qualities are computed from the windows.
+     * Base qualities of sampled reads only do not give the qualities of a
+     * peak, hence peak qualities are computed from the BAM files if base
+     * qualities are sampled.
+     *
+     * @param mapper data mapper
+     * @param chrtree chunk map
+     * @param offset window offset
+     * @return quality bins, null if peak qualities are computed from the BAM
+     * files
+     */
+    public static WindowQualityBins create(DataMapper mapper, WindowFactoryChunkMap chrtree, int offset) {
+        if (!mapper.isQualityCounting() || !"windows".equals(mapper.getPeakQuality())
+            || mapper.getQualitySampling() > 1) {
+            return null;
+        }
+        return new WindowQualityBins(chrtree, offset, mapper.getNumberOfDataSets());
+    }
+
+    /**
+     * Record histograms of the reads of a data set starting in a chunk.
+     *
+     * @param chunk chunk
+     * @param dataSet data set
+     * @param overlapping reads overlapping the chunk interval
+     */
+    public void record(WindowFactoryChunk chunk, int dataSet, WindowFactoryReadBatch overlapping) {
+        final int windows = chunk.getNumberOfWindows();
+        int[] counts = dense.get();
+        if (counts == null || counts.length < windows * QUALITIES) {
+            counts = new int[windows * QUALITIES];
+            dense.set(counts);
+        }
+        int[] distinct = new int[windows];
+
+        final int startChunk = chunk.getStartChunk();
+        final int startNextChunk = chunk.getStartNextChunk();
+        int entries = 0;
+        for (int next = 0; next < overlapping.size(); ++next) {
+            int start = overlapping.getStart(next);
+            byte[] qualities = overlapping.getBaseQualities(next);
+            if (start < startChunk || qualities == null) {
+                continue;
+            }
+            if (start >= startNextChunk) {
+                break;
+            }
+            int bin = (start - startChunk) / offset * QUALITIES;
+            for (byte b : qualities) {
+                int quality = Math.min((int) b, QualityCounter.PHRED_MAX);
+                if (counts[bin + quality]++ == 0) {
+                    ++distinct[bin / QUALITIES];
+                    ++entries;
+                }
+            }
+        }
+        if (entries == 0) {
+            return;
+        }
+
+        // compress and clear dense histograms
+        int[] sparse = new int[windows + 1 + entries];
+        int position = windows + 1;
+        for (int slot = 0; slot < windows; ++slot) {
+            sparse[slot] = position;
+            if (distinct[slot] == 0) {
+                continue;
+            }
+            int bin = slot * QUALITIES;
+            for (int quality = 0; quality < QUALITIES; ++quality) {
+                int count = counts[bin + quality];
+                if (count > 0) {
+                    sparse[position++] = Math.min(count, MAX_COUNT) << QUALITY_BITS | quality;
+                    counts[bin + quality] = 0;
+                }
+            }
+        }
+        sparse[windows] = position;
+        bins[dataSet][chunk.getIndex()] = sparse;
+    }
+
+    /**
+     * Mark histograms of a data set as recorded from all its reads.
+     *
+     * @param dataSet data set
+     */
+    public void setComplete(int dataSet) {
+        complete[dataSet] = true;
+    }
+
+    /**
+     * Check whether histograms of a data set have been recorded from all its
+     * reads.
+     *
+     * @param dataSet data set
+     * @return true iff peak qualities can be computed from the histograms
+     */
+    public boolean isComplete(int dataSet) {
+        return complete[dataSet];
+    }
+
+    /**
+     * Get median quality of the reads of a data set starting in an interval.
+     * The quality scale is adjusted for the interval as for the reads of a
+     * peak read from the BAM file.
+     *
+     * @param dataSet data set
+     * @param chr chromosome
+     * @param start interval start
+     * @param end interval end
+     * @return median quality
+     */
+    public int getMedianQuality(int dataSet, String chr, int start, int end) {
+        long[] qualitycounts = new long[QUALITIES];
+        long totalcounts = 0;
+
+        Integer firstChunk = chrtree.getFirstChunk(chr);
+        if (firstChunk != null) {
+            final int chunkSize = chrtree.getChunkSize();
+            final int lastChunk = firstChunk + chrtree.getNumberOfChunks(chr) - 1;
+            int bin = Math.max(0, start) / offset;
+            final int lastBin = end / offset;
+            while (bin <= lastBin) {
+                int chunk = firstChunk + bin / chunkSize;
+                if (chunk > lastChunk) {
+                    break;
+                }
+                int slot = bin % chunkSize;
+                int slots = Math.min(chunkSize - slot, lastBin - bin + 1);
+                int[] sparse = bins[dataSet][chunk];
+                if (sparse != null) {
+                    // bins of the chunk: the first bin starts after the offsets
+                    int windows = sparse[0] - 1;
+                    int from = sparse[Math.min(slot, windows)];
+                    int to = sparse[Math.min(slot + slots, windows)];
+                    for (int i = from; i < to; ++i) {
+                        int count = sparse[i] >>> QUALITY_BITS;
+                        qualitycounts[sparse[i] & ((1 << QUALITY_BITS) - 1)] += count;
+                        totalcounts += count;
+                    }
+                }
+                bin += slots;
+            }
+        }
+
+        return QualityCounter.getAdjustedMedian(qualitycounts, totalcounts);
+    }
+}